@@ -0,0 +1,78 @@
+package org.sharedhealth.mci.web.mapper;
+
+import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import org.openjdk.jmh.annotations.*;
+import org.sharedhealth.mci.web.config.MCIProperties;
+import org.sharedhealth.mci.web.model.Patient;
+import org.sharedhealth.mci.web.util.TimeUuidUtil;
+
+import java.util.Date;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/*
+    Measures mapping a patient to a FHIR bundle and back. MCI_BASE_URL and PATIENT_LINK_URI are read from
+    the environment. The patient has identifiers and relations but no master data fields, so no cassandra is
+    needed. Bytes allocated per mapping are in the gc.alloc.rate.norm line of the gc profiler
+    (profilers = ['gc'] in the jmh block).
+
+    ./gradlew jmh -Pjmh.include=PatientMapperBenchmark
+* */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PatientMapperBenchmark {
+    private MCIPatientMapper mciPatientMapper;
+    private FHIRBundleMapper fhirBundleMapper;
+    private Patient patient;
+    private Bundle bundle;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        MCIUris mciUris = new MCIUris(MCIProperties.getInstance());
+        mciPatientMapper = new MCIPatientMapper(mciUris, null);
+        fhirBundleMapper = new FHIRBundleMapper(mciUris);
+        patient = newPatient();
+        bundle = mciPatientMapper.mapPatientToBundle(patient);
+    }
+
+    @Benchmark
+    public Bundle mapPatientToBundle() {
+        return mciPatientMapper.mapPatientToBundle(patient);
+    }
+
+    @Benchmark
+    public Patient mapToMCIPatient() {
+        return fhirBundleMapper.mapToMCIPatient(bundle);
+    }
+
+    private Patient newPatient() {
+        Patient patient = new Patient();
+        patient.setHealthId("98000000001");
+        patient.setNationalId("1234567890123");
+        patient.setBirthRegistrationNumber("12345678901234567");
+        patient.setGivenName("Bob the");
+        patient.setSurName("Builder");
+        patient.setGender("M");
+        patient.setDateOfBirth(new Date(0));
+        patient.setDobType("1");
+        patient.setCountryCode("050");
+        patient.setDivisionId("30");
+        patient.setDistrictId("26");
+        patient.setUpazilaId("18");
+        patient.setAddressLine("house no. 10");
+        patient.setPhoneNo("12345678");
+        patient.setActive(true);
+        patient.setConfidential(false);
+        patient.setRelations("[{\"type\":\"FTH\",\"hid\":\"98000000002\",\"nid\":\"1234567890124\",\"uid\":\"12345678901\"," +
+                "\"bin_brn\":\"12345678901234568\",\"given_name\":\"Father\",\"sur_name\":\"Builder\",\"id\":\"" + UUID.randomUUID() + "\"}," +
+                "{\"type\":\"SPS\",\"hid\":\"98000000003\",\"given_name\":\"Spouse\",\"sur_name\":\"Builder\",\"id\":\"" + UUID.randomUUID() + "\"}]");
+        UUID updatedAt = TimeUuidUtil.uuidForDate(new Date());
+        patient.setCreatedAt(updatedAt);
+        patient.setUpdatedAt(updatedAt);
+        return patient;
+    }
+}
@@ -0,0 +1,67 @@
+package org.sharedhealth.mci.web.model;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+    Measures dispense throughput of the health id store as the number of concurrent
+    request threads grows. Every operation takes a health id and hands it back, which
+    keeps the pool size stable and exercises both the create and the put back paths.
+
+    ./gradlew jmh -Pjmh.include=MciHealthIdStoreBenchmark
+* */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class MciHealthIdStoreBenchmark {
+    private static final int POOL_SIZE = 100000;
+
+    private MciHealthIdStore mciHealthIdStore;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        mciHealthIdStore = new MciHealthIdStore(Runtime.getRuntime().availableProcessors());
+        List<String> healthIds = new ArrayList<>(POOL_SIZE);
+        for (int i = 0; i < POOL_SIZE; i++) {
+            healthIds.add(String.valueOf(98000000000L + i));
+        }
+        mciHealthIdStore.addMciHealthIds(healthIds);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public String dispenseWith1Thread() {
+        return dispenseAndPutBack();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String dispenseWith4Threads() {
+        return dispenseAndPutBack();
+    }
+
+    @Benchmark
+    @Threads(16)
+    public String dispenseWith16Threads() {
+        return dispenseAndPutBack();
+    }
+
+    @Benchmark
+    @Threads(64)
+    public String dispenseWith64Threads() {
+        return dispenseAndPutBack();
+    }
+
+    private String dispenseAndPutBack() {
+        String healthId = mciHealthIdStore.getNextHealthId();
+        mciHealthIdStore.addMciHealthIds(Collections.singletonList(healthId));
+        return healthId;
+    }
+}
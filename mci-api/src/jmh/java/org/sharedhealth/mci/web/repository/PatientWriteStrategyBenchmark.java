@@ -0,0 +1,67 @@
+package org.sharedhealth.mci.web.repository;
+
+import com.datastax.driver.mapping.MappingManager;
+import org.openjdk.jmh.annotations.*;
+import org.sharedhealth.mci.web.config.MCICassandraConfig;
+import org.sharedhealth.mci.web.config.MCIProperties;
+import org.sharedhealth.mci.web.model.MCIResponse;
+import org.sharedhealth.mci.web.model.Patient;
+import org.sharedhealth.mci.web.util.TimeUuidUtil;
+
+import java.util.Date;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+    Samples create latency of the two patient write strategies under concurrent requests, the
+    p99 is in the sample time percentiles. It writes to the cassandra configured in the environment,
+    which must have the MCI schema. The batchlog load on the coordinators shows up as writes to
+    system.batches (nodetool tablestats system) while the logged batch run is going on.
+
+    ./gradlew jmh -Pjmh.include=PatientWriteStrategyBenchmark
+* */
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@Threads(16)
+@State(Scope.Benchmark)
+public class PatientWriteStrategyBenchmark {
+    private static final long FIRST_HEALTH_ID = 97000000000L;
+
+    @Param({"LOGGED_BATCH", "PATIENT_FIRST"})
+    private PatientWriteStrategy writeStrategy;
+
+    private PatientRepository patientRepository;
+    private final AtomicLong nextHealthId = new AtomicLong(FIRST_HEALTH_ID);
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        MappingManager mappingManager = MCICassandraConfig.getInstance().getMappingManager();
+        patientRepository = new PatientRepository(mappingManager, new PreparedStatementRegistry(mappingManager, MCIProperties.getInstance()), writeStrategy);
+    }
+
+    @Benchmark
+    public MCIResponse createPatient() throws Exception {
+        return patientRepository.createPatient(newPatient());
+    }
+
+    private Patient newPatient() {
+        Patient patient = new Patient();
+        patient.setHealthId(String.valueOf(nextHealthId.getAndIncrement()));
+        patient.setGivenName("Bob the");
+        patient.setSurName("Builder");
+        patient.setGender("M");
+        patient.setDateOfBirth(new Date(0));
+        patient.setDivisionId("30");
+        patient.setDistrictId("26");
+        patient.setUpazilaId("18");
+        patient.setAddressLine("Will Street");
+        UUID createdAt = TimeUuidUtil.uuidForDate(new Date());
+        patient.setCreatedAt(createdAt);
+        patient.setUpdatedAt(createdAt);
+        return patient;
+    }
+}
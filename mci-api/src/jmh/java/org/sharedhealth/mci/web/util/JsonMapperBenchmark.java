@@ -0,0 +1,96 @@
+package org.sharedhealth.mci.web.util;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.openjdk.jmh.annotations.*;
+import org.sharedhealth.mci.web.model.Relation;
+import org.sharedhealth.mci.web.security.UserInfo;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import static java.util.Collections.singletonMap;
+
+/*
+    Measures reading patient relations and an identity provider user and writing an audit change set,
+    each with a new ObjectMapper per call, with one shared ObjectMapper, and through JsonMapper's readers and writers.
+    Bytes allocated per call are in the gc.alloc.rate.norm line of the gc profiler.
+
+    ./gradlew jmh -Pjmh.include=JsonMapperBenchmark
+* */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class JsonMapperBenchmark {
+    private static final String RELATIONS = "[{\"type\":\"FTH\",\"hid\":\"98000000002\",\"nid\":\"1234567890124\"," +
+            "\"uid\":\"12345678901\",\"bin_brn\":\"12345678901234568\",\"given_name\":\"Father\",\"sur_name\":\"Builder\"," +
+            "\"id\":\"06941b0d-5f8a-487f-b1e0-f2777c2fbe44\"},{\"type\":\"SPS\",\"hid\":\"98000000003\"," +
+            "\"given_name\":\"Spouse\",\"sur_name\":\"Builder\",\"id\":\"6ab069a7-f3e9-4368-99c2-9896818e447f\"}]";
+    private static final String USER_INFO = "{\"id\":\"18548\",\"name\":\"Facility 1\",\"email\":\"facility@gmail.com\"," +
+            "\"is_active\":1,\"activated\":true,\"access_token\":\"d324fe7a-156b-449c-93b2-1c9871ee306c\"," +
+            "\"groups\":[\"Facility Admin\",\"MCI User\"],\"profiles\":[{\"name\":\"facility\",\"id\":\"10019842\",\"catchment\":[\"3026\"]}]}";
+    private static final TypeReference<List<Relation>> RELATION_LIST_TYPE = new TypeReference<List<Relation>>() {
+    };
+
+    private ObjectMapper sharedMapper;
+    private TreeMap<String, Object> changeSet;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        sharedMapper = new ObjectMapper();
+        changeSet = new TreeMap<>();
+        changeSet.put("given_name", new TreeMap<>(singletonMap("new_value", "Bob the")));
+        changeSet.put("sur_name", new TreeMap<>(singletonMap("new_value", "Builder")));
+        changeSet.put("gender", new TreeMap<>(singletonMap("new_value", "M")));
+    }
+
+    @Benchmark
+    public List<Relation> readRelationsWithNewMapper() throws IOException {
+        return new ObjectMapper().readValue(RELATIONS, RELATION_LIST_TYPE);
+    }
+
+    @Benchmark
+    public List<Relation> readRelationsWithSharedMapper() throws IOException {
+        return sharedMapper.readValue(RELATIONS, RELATION_LIST_TYPE);
+    }
+
+    @Benchmark
+    public List<Relation> readRelations() {
+        return JsonMapper.readRelations(RELATIONS);
+    }
+
+    @Benchmark
+    public UserInfo readUserInfoWithNewMapper() throws IOException {
+        return new ObjectMapper().readValue(USER_INFO, UserInfo.class);
+    }
+
+    @Benchmark
+    public UserInfo readUserInfoWithSharedMapper() throws IOException {
+        return sharedMapper.readValue(USER_INFO, UserInfo.class);
+    }
+
+    @Benchmark
+    public UserInfo readUserInfo() {
+        return JsonMapper.readValue(USER_INFO, UserInfo.class);
+    }
+
+    @Benchmark
+    public String writeChangeSetWithNewMapper() throws IOException {
+        return new ObjectMapper().writeValueAsString(changeSet);
+    }
+
+    @Benchmark
+    public String writeChangeSetWithSharedMapper() throws IOException {
+        return sharedMapper.writeValueAsString(changeSet);
+    }
+
+    @Benchmark
+    public String writeChangeSet() {
+        return JsonMapper.writeValueAsString(changeSet);
+    }
+}
@@ -1,33 +1,52 @@
 package org.sharedhealth.mci.web;
 
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
 import com.google.gson.Gson;
+import org.apache.commons.io.IOUtils;
+import org.apache.http.HttpClientConnection;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpStatus;
 import org.apache.http.NameValuePair;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
 import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ConnectionRequest;
+import org.apache.http.conn.routing.HttpRoute;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.message.BasicNameValuePair;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.sharedhealth.mci.web.config.MCIMetrics;
+import org.sharedhealth.mci.web.config.MCIProperties;
 import org.sharedhealth.mci.web.exception.IdentityUnauthorizedException;
 import org.sharedhealth.mci.web.exception.NotFoundException;
+import org.sharedhealth.mci.web.util.JsonMapper;
 
-import java.io.BufferedReader;
+import java.io.BufferedInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
+import static com.codahale.metrics.MetricRegistry.name;
 import static org.sharedhealth.mci.web.launch.Application.getIdentityStore;
 import static org.sharedhealth.mci.web.util.MCIConstants.URL_SEPARATOR;
 import static org.sharedhealth.mci.web.util.StringUtils.ensureSuffix;
@@ -36,16 +55,43 @@ import static org.sharedhealth.mci.web.util.StringUtils.removeSuffix;
 
 public class WebClient {
     private final static Logger logger = LogManager.getLogger(WebClient.class);
+    private static final byte[] UTF8_BYTE_ORDER_MARK = {(byte) 0xEF, (byte) 0xBB, (byte) 0xBF};
+    private static final String METRICS_PREFIX = "http.client";
+
+    private static volatile CloseableHttpClient httpClient;
+
+    public interface ResponseBodyParser<T> {
+        T parse(InputStream content) throws IOException;
+    }
 
     public String get(String baseUrl, String path, Map<String, String> headers) throws IOException {
+        return get(baseUrl, path, headers, this::parseContentInputString);
+    }
+
+    public <T> T get(String baseUrl, String path, Map<String, String> headers, Class<T> responseType) throws IOException {
+        return get(baseUrl, path, headers, content -> JsonMapper.readValue(content, responseType));
+    }
+
+    //the parser reads the body straight off the connection, without a leading byte order mark
+    public <T> T get(String baseUrl, String path, Map<String, String> headers, ResponseBodyParser<T> parser) throws IOException {
         String url = getUrl(baseUrl, path);
         logger.debug("HTTP GET request for {}", url);
         HttpGet request = new HttpGet(url);
         addHeaders(headers, request);
-        return execute(request);
+        return execute(request, parser);
     }
 
     public String post(String baseUrl, String path, Map<String, String> headers, Map<String, String> formEntities) throws IOException {
+        return post(baseUrl, path, headers, formEntities, this::parseContentInputString);
+    }
+
+    public <T> T post(String baseUrl, String path, Map<String, String> headers, Map<String, String> formEntities,
+                      Class<T> responseType) throws IOException {
+        return post(baseUrl, path, headers, formEntities, content -> JsonMapper.readValue(content, responseType));
+    }
+
+    public <T> T post(String baseUrl, String path, Map<String, String> headers, Map<String, String> formEntities,
+                      ResponseBodyParser<T> parser) throws IOException {
         String url = getUrl(baseUrl, path);
         logger.debug("HTTP POST request for {}", url);
         HttpPost request = new HttpPost(url);
@@ -56,7 +102,7 @@ public class WebClient {
         }
         UrlEncodedFormEntity formEntity = new UrlEncodedFormEntity(valuePairs);
         request.setEntity(formEntity);
-        return execute(request);
+        return execute(request, parser);
     }
 
 
@@ -81,33 +127,122 @@ public class WebClient {
     }
 
     private String execute(HttpRequestBase request) throws IOException {
-        try (CloseableHttpClient client = HttpClientBuilder.create().build()) {
-            ResponseHandler<String> responseHandler = response -> {
-                int statusCode = response.getStatusLine().getStatusCode();
-                if (statusCode >= 200 && statusCode < 300) {
-                    HttpEntity entity = response.getEntity();
-                    return entity != null ? parseContentInputString(entity) : null;
-                } else if (statusCode == HttpStatus.SC_UNAUTHORIZED) {
-                    getIdentityStore().clearIdentityToken();
-                    throw new IdentityUnauthorizedException("Identity not authorized.");
-                } else if (statusCode == HttpStatus.SC_NOT_FOUND) {
-                    throw new NotFoundException("Invalid Url.");
-                } else {
-                    throw new ClientProtocolException("Unexpected Response status.");
+        return execute(request, this::parseContentInputString);
+    }
+
+    private <T> T execute(HttpRequestBase request, ResponseBodyParser<T> parser) throws IOException {
+        ResponseHandler<T> responseHandler = response -> {
+            int statusCode = response.getStatusLine().getStatusCode();
+            if (statusCode >= 200 && statusCode < 300) {
+                HttpEntity entity = response.getEntity();
+                if (entity == null) return null;
+                try (InputStream content = skipByteOrderMark(entity.getContent())) {
+                    return parser.parse(content);
+                }
+            } else if (statusCode == HttpStatus.SC_UNAUTHORIZED) {
+                getIdentityStore().clearIdentityToken();
+                throw new IdentityUnauthorizedException("Identity not authorized.");
+            } else if (statusCode == HttpStatus.SC_NOT_FOUND) {
+                throw new NotFoundException("Invalid Url.");
+            } else {
+                throw new ClientProtocolException("Unexpected Response status.");
+            }
+        };
+        Timer.Context timer = MCIMetrics.getRegistry().timer(name(METRICS_PREFIX, "requests")).time();
+        try {
+            return getHttpClient().execute(request, responseHandler);
+        } finally {
+            timer.stop();
+        }
+    }
+
+    /*
+        All requests share one pooled client, so connections to the IdP and the HID service are kept
+        alive and reused instead of being set up again for every call. Connections are pooled per host.
+    * */
+    private static CloseableHttpClient getHttpClient() {
+        CloseableHttpClient client = httpClient;
+        if (client != null) return client;
+        synchronized (WebClient.class) {
+            if (httpClient == null) {
+                httpClient = createHttpClient();
+            }
+            return httpClient;
+        }
+    }
+
+    private static CloseableHttpClient createHttpClient() {
+        MCIProperties mciProperties = MCIProperties.getInstance();
+        InstrumentedConnectionManager connectionManager = new InstrumentedConnectionManager();
+        connectionManager.setMaxTotal(mciProperties.getHttpMaxConnections());
+        connectionManager.setDefaultMaxPerRoute(mciProperties.getHttpMaxConnectionsPerHost());
+        registerPoolMetrics(connectionManager);
+
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(mciProperties.getHttpConnectTimeout())
+                .setSocketTimeout(mciProperties.getHttpReadTimeout())
+                .setConnectionRequestTimeout(mciProperties.getHttpConnectionRequestTimeout())
+                .build();
+        long keepAlive = mciProperties.getHttpKeepAlive();
+        return HttpClientBuilder.create()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .setKeepAliveStrategy((response, context) -> {
+                    long keepAliveFromServer = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+                    return keepAliveFromServer > 0 ? Math.min(keepAliveFromServer, keepAlive) : keepAlive;
+                })
+                .evictExpiredConnections()
+                .evictIdleConnections((long) mciProperties.getHttpIdleTimeout(), TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    private static void registerPoolMetrics(PoolingHttpClientConnectionManager connectionManager) {
+        MetricRegistry registry = MCIMetrics.getRegistry();
+        registry.register(name(METRICS_PREFIX, "pool", "leased"), (Gauge<Integer>) () -> connectionManager.getTotalStats().getLeased());
+        registry.register(name(METRICS_PREFIX, "pool", "available"), (Gauge<Integer>) () -> connectionManager.getTotalStats().getAvailable());
+        registry.register(name(METRICS_PREFIX, "pool", "pending"), (Gauge<Integer>) () -> connectionManager.getTotalStats().getPending());
+        registry.register(name(METRICS_PREFIX, "pool", "max"), (Gauge<Integer>) () -> connectionManager.getTotalStats().getMax());
+    }
+
+    //times how long requests wait to lease a connection from the pool
+    private static class InstrumentedConnectionManager extends PoolingHttpClientConnectionManager {
+        private final Timer leaseTimer = MCIMetrics.getRegistry().timer(name(METRICS_PREFIX, "pool", "lease-wait"));
+
+        @Override
+        public ConnectionRequest requestConnection(HttpRoute route, Object state) {
+            ConnectionRequest connectionRequest = super.requestConnection(route, state);
+            return new ConnectionRequest() {
+                @Override
+                public HttpClientConnection get(long timeout, TimeUnit tunit)
+                        throws InterruptedException, ExecutionException, ConnectionPoolTimeoutException {
+                    Timer.Context leaseWait = leaseTimer.time();
+                    try {
+                        return connectionRequest.get(timeout, tunit);
+                    } finally {
+                        leaseWait.stop();
+                    }
+                }
+
+                @Override
+                public boolean cancel() {
+                    return connectionRequest.cancel();
                 }
             };
-            return client.execute(request, responseHandler);
         }
     }
 
-    private String parseContentInputString(HttpEntity entity) throws IOException {
-        BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(entity.getContent()));
-        String inputLine;
-        StringBuilder responseString = new StringBuilder();
-        while ((inputLine = bufferedReader.readLine()) != null) {
-            responseString.append(inputLine);
+    private InputStream skipByteOrderMark(InputStream content) throws IOException {
+        InputStream bufferedContent = new BufferedInputStream(content);
+        bufferedContent.mark(UTF8_BYTE_ORDER_MARK.length);
+        byte[] start = new byte[UTF8_BYTE_ORDER_MARK.length];
+        int read = IOUtils.read(bufferedContent, start);
+        if (read < start.length || !Arrays.equals(start, UTF8_BYTE_ORDER_MARK)) {
+            bufferedContent.reset();
         }
-        bufferedReader.close();
-        return responseString.toString().replace("\uFEFF", "");
+        return bufferedContent;
+    }
+
+    private String parseContentInputString(InputStream content) throws IOException {
+        return IOUtils.toString(content, StandardCharsets.UTF_8);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,54 @@
+package org.sharedhealth.mci.web.config;
+
+import com.fasterxml.jackson.annotation.JsonAutoDetect;
+import com.fasterxml.jackson.annotation.PropertyAccessor;
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.ehcache.spi.serialization.Serializer;
+import org.ehcache.spi.serialization.SerializerException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/*
+    Stores cache values as JSON of their fields, so entries can move to the off-heap and disk tiers
+    without the value types having to be Serializable. Getters are not used, computed properties
+    are rebuilt from the fields when they are first asked for.
+* */
+public class JsonCacheSerializer<T> implements Serializer<T> {
+    private static final ObjectMapper objectMapper = new ObjectMapper()
+            .setVisibility(PropertyAccessor.ALL, JsonAutoDetect.Visibility.NONE)
+            .setVisibility(PropertyAccessor.FIELD, JsonAutoDetect.Visibility.ANY)
+            .configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    private final Class<T> valueType;
+
+    public JsonCacheSerializer(Class<T> valueType) {
+        this.valueType = valueType;
+    }
+
+    @Override
+    public ByteBuffer serialize(T object) throws SerializerException {
+        try {
+            return ByteBuffer.wrap(objectMapper.writeValueAsBytes(object));
+        } catch (IOException e) {
+            throw new SerializerException(e);
+        }
+    }
+
+    @Override
+    public T read(ByteBuffer binary) throws SerializerException {
+        try {
+            byte[] bytes = new byte[binary.remaining()];
+            binary.get(bytes);
+            return objectMapper.readValue(bytes, valueType);
+        } catch (IOException e) {
+            throw new SerializerException(e);
+        }
+    }
+
+    @Override
+    public boolean equals(T object, ByteBuffer binary) throws SerializerException {
+        return serialize(object).equals(binary);
+    }
+}
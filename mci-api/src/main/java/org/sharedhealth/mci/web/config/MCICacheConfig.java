@@ -0,0 +1,60 @@
+package org.sharedhealth.mci.web.config;
+
+import org.ehcache.CacheManager;
+import org.ehcache.config.CacheConfiguration;
+import org.ehcache.config.ResourceType;
+import org.ehcache.config.builders.CacheManagerBuilder;
+import org.ehcache.config.builders.ResourcePoolsBuilder;
+import org.ehcache.config.units.MemoryUnit;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+    Builds the application cache manager. Every cache keeps its hottest entries on heap and can
+    overflow to off-heap memory and to disk, which keeps large caches out of the garbage collector's way.
+    Tiers with a size of zero are left out; values of caches with more than a heap tier need a serializer,
+    JsonCacheSerializer for objects or the built-in byte[] and String serializers for encoded content.
+* */
+public class MCICacheConfig {
+    private MCIProperties mciProperties;
+    private final Map<String, CacheConfiguration<?, ?>> cacheConfigurations = new LinkedHashMap<>();
+    private boolean persistent;
+
+    public MCICacheConfig(MCIProperties mciProperties) {
+        this.mciProperties = mciProperties;
+    }
+
+    public static ResourcePoolsBuilder resourcePools(long heapEntries, long offHeapMB, long diskMB) {
+        ResourcePoolsBuilder resourcePools = ResourcePoolsBuilder.heap(heapEntries);
+        if (offHeapMB > 0) {
+            resourcePools = resourcePools.offheap(offHeapMB, MemoryUnit.MB);
+        }
+        if (diskMB > 0) {
+            //the disk tier only extends memory, entries are not meant to survive a restart
+            resourcePools = resourcePools.disk(diskMB, MemoryUnit.MB, false);
+        }
+        return resourcePools;
+    }
+
+    public MCICacheConfig withCache(String name, CacheConfiguration<?, ?> cacheConfiguration) {
+        cacheConfigurations.put(name, cacheConfiguration);
+        persistent |= cacheConfiguration.getResourcePools().getResourceTypeSet().contains(ResourceType.Core.DISK);
+        return this;
+    }
+
+    public CacheManager build() {
+        CacheManagerBuilder<CacheManager> cacheManagerBuilder = CacheManagerBuilder.newCacheManagerBuilder();
+        if (persistent) {
+            return build(cacheManagerBuilder.with(CacheManagerBuilder.persistence(mciProperties.getCacheDiskPath())));
+        }
+        return build(cacheManagerBuilder);
+    }
+
+    private <T extends CacheManager> T build(CacheManagerBuilder<T> cacheManagerBuilder) {
+        for (Map.Entry<String, CacheConfiguration<?, ?>> cacheConfiguration : cacheConfigurations.entrySet()) {
+            cacheManagerBuilder = cacheManagerBuilder.withCache(cacheConfiguration.getKey(), cacheConfiguration.getValue());
+        }
+        return cacheManagerBuilder.build(true);
+    }
+}
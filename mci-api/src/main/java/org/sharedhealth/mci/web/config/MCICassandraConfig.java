@@ -1,14 +1,14 @@
 package org.sharedhealth.mci.web.config;
 
 import com.datastax.driver.core.*;
-import com.datastax.driver.core.policies.ConstantReconnectionPolicy;
-import com.datastax.driver.core.policies.RoundRobinPolicy;
+import com.datastax.driver.core.policies.DCAwareRoundRobinPolicy;
+import com.datastax.driver.core.policies.ExponentialReconnectionPolicy;
+import com.datastax.driver.core.policies.TokenAwarePolicy;
 import com.datastax.driver.mapping.MappingManager;
 
 public class MCICassandraConfig {
     private static MCICassandraConfig mciCassandraConfig;
     private static MappingManager mappingManager;
-    private static final int ONE_MINUTE = 6000;
 
     private MCICassandraConfig() {
         mappingManager = new MappingManager(getOrCreateSession());
@@ -29,23 +29,37 @@ public class MCICassandraConfig {
         Cluster.Builder clusterBuilder = new Cluster.Builder();
 
         QueryOptions queryOptions = new QueryOptions();
-        queryOptions.setConsistencyLevel(ConsistencyLevel.QUORUM);
+        //repository operations set their own level, this covers anything else
+        queryOptions.setConsistencyLevel(ConsistencyLevel.LOCAL_QUORUM);
 
         SocketOptions socketOptions = new SocketOptions();
         socketOptions.setConnectTimeoutMillis(mciProperties.getCassandraTimeout());
         socketOptions.setReadTimeoutMillis(mciProperties.getCassandraTimeout());
 
+        //queries go straight to a replica of their partition in the local data center
+        DCAwareRoundRobinPolicy.Builder dcAwarePolicy = DCAwareRoundRobinPolicy.builder();
+        if (mciProperties.getCassandraLocalDc() != null) {
+            dcAwarePolicy.withLocalDc(mciProperties.getCassandraLocalDc());
+        }
+
+        PoolingOptions poolingOptions = new PoolingOptions()
+                .setConnectionsPerHost(HostDistance.LOCAL, mciProperties.getCassandraCoreConnectionsPerHost(),
+                        mciProperties.getCassandraMaxConnectionsPerHost())
+                .setMaxRequestsPerConnection(HostDistance.LOCAL, mciProperties.getCassandraMaxRequestsPerConnection());
+
         clusterBuilder
                 .withPort(mciProperties.getCassandraPort())
                 .withClusterName(mciProperties.getCassandraKeySpace())
-                .withLoadBalancingPolicy(new RoundRobinPolicy())
-                .withPoolingOptions(new PoolingOptions())
+                .withLoadBalancingPolicy(new TokenAwarePolicy(dcAwarePolicy.build()))
+                .withPoolingOptions(poolingOptions)
                 .withAuthProvider(new PlainTextAuthProvider(mciProperties.getCassandraUser(), mciProperties.getCassandraPassword()))
                 .withProtocolVersion(ProtocolVersion.fromInt(mciProperties.getCassandraVersion()))
                 .withQueryOptions(queryOptions)
                 .withSocketOptions(socketOptions)
-                .withReconnectionPolicy(new ConstantReconnectionPolicy(ONE_MINUTE))
-                .addContactPoint(mciProperties.getCassandraHost());
+                .withSpeculativeExecutionPolicy(new SpeculativeReadPolicy(mciProperties))
+                .withReconnectionPolicy(new ExponentialReconnectionPolicy(mciProperties.getCassandraReconnectionBaseDelay(),
+                        mciProperties.getCassandraReconnectionMaxDelay()))
+                .addContactPoints(mciProperties.getCassandraHosts());
 
         return clusterBuilder.build().connect(mciProperties.getCassandraKeySpace());
     }
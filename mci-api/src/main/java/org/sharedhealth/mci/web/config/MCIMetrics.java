@@ -0,0 +1,19 @@
+package org.sharedhealth.mci.web.config;
+
+import com.codahale.metrics.JmxReporter;
+import com.codahale.metrics.MetricRegistry;
+
+/*
+    Registry for all application metrics, published over JMX under the "org.sharedhealth.mci" domain.
+* */
+public class MCIMetrics {
+    private static final String JMX_DOMAIN = "org.sharedhealth.mci";
+    private static MetricRegistry metricRegistry;
+
+    public static synchronized MetricRegistry getRegistry() {
+        if (metricRegistry != null) return metricRegistry;
+        metricRegistry = new MetricRegistry();
+        JmxReporter.forRegistry(metricRegistry).inDomain(JMX_DOMAIN).build().start();
+        return metricRegistry;
+    }
+}
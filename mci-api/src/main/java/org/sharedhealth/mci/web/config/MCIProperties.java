@@ -1,7 +1,10 @@
 package org.sharedhealth.mci.web.config;
 
+import com.datastax.driver.core.ConsistencyLevel;
+import org.sharedhealth.mci.web.repository.PatientWriteStrategy;
 import org.sharedhealth.mci.web.util.StringUtils;
 
+import java.io.File;
 import java.util.Map;
 
 public class MCIProperties {
@@ -14,6 +17,20 @@ public class MCIProperties {
     private String cassandraPassword;
     private String cassandraTimeout;
     private String cassandraVersion;
+    private String cassandraLocalDc;
+    private String cassandraCoreConnectionsPerHost;
+    private String cassandraMaxConnectionsPerHost;
+    private String cassandraMaxRequestsPerConnection;
+    private String cassandraReconnectionBaseDelay;
+    private String cassandraReconnectionMaxDelay;
+    private String cassandraWriteConsistency;
+    private String cassandraReadConsistency;
+    private String cassandraMasterDataConsistency;
+    private String cassandraReconciliationConsistency;
+    private String cassandraSpeculativeMaxExecutions;
+    private String cassandraSpeculativeDelay;
+    private String cassandraSpeculativePercentile;
+    private String masterDataRefreshInterval;
     private String mciBaseUrl;
     private String mciOrgCode;
     private String patientLinkUri;
@@ -31,8 +48,37 @@ public class MCIProperties {
     private String healthIdReplenishDelay;
     private String healthIdReplenishBlockSize;
     private String healthIdReplenishThreshold;
+    private String healthIdReplenishMaxBlockSize;
     private String hidLocalStoragePath;
+    private String hidStartupMinPoolSize;
+    private String hidStartupBatchSize;
+    private String hidStartupConcurrency;
     private String disablePost;
+    private String httpMaxConnections;
+    private String httpMaxConnectionsPerHost;
+    private String httpConnectTimeout;
+    private String httpReadTimeout;
+    private String httpConnectionRequestTimeout;
+    private String httpKeepAlive;
+    private String httpIdleTimeout;
+    private String userInfoCacheSize;
+    private String userInfoCacheTtl;
+    private String userInfoCacheRefreshAhead;
+    private String userInfoCacheStaleWindow;
+    private String userInfoCacheOffHeapSize;
+    private String userInfoCacheDiskSize;
+    private String cacheDiskPath;
+    private String patientCacheSize;
+    private String patientCacheTtl;
+    private String patientCacheOffHeapSize;
+    private String patientCacheDiskSize;
+    private String patientCacheConfidentialOnHeapOnly;
+    private String patientResponseCacheSize;
+    private String patientResponseCacheOffHeapSize;
+    private String patientBatchMaxSize;
+    private String patientBatchConcurrency;
+    private String patientCreateMaxInFlight;
+    private String patientWriteStrategy;
 
     private MCIProperties() {
         Map<String, String> env = System.getenv();
@@ -43,6 +89,20 @@ public class MCIProperties {
         this.cassandraUser = env.get("CASSANDRA_USER");
         this.cassandraTimeout = env.get("CASSANDRA_TIMEOUT");
         this.cassandraVersion = env.get("CASSANDRA_VERSION");
+        this.cassandraLocalDc = env.get("CASSANDRA_LOCAL_DC");
+        this.cassandraCoreConnectionsPerHost = env.get("CASSANDRA_CORE_CONNECTIONS_PER_HOST");
+        this.cassandraMaxConnectionsPerHost = env.get("CASSANDRA_MAX_CONNECTIONS_PER_HOST");
+        this.cassandraMaxRequestsPerConnection = env.get("CASSANDRA_MAX_REQUESTS_PER_CONNECTION");
+        this.cassandraReconnectionBaseDelay = env.get("CASSANDRA_RECONNECTION_BASE_DELAY");
+        this.cassandraReconnectionMaxDelay = env.get("CASSANDRA_RECONNECTION_MAX_DELAY");
+        this.cassandraWriteConsistency = env.get("CASSANDRA_WRITE_CONSISTENCY");
+        this.cassandraReadConsistency = env.get("CASSANDRA_READ_CONSISTENCY");
+        this.cassandraMasterDataConsistency = env.get("CASSANDRA_MASTER_DATA_CONSISTENCY");
+        this.cassandraReconciliationConsistency = env.get("CASSANDRA_RECONCILIATION_CONSISTENCY");
+        this.cassandraSpeculativeMaxExecutions = env.get("CASSANDRA_SPECULATIVE_MAX_EXECUTIONS");
+        this.cassandraSpeculativeDelay = env.get("CASSANDRA_SPECULATIVE_DELAY");
+        this.cassandraSpeculativePercentile = env.get("CASSANDRA_SPECULATIVE_PERCENTILE");
+        this.masterDataRefreshInterval = env.get("MASTER_DATA_REFRESH_INTERVAL");
         this.mciBaseUrl = env.get("MCI_BASE_URL");
         this.mciOrgCode = env.get("MCI_ORG_CODE");
         this.patientLinkUri = env.get("PATIENT_LINK_URI");
@@ -60,8 +120,37 @@ public class MCIProperties {
         this.healthIdReplenishDelay = env.get("HID_REPLENISH_DELAY");
         this.healthIdReplenishBlockSize = env.get("HID_REPLENISH_BLOCK_SIZE");
         this.healthIdReplenishThreshold = env.get("HID_REPLENISH_THRESHOLD");
+        this.healthIdReplenishMaxBlockSize = env.get("HID_REPLENISH_MAX_BLOCK_SIZE");
         this.hidLocalStoragePath = env.get("HID_LOCAL_STORAGE_PATH");
+        this.hidStartupMinPoolSize = env.get("HID_STARTUP_MIN_POOL_SIZE");
+        this.hidStartupBatchSize = env.get("HID_STARTUP_BATCH_SIZE");
+        this.hidStartupConcurrency = env.get("HID_STARTUP_CONCURRENCY");
         this.disablePost = env.get("DISABLE_POST");
+        this.httpMaxConnections = env.get("HTTP_MAX_CONNECTIONS");
+        this.httpMaxConnectionsPerHost = env.get("HTTP_MAX_CONNECTIONS_PER_HOST");
+        this.httpConnectTimeout = env.get("HTTP_CONNECT_TIMEOUT");
+        this.httpReadTimeout = env.get("HTTP_READ_TIMEOUT");
+        this.httpConnectionRequestTimeout = env.get("HTTP_CONNECTION_REQUEST_TIMEOUT");
+        this.httpKeepAlive = env.get("HTTP_KEEP_ALIVE");
+        this.httpIdleTimeout = env.get("HTTP_IDLE_TIMEOUT");
+        this.userInfoCacheSize = env.get("USER_INFO_CACHE_SIZE");
+        this.userInfoCacheTtl = env.get("USER_INFO_CACHE_TTL");
+        this.userInfoCacheRefreshAhead = env.get("USER_INFO_CACHE_REFRESH_AHEAD");
+        this.userInfoCacheStaleWindow = env.get("USER_INFO_CACHE_STALE_WINDOW");
+        this.userInfoCacheOffHeapSize = env.get("USER_INFO_CACHE_OFFHEAP_MB");
+        this.userInfoCacheDiskSize = env.get("USER_INFO_CACHE_DISK_MB");
+        this.cacheDiskPath = env.get("CACHE_DISK_PATH");
+        this.patientCacheSize = env.get("PATIENT_CACHE_SIZE");
+        this.patientCacheTtl = env.get("PATIENT_CACHE_TTL");
+        this.patientCacheOffHeapSize = env.get("PATIENT_CACHE_OFFHEAP_MB");
+        this.patientCacheDiskSize = env.get("PATIENT_CACHE_DISK_MB");
+        this.patientCacheConfidentialOnHeapOnly = env.get("PATIENT_CACHE_CONFIDENTIAL_ON_HEAP_ONLY");
+        this.patientResponseCacheSize = env.get("PATIENT_RESPONSE_CACHE_SIZE");
+        this.patientResponseCacheOffHeapSize = env.get("PATIENT_RESPONSE_CACHE_OFFHEAP_MB");
+        this.patientBatchMaxSize = env.get("PATIENT_BATCH_MAX_SIZE");
+        this.patientBatchConcurrency = env.get("PATIENT_BATCH_CONCURRENCY");
+        this.patientCreateMaxInFlight = env.get("PATIENT_CREATE_MAX_IN_FLIGHT");
+        this.patientWriteStrategy = env.get("PATIENT_WRITE_STRATEGY");
     }
 
     public static MCIProperties getInstance() {
@@ -98,6 +187,67 @@ public class MCIProperties {
         return Integer.parseInt(cassandraVersion);
     }
 
+    //CASSANDRA_HOST takes a comma separated list of contact points
+    public String[] getCassandraHosts() {
+        return cassandraHost.trim().split("\\s*,\\s*");
+    }
+
+    public String getCassandraLocalDc() {
+        return cassandraLocalDc == null || cassandraLocalDc.trim().isEmpty() ? null : cassandraLocalDc.trim();
+    }
+
+    public Integer getCassandraCoreConnectionsPerHost() {
+        return parseInt(cassandraCoreConnectionsPerHost, 2);
+    }
+
+    public Integer getCassandraMaxConnectionsPerHost() {
+        return parseInt(cassandraMaxConnectionsPerHost, 8);
+    }
+
+    public Integer getCassandraMaxRequestsPerConnection() {
+        return parseInt(cassandraMaxRequestsPerConnection, 128);
+    }
+
+    public Integer getCassandraReconnectionBaseDelay() {
+        return parseInt(cassandraReconnectionBaseDelay, 1000);
+    }
+
+    public Integer getCassandraReconnectionMaxDelay() {
+        return parseInt(cassandraReconnectionMaxDelay, 60 * 1000);
+    }
+
+    public ConsistencyLevel getCassandraWriteConsistency() {
+        return parseConsistencyLevel(cassandraWriteConsistency, ConsistencyLevel.LOCAL_QUORUM);
+    }
+
+    public ConsistencyLevel getCassandraReadConsistency() {
+        return parseConsistencyLevel(cassandraReadConsistency, ConsistencyLevel.LOCAL_QUORUM);
+    }
+
+    public ConsistencyLevel getCassandraMasterDataConsistency() {
+        return parseConsistencyLevel(cassandraMasterDataConsistency, ConsistencyLevel.LOCAL_ONE);
+    }
+
+    public ConsistencyLevel getCassandraReconciliationConsistency() {
+        return parseConsistencyLevel(cassandraReconciliationConsistency, ConsistencyLevel.LOCAL_QUORUM);
+    }
+
+    public Integer getCassandraSpeculativeMaxExecutions() {
+        return parseInt(cassandraSpeculativeMaxExecutions, 1);
+    }
+
+    public Integer getCassandraSpeculativeDelay() {
+        return parseInt(cassandraSpeculativeDelay, 50);
+    }
+
+    public Double getCassandraSpeculativePercentile() {
+        return parseDouble(cassandraSpeculativePercentile, 99.0);
+    }
+
+    public Integer getMasterDataRefreshInterval() {
+        return parseInt(masterDataRefreshInterval, 10 * 60 * 1000);
+    }
+
     public String getMciBaseUrl() {
         return mciBaseUrl;
     }
@@ -138,6 +288,10 @@ public class MCIProperties {
         return Integer.parseInt(healthIdReplenishThreshold);
     }
 
+    public Integer getHealthIdReplenishMaxBlockSize() {
+        return parseInt(healthIdReplenishMaxBlockSize, 10 * getHealthIdReplenishBlockSize());
+    }
+
     public String getIdpXAuthToken() {
         return idpXAuthToken;
     }
@@ -162,6 +316,18 @@ public class MCIProperties {
         return hidLocalStoragePath;
     }
 
+    public Integer getHidStartupMinPoolSize() {
+        return parseInt(hidStartupMinPoolSize, getHealthIdReplenishThreshold());
+    }
+
+    public Integer getHidStartupBatchSize() {
+        return parseInt(hidStartupBatchSize, 100);
+    }
+
+    public Integer getHidStartupConcurrency() {
+        return parseInt(hidStartupConcurrency, 8);
+    }
+
     public String getIdpUserInfoUrl() {
         return idpUserInfoUrl;
     }
@@ -173,4 +339,122 @@ public class MCIProperties {
     public Boolean getDisablePost() {
         return Boolean.valueOf(disablePost);
     }
+
+    public Integer getHttpMaxConnections() {
+        return parseInt(httpMaxConnections, 50);
+    }
+
+    public Integer getHttpMaxConnectionsPerHost() {
+        return parseInt(httpMaxConnectionsPerHost, 20);
+    }
+
+    public Integer getHttpConnectTimeout() {
+        return parseInt(httpConnectTimeout, 5000);
+    }
+
+    public Integer getHttpReadTimeout() {
+        return parseInt(httpReadTimeout, 30000);
+    }
+
+    public Integer getHttpConnectionRequestTimeout() {
+        return parseInt(httpConnectionRequestTimeout, 5000);
+    }
+
+    public Integer getHttpKeepAlive() {
+        return parseInt(httpKeepAlive, 30000);
+    }
+
+    public Integer getHttpIdleTimeout() {
+        return parseInt(httpIdleTimeout, 30000);
+    }
+
+    public Integer getUserInfoCacheSize() {
+        return parseInt(userInfoCacheSize, 500);
+    }
+
+    public Integer getUserInfoCacheTtl() {
+        return parseInt(userInfoCacheTtl, 2 * 60 * 1000);
+    }
+
+    public Integer getUserInfoCacheRefreshAhead() {
+        return parseInt(userInfoCacheRefreshAhead, 30 * 1000);
+    }
+
+    public Integer getUserInfoCacheStaleWindow() {
+        return parseInt(userInfoCacheStaleWindow, 60 * 1000);
+    }
+
+    public Integer getUserInfoCacheOffHeapSize() {
+        return parseInt(userInfoCacheOffHeapSize, 0);
+    }
+
+    public Integer getUserInfoCacheDiskSize() {
+        return parseInt(userInfoCacheDiskSize, 0);
+    }
+
+    public String getCacheDiskPath() {
+        if (cacheDiskPath == null || cacheDiskPath.trim().isEmpty()) {
+            return new File(System.getProperty("java.io.tmpdir"), "mci-cache").getPath();
+        }
+        return cacheDiskPath;
+    }
+
+    public Integer getPatientCacheSize() {
+        return parseInt(patientCacheSize, 10000);
+    }
+
+    public Integer getPatientCacheTtl() {
+        return parseInt(patientCacheTtl, 5 * 60 * 1000);
+    }
+
+    public Integer getPatientCacheOffHeapSize() {
+        return parseInt(patientCacheOffHeapSize, 0);
+    }
+
+    public Integer getPatientCacheDiskSize() {
+        return parseInt(patientCacheDiskSize, 0);
+    }
+
+    public Boolean getPatientCacheConfidentialOnHeapOnly() {
+        return patientCacheConfidentialOnHeapOnly == null || Boolean.valueOf(patientCacheConfidentialOnHeapOnly);
+    }
+
+    public Integer getPatientResponseCacheSize() {
+        return parseInt(patientResponseCacheSize, 1000);
+    }
+
+    public Integer getPatientResponseCacheOffHeapSize() {
+        return parseInt(patientResponseCacheOffHeapSize, 0);
+    }
+
+    public Integer getPatientBatchMaxSize() {
+        return parseInt(patientBatchMaxSize, 500);
+    }
+
+    public Integer getPatientBatchConcurrency() {
+        return parseInt(patientBatchConcurrency, 32);
+    }
+
+    public Integer getPatientCreateMaxInFlight() {
+        return parseInt(patientCreateMaxInFlight, 64);
+    }
+
+    public PatientWriteStrategy getPatientWriteStrategy() {
+        if (patientWriteStrategy == null || patientWriteStrategy.trim().isEmpty()) {
+            return PatientWriteStrategy.LOGGED_BATCH;
+        }
+        return PatientWriteStrategy.valueOf(patientWriteStrategy.trim().toUpperCase());
+    }
+
+    private static ConsistencyLevel parseConsistencyLevel(String value, ConsistencyLevel defaultValue) {
+        return value == null || value.trim().isEmpty() ? defaultValue : ConsistencyLevel.valueOf(value.trim().toUpperCase());
+    }
+
+    private static int parseInt(String value, int defaultValue) {
+        return value == null || value.trim().isEmpty() ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    private static double parseDouble(String value, double defaultValue) {
+        return value == null || value.trim().isEmpty() ? defaultValue : Double.parseDouble(value.trim());
+    }
 }
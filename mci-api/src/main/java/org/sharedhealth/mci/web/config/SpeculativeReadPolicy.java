@@ -0,0 +1,139 @@
+package org.sharedhealth.mci.web.config;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.datastax.driver.core.*;
+import com.datastax.driver.core.policies.NoSpeculativeExecutionPolicy;
+import com.datastax.driver.core.policies.SpeculativeExecutionPolicy;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/*
+    Sends a read to another replica when the first one has not answered in time, so one replica slowed down by
+    compaction or GC does not hold up the request. Only statements allowed through allow() are speculated on.
+
+    The delay is the configured percentile of the latency of those statements, or the fixed delay until enough
+    latencies are known. Executions fired, and won by a replica other than the first one, are reported as metrics.
+* */
+public class SpeculativeReadPolicy implements SpeculativeExecutionPolicy, LatencyTracker {
+    private static final String METRICS_PREFIX = "cassandra.speculative-reads";
+    private static final long MIN_SAMPLES = 100;
+    private static final long DELAY_REFRESH_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    private final int maxExecutions;
+    private final double percentile;
+    private final Set<PreparedStatement> speculativeStatements = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    //first host of each read that has fired a speculative execution, until one of its executions answers
+    private final Map<Statement, Host> speculating = new ConcurrentHashMap<>();
+    private final Timer latencies;
+    private final Meter fired;
+    private final Meter won;
+    private volatile long delay;
+    private volatile long delayComputedAt;
+    private volatile Cluster cluster;
+
+    public SpeculativeReadPolicy(MCIProperties mciProperties) {
+        this(mciProperties.getCassandraSpeculativeMaxExecutions(), mciProperties.getCassandraSpeculativeDelay(),
+                mciProperties.getCassandraSpeculativePercentile());
+    }
+
+    SpeculativeReadPolicy(int maxExecutions, long fixedDelay, double percentile) {
+        this.maxExecutions = maxExecutions;
+        this.percentile = percentile;
+        this.delay = fixedDelay;
+        this.delayComputedAt = System.nanoTime();
+
+        MetricRegistry registry = MCIMetrics.getRegistry();
+        latencies = registry.timer(name(METRICS_PREFIX, "latency"));
+        fired = registry.meter(name(METRICS_PREFIX, "fired"));
+        won = registry.meter(name(METRICS_PREFIX, "won"));
+        String delayName = name(METRICS_PREFIX, "delay");
+        if (!registry.getNames().contains(delayName)) {
+            registry.register(delayName, (Gauge<Long>) () -> delay);
+        }
+    }
+
+    public void allow(PreparedStatement preparedStatement) {
+        speculativeStatements.add(preparedStatement);
+    }
+
+    @Override
+    public void init(Cluster cluster) {
+        this.cluster = cluster;
+        cluster.register(this);
+    }
+
+    @Override
+    public SpeculativeExecutionPlan newPlan(String loggedKeyspace, Statement statement) {
+        if (maxExecutions <= 0 || !isSpeculative(statement)) {
+            return NoSpeculativeExecutionPolicy.INSTANCE.newPlan(loggedKeyspace, statement);
+        }
+        return new SpeculativeExecutionPlan() {
+            private int executions;
+            private Host firstHost;
+
+            //called once each execution has been sent, the first call is for the initial execution
+            @Override
+            public long nextExecution(Host lastQueried) {
+                if (executions == 0) {
+                    firstHost = lastQueried;
+                } else {
+                    fired.mark();
+                    speculating.putIfAbsent(statement, firstHost);
+                }
+                return executions++ < maxExecutions ? getDelay() : -1;
+            }
+        };
+    }
+
+    @Override
+    public void update(Host host, Statement statement, Exception exception, long newLatencyNanos) {
+        if (!isSpeculative(statement)) return;
+        Host firstHost = speculating.remove(statement);
+        if (exception != null) return;
+        if (firstHost != null && !firstHost.equals(host)) {
+            won.mark();
+        }
+        latencies.update(newLatencyNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void onRegister(Cluster cluster) {
+    }
+
+    @Override
+    public void onUnregister(Cluster cluster) {
+    }
+
+    @Override
+    public void close() {
+        if (cluster != null) {
+            cluster.unregister(this);
+        }
+    }
+
+    long getDelay() {
+        long now = System.nanoTime();
+        if (percentile > 0 && now - delayComputedAt > DELAY_REFRESH_INTERVAL) {
+            delayComputedAt = now;
+            if (latencies.getCount() >= MIN_SAMPLES) {
+                double latencyAtPercentile = latencies.getSnapshot().getValue(percentile / 100);
+                delay = Math.max(1, TimeUnit.NANOSECONDS.toMillis((long) latencyAtPercentile));
+            }
+        }
+        return delay;
+    }
+
+    private boolean isSpeculative(Statement statement) {
+        return statement instanceof BoundStatement
+                && speculativeStatements.contains(((BoundStatement) statement).preparedStatement());
+    }
+}
@@ -5,6 +5,8 @@ import org.sharedhealth.mci.web.security.AuthorizationFilter;
 import org.sharedhealth.mci.web.security.TokenAuthenticationFilter;
 import org.sharedhealth.mci.web.util.MCIConstants;
 
+import java.util.List;
+
 import static java.util.Arrays.asList;
 import static org.sharedhealth.mci.web.security.UserInfo.*;
 import static org.sharedhealth.mci.web.util.MCIConstants.API_VERSION;
@@ -18,13 +20,17 @@ public class MCIRoutes {
         String patientURIPath = String.format("%s%s", API_VERSION, PATIENT_URI_PATH);
 
         if(!MCIProperties.getInstance().getDisablePost()){
-            before(patientURIPath, new AuthorizationFilter(asList(PROVIDER_GROUP, FACILITY_GROUP)));
+            before(patientURIPath, new AuthorizationFilter(asList(PROVIDER_GROUP, FACILITY_GROUP), "POST"));
             post(patientURIPath, patientController::createPatient);
         }
 
+        List<String> patientReadGroups = asList(PROVIDER_GROUP, FACILITY_GROUP, PATIENT_GROUP, MCI_ADMIN, MCI_APPROVER, SHR_SYSTEM_ADMIN_GROUP);
+        before(patientURIPath, new AuthorizationFilter(patientReadGroups, "GET"));
+        get(patientURIPath, patientController::findPatients);
+
         String hidParam = ":hid";
         String patientByHIDURIPath = String.format("%s%s%s", patientURIPath, MCIConstants.URL_SEPARATOR, hidParam);
-        before(patientByHIDURIPath, new AuthorizationFilter(asList(PROVIDER_GROUP, FACILITY_GROUP, PATIENT_GROUP, MCI_ADMIN, MCI_APPROVER, SHR_SYSTEM_ADMIN_GROUP)));
+        before(patientByHIDURIPath, new AuthorizationFilter(patientReadGroups));
         get(patientByHIDURIPath, (request, response) -> patientController.getPatient(hidParam, request, response));
     }
 }
@@ -7,24 +7,41 @@ import org.apache.http.HttpStatus;
 import org.apache.http.entity.ContentType;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.sharedhealth.mci.web.config.MCIProperties;
+import org.sharedhealth.mci.web.model.EncodedPatient;
 import org.sharedhealth.mci.web.model.MCIResponse;
 import org.sharedhealth.mci.web.security.UserInfo;
 import org.sharedhealth.mci.web.service.PatientService;
 import org.sharedhealth.mci.web.util.FhirContextHelper;
+import org.sharedhealth.mci.web.util.TimeUuidUtil;
 import spark.Request;
 import spark.Response;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.AccessDeniedException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.UUID;
 
+import static java.time.format.DateTimeFormatter.RFC_1123_DATE_TIME;
 import static org.sharedhealth.mci.web.security.AuthorizationFilter.USER_DETAILS_KEY;
+import static org.sharedhealth.mci.web.util.HttpUtil.*;
 
 public class PatientController {
     private final static Logger logger = LogManager.getLogger(PatientController.class);
+    private static final String HEALTH_ID_SEARCH_PARAM = "_id";
+    private static final String CREATE_RETRY_AFTER_SECONDS = "1";
     private final PatientService patientService;
+    private final int maxBatchSize;
 
-    public PatientController(PatientService patientService) {
+    public PatientController(PatientService patientService, MCIProperties mciProperties) {
         this.patientService = patientService;
+        this.maxBatchSize = mciProperties.getPatientBatchMaxSize();
     }
 
     public String createPatient(Request request, Response response) throws IOException {
@@ -44,6 +61,9 @@ public class PatientController {
         UserInfo userInfo = request.attribute(USER_DETAILS_KEY);
         MCIResponse mciResponse = patientService.createPatient(bundle, userInfo);
         response.status(mciResponse.getHttpStatus());
+        if (mciResponse.getHttpStatus() == HttpStatus.SC_SERVICE_UNAVAILABLE) {
+            response.header(RETRY_AFTER_KEY, CREATE_RETRY_AFTER_SECONDS);
+        }
         response.type(ContentType.APPLICATION_JSON.getMimeType());
         return mciResponse.toString();
     }
@@ -52,22 +72,88 @@ public class PatientController {
         logger.info(String.format("ACCESS: EMAIL=%s ACTION=%s", userDetails.getProperties().getEmail(), action));
     }
 
-    public String getPatient(String hidParam, Request request, Response response) throws AccessDeniedException {
+    public byte[] getPatient(String hidParam, Request request, Response response) throws AccessDeniedException {
         String healthId = request.params(hidParam);
         UserInfo userDetails = request.attribute(USER_DETAILS_KEY);
-        if (userDetails.getProperties().isPatientUserOnly()
-                && !userDetails.getProperties().getPatientHid().equals(healthId)) {
+        if (!userDetails.getProperties().canAccessPatient(healthId)) {
             throw new AccessDeniedException(String.format("Access to user %s is denied", userDetails.getProperties().getEmail()));
         }
         logAccessDetails(String.format("Find patient given (healthId) : %s", healthId), request.attribute(USER_DETAILS_KEY));
         logger.debug(String.format("find patient request by HID %s", healthId));
-        Bundle patientBundle = patientService.findPatientByHealthId(healthId);
+        if (request.headers(IF_NONE_MATCH_KEY) != null || request.headers(IF_MODIFIED_SINCE_KEY) != null) {
+            //only the update time is read to answer a conditional request, the patient row is read when it has changed
+            UUID updatedAt = patientService.findPatientUpdatedAt(healthId);
+            if (isNotModified(request, updatedAt)) {
+                setValidators(response, updatedAt);
+                response.status(HttpStatus.SC_NOT_MODIFIED);
+                return new byte[0];
+            }
+        }
+        EncodedPatient encodedPatient = patientService.findEncodedPatientByHealthId(healthId);
+        setValidators(response, encodedPatient.getUpdatedAt());
         response.status(200);
         response.type(ContentType.APPLICATION_XML.getMimeType());
-        return formatPatient(patientBundle);
+        //returned as is, spark writes byte arrays straight to the response stream
+        return encodedPatient.getContent();
+    }
+
+    public byte[] findPatients(Request request, Response response) {
+        Set<String> healthIds = new LinkedHashSet<>();
+        String[] idParams = request.queryParamsValues(HEALTH_ID_SEARCH_PARAM);
+        if (idParams != null) {
+            for (String idParam : idParams) {
+                for (String healthId : idParam.split(",")) {
+                    if (!healthId.trim().isEmpty()) {
+                        healthIds.add(healthId.trim());
+                    }
+                }
+            }
+        }
+        if (healthIds.isEmpty() || healthIds.size() > maxBatchSize) {
+            MCIResponse mciResponse = new MCIResponse(HttpStatus.SC_BAD_REQUEST);
+            mciResponse.setMessage(String.format("Between 1 and %s health ids must be given in %s", maxBatchSize, HEALTH_ID_SEARCH_PARAM));
+            response.status(mciResponse.getHttpStatus());
+            response.type(ContentType.APPLICATION_JSON.getMimeType());
+            return mciResponse.toString().getBytes(StandardCharsets.UTF_8);
+        }
+        UserInfo userDetails = request.attribute(USER_DETAILS_KEY);
+        logAccessDetails(String.format("Find patients given (healthIds) : %s", healthIds), userDetails);
+        Bundle bundle = patientService.findPatientsByHealthIds(healthIds, userDetails);
+        response.status(200);
+        response.type(ContentType.APPLICATION_XML.getMimeType());
+        return FhirContextHelper.encodeResourceToBytes(bundle);
+    }
+
+    private boolean isNotModified(Request request, UUID updatedAt) {
+        String ifNoneMatch = request.headers(IF_NONE_MATCH_KEY);
+        if (ifNoneMatch != null) {
+            String eTag = getETag(updatedAt);
+            for (String tag : ifNoneMatch.split(",")) {
+                String candidate = tag.trim();
+                if (candidate.startsWith("W/")) {
+                    candidate = candidate.substring(2);
+                }
+                if ("*".equals(candidate) || eTag.equals(candidate)) return true;
+            }
+            return false;
+        }
+        try {
+            long ifModifiedSince = ZonedDateTime.parse(request.headers(IF_MODIFIED_SINCE_KEY), RFC_1123_DATE_TIME).toEpochSecond();
+            return TimeUuidUtil.getTimeFromUUID(updatedAt) / 1000 <= ifModifiedSince;
+        } catch (DateTimeParseException e) {
+            return false;
+        }
+    }
+
+    //a patient without any update or creation time gets no validators rather than ones nothing can match
+    private void setValidators(Response response, UUID updatedAt) {
+        if (updatedAt == null) return;
+        response.header(ETAG_KEY, getETag(updatedAt));
+        Instant lastModified = Instant.ofEpochMilli(TimeUuidUtil.getTimeFromUUID(updatedAt));
+        response.header(LAST_MODIFIED_KEY, RFC_1123_DATE_TIME.format(lastModified.atZone(ZoneOffset.UTC)));
     }
 
-    private String formatPatient(Bundle patientBundle) {
-        return FhirContextHelper.encodeResource(patientBundle);
+    private String getETag(UUID updatedAt) {
+        return "\"" + updatedAt + "\"";
     }
 }
@@ -3,13 +3,16 @@ package org.sharedhealth.mci.web.launch;
 import com.datastax.driver.mapping.MappingManager;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.ehcache.Cache;
 import org.ehcache.CacheManager;
 import org.ehcache.config.CacheConfiguration;
 import org.ehcache.config.builders.CacheConfigurationBuilder;
-import org.ehcache.config.builders.CacheManagerBuilder;
 import org.ehcache.config.builders.ResourcePoolsBuilder;
 import org.ehcache.expiry.Duration;
 import org.ehcache.expiry.Expirations;
+import org.ehcache.impl.serialization.ByteArraySerializer;
+import org.sharedhealth.mci.web.config.JsonCacheSerializer;
+import org.sharedhealth.mci.web.config.MCICacheConfig;
 import org.sharedhealth.mci.web.config.MCICassandraConfig;
 import org.sharedhealth.mci.web.config.MCIProperties;
 import org.sharedhealth.mci.web.controller.GlobalExceptionHandler;
@@ -17,12 +20,17 @@ import org.sharedhealth.mci.web.controller.MCIRoutes;
 import org.sharedhealth.mci.web.controller.PatientController;
 import org.sharedhealth.mci.web.mapper.FHIRBundleMapper;
 import org.sharedhealth.mci.web.mapper.MCIPatientMapper;
+import org.sharedhealth.mci.web.mapper.MCIUris;
 import org.sharedhealth.mci.web.model.IdentityStore;
 import org.sharedhealth.mci.web.model.MciHealthIdStore;
+import org.sharedhealth.mci.web.model.Patient;
+import org.sharedhealth.mci.web.repository.CachingPatientRepository;
 import org.sharedhealth.mci.web.repository.MasterDataRepository;
 import org.sharedhealth.mci.web.repository.PatientRepository;
+import org.sharedhealth.mci.web.repository.PreparedStatementRegistry;
+import org.sharedhealth.mci.web.security.CachedUserInfo;
 import org.sharedhealth.mci.web.security.TokenAuthenticationFilter;
-import org.sharedhealth.mci.web.security.UserInfo;
+import org.sharedhealth.mci.web.security.UserInfoLoader;
 import org.sharedhealth.mci.web.service.HealthIdService;
 import org.sharedhealth.mci.web.service.IdentityProviderService;
 import org.sharedhealth.mci.web.service.PatientService;
@@ -42,6 +50,9 @@ public class Application {
 
     private static final Logger logger = LogManager.getLogger(Application.class);
     public static final String IDENTITY_PROVIDER_CACHE = "identityProviderUserCache";
+    public static final String PATIENT_CACHE = "patientCache";
+    public static final String CONFIDENTIAL_PATIENT_CACHE = "confidentialPatientCache";
+    public static final String PATIENT_RESPONSE_CACHE = "patientResponseCache";
 
     private static final int ENOENT_NO_SUCH_FILE_OR_DIR_ERROR_CODE = 2;
     private static final int ENOENT_BAD_FILE_FORMAT_ERROR_CODE = 59;
@@ -73,6 +84,8 @@ public class Application {
         mciProperties = MCIProperties.getInstance();
         //instantiate all utilities here
 
+        instantiateCaches();
+
         instantiateDao();
 
         instantiateMappers();
@@ -93,24 +106,15 @@ public class Application {
         healthIdService = new HealthIdService
                 (identityProviderService, mciHealthIdStore, mciProperties);
 
-        patientService = new PatientService(mciPatientMapper, fhirBundleMapper, healthIdService, patientRepository, fhirPatientValidator);
+        patientService = new PatientService(mciPatientMapper, fhirBundleMapper, healthIdService, patientRepository, fhirPatientValidator,
+                cacheManager.getCache(PATIENT_RESPONSE_CACHE, String.class, byte[].class));
         //instantiate all services/mappers/ here
 
         instantiateControllers();
 
-        //instantiate MCIRoutes with all controllers here
-        CacheConfiguration<String, UserInfo> configuration = CacheConfigurationBuilder
-                .newCacheConfigurationBuilder(String.class, UserInfo.class, ResourcePoolsBuilder.heap(500))
-                .withExpiry(Expirations.timeToLiveExpiration(Duration.of(2 * 60, TimeUnit.SECONDS)))
-                .withExpiry(Expirations.timeToIdleExpiration(Duration.of(2 * 60, TimeUnit.SECONDS)))
-                .build();
-        cacheManager = CacheManagerBuilder.newCacheManagerBuilder()
-                .withCache(IDENTITY_PROVIDER_CACHE, configuration)
-                .build(true);
-
-        authenticationFilter = new TokenAuthenticationFilter(identityProviderService, cacheManager.getCache(IDENTITY_PROVIDER_CACHE, String.class, UserInfo.class));
-        new MCIRoutes(patientController, authenticationFilter);
-        //instantiate MCIRoutes with all controllers here
+        UserInfoLoader userInfoLoader = new UserInfoLoader(identityProviderService,
+                cacheManager.getCache(IDENTITY_PROVIDER_CACHE, String.class, CachedUserInfo.class), mciProperties);
+        authenticationFilter = new TokenAuthenticationFilter(userInfoLoader);
 
         try {
             healthIdService.loadFromFile();
@@ -119,30 +123,98 @@ public class Application {
             Spark.stop();
             System.exit(ENOENT_BAD_FILE_FORMAT_ERROR_CODE);
         }
+
+        //instantiate MCIRoutes with all controllers here
+        //mapping the first route starts the listener, so only do it once a minimum health id pool is available
+        new MCIRoutes(patientController, authenticationFilter);
+        //instantiate MCIRoutes with all controllers here
+
         //instantiate a scheduler to replenish healthIds
         createHealthIdReplenishScheduler();
         //instantiate a scheduler to replenish healthIds
+
+        createMasterDataRefreshScheduler();
     }
 
     private static void instantiateControllers() {
-        patientController = new PatientController(patientService);
+        patientController = new PatientController(patientService, mciProperties);
     }
 
     private static void instantiateMappers() {
-        mciPatientMapper = new MCIPatientMapper(mciProperties, masterDataRepository);
-        fhirBundleMapper = new FHIRBundleMapper(mciProperties);
+        MCIUris mciUris = new MCIUris(mciProperties);
+        mciPatientMapper = new MCIPatientMapper(mciUris, masterDataRepository);
+        fhirBundleMapper = new FHIRBundleMapper(mciUris);
+    }
+
+    private static void instantiateCaches() {
+        //entries outlive the ttl by the stale window, the loader decides whether they are fresh, due or stale
+        long userInfoCacheExpiry = mciProperties.getUserInfoCacheTtl() + mciProperties.getUserInfoCacheStaleWindow();
+        CacheConfiguration<String, CachedUserInfo> userInfoCacheConfiguration = CacheConfigurationBuilder
+                .newCacheConfigurationBuilder(String.class, CachedUserInfo.class, MCICacheConfig.resourcePools(
+                        mciProperties.getUserInfoCacheSize(), mciProperties.getUserInfoCacheOffHeapSize(), mciProperties.getUserInfoCacheDiskSize()))
+                .withExpiry(Expirations.timeToLiveExpiration(Duration.of(userInfoCacheExpiry, TimeUnit.MILLISECONDS)))
+                .withValueSerializer(new JsonCacheSerializer<>(CachedUserInfo.class))
+                .build();
+        MCICacheConfig cacheConfig = new MCICacheConfig(mciProperties)
+                .withCache(IDENTITY_PROVIDER_CACHE, userInfoCacheConfiguration);
+
+        if (mciProperties.getPatientCacheSize() > 0) {
+            Duration patientCacheTtl = Duration.of(mciProperties.getPatientCacheTtl(), TimeUnit.MILLISECONDS);
+            cacheConfig.withCache(PATIENT_CACHE, CacheConfigurationBuilder
+                    .newCacheConfigurationBuilder(String.class, Patient.class, MCICacheConfig.resourcePools(
+                            mciProperties.getPatientCacheSize(), mciProperties.getPatientCacheOffHeapSize(), mciProperties.getPatientCacheDiskSize()))
+                    .withExpiry(Expirations.timeToLiveExpiration(patientCacheTtl))
+                    .withValueSerializer(new JsonCacheSerializer<>(Patient.class))
+                    .build());
+            if (mciProperties.getPatientCacheConfidentialOnHeapOnly()) {
+                cacheConfig.withCache(CONFIDENTIAL_PATIENT_CACHE, CacheConfigurationBuilder
+                        .newCacheConfigurationBuilder(String.class, Patient.class, ResourcePoolsBuilder.heap(mciProperties.getPatientCacheSize()))
+                        .withExpiry(Expirations.timeToLiveExpiration(patientCacheTtl))
+                        .build());
+            }
+        }
+        if (mciProperties.getPatientResponseCacheSize() > 0) {
+            cacheConfig.withCache(PATIENT_RESPONSE_CACHE, CacheConfigurationBuilder
+                    .newCacheConfigurationBuilder(String.class, byte[].class, MCICacheConfig.resourcePools(
+                            mciProperties.getPatientResponseCacheSize(), mciProperties.getPatientResponseCacheOffHeapSize(), 0))
+                    .withExpiry(Expirations.timeToLiveExpiration(Duration.of(mciProperties.getPatientCacheTtl(), TimeUnit.MILLISECONDS)))
+                    .withValueSerializer(new ByteArraySerializer())
+                    .build());
+        }
+        cacheManager = cacheConfig.build();
     }
 
     private static void instantiateDao() {
         MappingManager mappingManager = MCICassandraConfig.getInstance().getMappingManager();
-        patientRepository = new PatientRepository(mappingManager);
-        masterDataRepository = new MasterDataRepository(mappingManager);
+        PreparedStatementRegistry statementRegistry = new PreparedStatementRegistry(mappingManager, mciProperties);
+        Cache<String, Patient> patientCache = cacheManager.getCache(PATIENT_CACHE, String.class, Patient.class);
+        if (patientCache != null) {
+            Cache<String, Patient> confidentialPatientCache = cacheManager.getCache(CONFIDENTIAL_PATIENT_CACHE, String.class, Patient.class);
+            patientRepository = new CachingPatientRepository(mappingManager, statementRegistry,
+                    mciProperties.getPatientWriteStrategy(), patientCache,
+                    confidentialPatientCache != null ? confidentialPatientCache : patientCache);
+        } else {
+            patientRepository = new PatientRepository(mappingManager, statementRegistry, mciProperties.getPatientWriteStrategy());
+        }
+        masterDataRepository = new MasterDataRepository(mappingManager, statementRegistry);
+        masterDataRepository.refresh();
     }
 
     private static void createHealthIdReplenishScheduler() {
         ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
-        scheduler.scheduleAtFixedRate(new HealthIdReplenishTask(healthIdService), mciProperties.getHealthIdReplenishInitialDelay(),
-                mciProperties.getHealthIdReplenishDelay(), TimeUnit.MILLISECONDS);
+        HealthIdReplenishTask healthIdReplenishTask = new HealthIdReplenishTask(healthIdService, scheduler);
+        mciHealthIdStore.setLowWaterListener(healthIdReplenishTask::wakeUp);
+        healthIdReplenishTask.start(mciProperties.getHealthIdReplenishInitialDelay());
+    }
+
+    private static void createMasterDataRefreshScheduler() {
+        ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "master-data-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long refreshInterval = mciProperties.getMasterDataRefreshInterval();
+        scheduler.scheduleWithFixedDelay(masterDataRepository::refresh, refreshInterval, refreshInterval, TimeUnit.MILLISECONDS);
     }
 
     public static MciHealthIdStore getMciHealthIdStore() {
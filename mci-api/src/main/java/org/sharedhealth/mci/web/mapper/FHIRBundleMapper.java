@@ -7,40 +7,31 @@ import ca.uhn.fhir.model.dstu2.composite.*;
 import ca.uhn.fhir.model.dstu2.resource.Bundle;
 import ca.uhn.fhir.model.dstu2.resource.Patient;
 import ca.uhn.fhir.model.dstu2.resource.RelatedPerson;
-import ca.uhn.fhir.model.dstu2.valueset.AdministrativeGenderEnum;
 import ca.uhn.fhir.model.dstu2.valueset.ContactPointSystemEnum;
 import ca.uhn.fhir.model.primitive.BooleanDt;
 import ca.uhn.fhir.model.primitive.DateTimeDt;
 import ca.uhn.fhir.model.primitive.StringDt;
 import com.google.common.base.Splitter;
 import com.google.common.collect.Lists;
-import org.apache.commons.collections4.BidiMap;
 import org.apache.commons.collections4.CollectionUtils;
-import org.apache.commons.collections4.bidimap.DualHashBidiMap;
 import org.apache.commons.lang3.StringUtils;
-import org.sharedhealth.mci.web.config.MCIProperties;
 import org.sharedhealth.mci.web.model.Relation;
-import org.sharedhealth.mci.web.util.MCIConstants;
 
 import java.util.*;
 
 import static org.sharedhealth.mci.web.util.FHIRConstants.*;
-import static org.sharedhealth.mci.web.util.JsonMapper.writeValueAsString;
+import static org.sharedhealth.mci.web.util.FhirTerminology.MCI_TO_FHIR_GENDER;
+import static org.sharedhealth.mci.web.util.JsonMapper.writeRelations;
 import static org.sharedhealth.mci.web.util.MCIConstants.*;
 
 public class FHIRBundleMapper {
     private final int ADDRESS_CODE_EACH_LEVEL_LENGTH = 2;
     private final String DEFAULT_DOB_TYPE = "1";
 
-    private MCIProperties mciProperties;
-    private BidiMap<String, AdministrativeGenderEnum> mciToFhirGenderMap = new DualHashBidiMap<>();
+    private final MCIUris uris;
 
-    public FHIRBundleMapper(MCIProperties mciProperties) {
-        this.mciProperties = mciProperties;
-
-        mciToFhirGenderMap.put(MCIConstants.MALE, AdministrativeGenderEnum.MALE);
-        mciToFhirGenderMap.put(MCIConstants.FEMALE, AdministrativeGenderEnum.FEMALE);
-        mciToFhirGenderMap.put(MCIConstants.OTHER, AdministrativeGenderEnum.OTHER);
+    public FHIRBundleMapper(MCIUris uris) {
+        this.uris = uris;
     }
 
     public org.sharedhealth.mci.web.model.Patient mapToMCIPatient(Bundle fhirPatientBundle) {
@@ -50,7 +41,7 @@ public class FHIRBundleMapper {
         HumanNameDt name = fhirPatient.getNameFirstRep();
         mciPatient.setGivenName(name.getGivenFirstRep().getValue());
         mciPatient.setSurName(name.getFamilyFirstRep().getValue());
-        mciPatient.setGender(mciToFhirGenderMap.getKey(fhirPatient.getGenderElement().getValueAsEnum()));
+        mciPatient.setGender(MCI_TO_FHIR_GENDER.inverse().get(fhirPatient.getGenderElement().getValueAsEnum()));
         setDateOfBirth(mciPatient, fhirPatient);
 
         AddressDt address = fhirPatient.getAddressFirstRep();
@@ -148,20 +139,23 @@ public class FHIRBundleMapper {
             relation.setHealthId(relationIdentifiersMap.get(MCI_IDENTIFIER_HID_CODE));
             patientRelations.add(relation);
         }
-        mciPatient.setRelations(writeValueAsString(patientRelations));
+        mciPatient.setRelationList(patientRelations);
+        //the json column stays authoritative, the mci service sharing this keyspace reads and writes only that one
+        mciPatient.setRelations(writeRelations(patientRelations));
     }
 
     private Map<String, String> getMapForIdentifiers(List<IdentifierDt> identifiers) {
         Map<String, String> identifiersMap = new HashMap<>();
-        identifiers.forEach((IdentifierDt identifierDt) -> {
+        if (identifiers.isEmpty()) return identifiersMap;
+        String mciValuesetURI = uris.getValuesetUri(MCI_PATIENT_IDENTIFIERS_VALUESET);
+        for (IdentifierDt identifierDt : identifiers) {
             CodingDt coding = identifierDt.getType().getCodingFirstRep();
-            String mciValuesetURI = getMCIValuesetURI(mciProperties.getMciBaseUrl(), MCI_PATIENT_IDENTIFIERS_VALUESET);
             /*
                 todo : once profiles are introduced, we should remove the check for system, as fhir itself should validate
             */
-            if (!mciValuesetURI.equals(coding.getSystem())) return;
+            if (!mciValuesetURI.equals(coding.getSystem())) continue;
             identifiersMap.put(coding.getCode(), identifierDt.getValue());
-        });
+        }
         return identifiersMap;
     }
 
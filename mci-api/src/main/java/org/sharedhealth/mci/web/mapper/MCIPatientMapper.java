@@ -8,66 +8,51 @@ import ca.uhn.fhir.model.dstu2.composite.*;
 import ca.uhn.fhir.model.dstu2.resource.Bundle;
 import ca.uhn.fhir.model.dstu2.resource.Patient;
 import ca.uhn.fhir.model.dstu2.resource.RelatedPerson;
-import ca.uhn.fhir.model.dstu2.valueset.AdministrativeGenderEnum;
 import ca.uhn.fhir.model.dstu2.valueset.BundleTypeEnum;
 import ca.uhn.fhir.model.dstu2.valueset.ContactPointSystemEnum;
 import ca.uhn.fhir.model.dstu2.valueset.LinkTypeEnum;
 import ca.uhn.fhir.model.primitive.*;
-import com.fasterxml.jackson.databind.ObjectMapper;
-import org.apache.commons.collections4.BidiMap;
 import org.apache.commons.collections4.CollectionUtils;
-import org.apache.commons.collections4.bidimap.DualHashBidiMap;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.hl7.fhir.instance.model.valuesets.PatientContactRelationship;
-import org.hl7.fhir.instance.model.valuesets.V3RoleCode;
-import org.sharedhealth.mci.web.config.MCIProperties;
 import org.sharedhealth.mci.web.model.MCIIdentifierEnumBinder;
 import org.sharedhealth.mci.web.model.Relation;
 import org.sharedhealth.mci.web.repository.MasterDataRepository;
 import org.sharedhealth.mci.web.util.FHIRConstants;
-import org.sharedhealth.mci.web.util.MCIConstants;
+import org.sharedhealth.mci.web.util.FhirTerminology;
 import org.sharedhealth.mci.web.util.TimeUuidUtil;
 
-import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 import static java.lang.String.format;
 import static org.apache.commons.lang3.StringUtils.isNotBlank;
 import static org.sharedhealth.mci.web.util.FHIRConstants.*;
+import static org.sharedhealth.mci.web.util.FhirTerminology.MCI_DOB_TYPE_DISPLAYS;
+import static org.sharedhealth.mci.web.util.FhirTerminology.MCI_TO_FHIR_GENDER;
+import static org.sharedhealth.mci.web.util.JsonMapper.readRelations;
 import static org.sharedhealth.mci.web.util.MCIConstants.*;
-import static org.sharedhealth.mci.web.util.StringUtils.ensureSuffix;
 
 public class MCIPatientMapper {
-    private MCIProperties mciProperties;
+    private final MCIUris uris;
     private MasterDataRepository masterDataRepository;
 
     private static final Logger logger = LogManager.getLogger(MCIPatientMapper.class);
 
     private static final String MASTER_DATA_EDUCATION_LEVEL_TYPE = "education_level";
     private static final String MASTER_DATA_OCCUPATION_TYPE = "occupation";
+    private static final MCIIdentifierEnumBinder IDENTIFIER_ENUM_BINDER = new MCIIdentifierEnumBinder();
 
-    private BidiMap<String, AdministrativeGenderEnum> mciToFhirGenderMap = new DualHashBidiMap<>();
-    private Map<String, String> mciDOBTypeMap = new HashMap<>();
-
-    public MCIPatientMapper(MCIProperties mciProperties, MasterDataRepository masterDataRepository) {
-        this.mciProperties = mciProperties;
+    public MCIPatientMapper(MCIUris uris, MasterDataRepository masterDataRepository) {
+        this.uris = uris;
         this.masterDataRepository = masterDataRepository;
-
-        mciToFhirGenderMap.put(MCIConstants.MALE, AdministrativeGenderEnum.MALE);
-        mciToFhirGenderMap.put(MCIConstants.FEMALE, AdministrativeGenderEnum.FEMALE);
-        mciToFhirGenderMap.put(MCIConstants.OTHER, AdministrativeGenderEnum.OTHER);
-
-        mciDOBTypeMap.put("1", "Declared");
-        mciDOBTypeMap.put("2", "Verified");
-        mciDOBTypeMap.put("3", "Estimated");
     }
 
     public Bundle mapPatientToBundle(org.sharedhealth.mci.web.model.Patient mciPatient) {
         Bundle bundle = new Bundle();
         bundle.setType(BundleTypeEnum.COLLECTION);
-        bundle.setId(UUID.randomUUID().toString());
+        bundle.setId(nameBasedUUID(mciPatient, "bundle"));
         ResourceMetadataMap metadataMap = new ResourceMetadataMap();
         metadataMap.put(ResourceMetadataKeyEnum.UPDATED, new InstantDt(TimeUuidUtil.getDateFromUUID(mciPatient.getUpdatedAt()), TemporalPrecisionEnum.MILLI));
         bundle.setResourceMetadata(metadataMap);
@@ -77,11 +62,11 @@ public class MCIPatientMapper {
 
     private void mapPatientAndAddToBundle(org.sharedhealth.mci.web.model.Patient mciPatient, Bundle bundle) {
         Patient fhirPatient = new Patient();
-        String patientEntryUri = TimeUuidUtil.uuidForDate(new Date()).toString();
+        String patientEntryUri = nameBasedUUID(mciPatient, "patient");
         bundle.addEntry().setResource(fhirPatient).setFullUrl(createFullUrlFromUUID(patientEntryUri));
 
         fhirPatient.addName(new HumanNameDt().addGiven(mciPatient.getGivenName()).addFamily(mciPatient.getSurName()));
-        fhirPatient.setGender(mciToFhirGenderMap.get(mciPatient.getGender()));
+        fhirPatient.setGender(MCI_TO_FHIR_GENDER.get(mciPatient.getGender()));
         fhirPatient.setBirthDate(mapDateOfBirth(mciPatient));
         fhirPatient.addAddress(mapAddress(mciPatient));
         fhirPatient.addLink(createSeeAlsoLink(mciPatient.getHealthId()));
@@ -111,20 +96,26 @@ public class MCIPatientMapper {
         mapCodeableConceptExtensionFor(MASTER_DATA_OCCUPATION_TYPE, mciPatient.getOccupation(), MCI_PATIENT_OCCUPATION_VALUESET, OCCUPATION_EXTENSION_NAME, fhirPatient);
 
         String dobType = mciPatient.getDobType();
-        CodingDt dobTypeCoding = new CodingDt(getMCIValuesetURI(mciProperties.getMciBaseUrl(), MCI_PATIENT_DOB_TYPE_VALUESET), dobType);
-        dobTypeCoding.setDisplay(mciDOBTypeMap.get(dobType));
+        CodingDt dobTypeCoding = new CodingDt(uris.getValuesetUri(MCI_PATIENT_DOB_TYPE_VALUESET), dobType);
+        dobTypeCoding.setDisplay(MCI_DOB_TYPE_DISPLAYS.get(dobType));
         ExtensionDt dobTypeExtension = new ExtensionDt()
                 .setUrl(getFhirExtensionUrl(DOB_TYPE_EXTENSION_NAME))
                 .setValue(new CodeableConceptDt().addCoding(dobTypeCoding));
         fhirPatient.addUndeclaredExtension(dobTypeExtension);
 
-        mapRelationsAndAddToBundle(mciPatient.getRelations(), bundle, patientEntryUri);
+        mapRelationsAndAddToBundle(mciPatient, bundle, patientEntryUri);
     }
 
     private String createFullUrlFromUUID(String patientEntryUri) {
         return "urn:uuid:" + patientEntryUri;
     }
 
+    //derived from the health id and last update, so an unchanged patient always maps to the same bundle
+    private String nameBasedUUID(org.sharedhealth.mci.web.model.Patient mciPatient, String entryName) {
+        String name = String.format("%s:%s:%s", mciPatient.getHealthId(), mciPatient.getUpdatedAt(), entryName);
+        return UUID.nameUUIDFromBytes(name.getBytes(StandardCharsets.UTF_8)).toString();
+    }
+
     private void mapDeceased(Patient fhirPatient, org.sharedhealth.mci.web.model.Patient mciPatient) {
         if (PATIENT_STATUS_UNKNOWN.equals(mciPatient.getStatus())) return;
         if (PATIENT_STATUS_ALIVE.equals(mciPatient.getStatus())) {
@@ -143,24 +134,21 @@ public class MCIPatientMapper {
     private void mapCodeableConceptExtensionFor(String masterDataType, String masterDataKey, String valuesetName, String extensionName, Patient fhirPatient) {
         if (StringUtils.isBlank(masterDataKey)) return;
         ExtensionDt extension = new ExtensionDt();
-        CodingDt coding = new CodingDt(getMCIValuesetURI(mciProperties.getMciBaseUrl(), valuesetName), masterDataKey);
+        CodingDt coding = new CodingDt(uris.getValuesetUri(valuesetName), masterDataKey);
         coding.setDisplay(masterDataRepository.findByTypeAndKey(masterDataType, masterDataKey).getValue());
         extension.setUrl(getFhirExtensionUrl(extensionName)).setValue(new CodeableConceptDt().addCoding(coding));
         fhirPatient.addUndeclaredExtension(extension);
     }
 
-    private void mapRelationsAndAddToBundle(String relationsString, Bundle bundle, String patientEntryUri) {
-        if (StringUtils.isBlank(relationsString)) return;
-        ObjectMapper objectMapper = new ObjectMapper();
-        List<Relation> relations;
-        try {
-            relations = objectMapper.readValue(relationsString,
-                    objectMapper.getTypeFactory().constructCollectionType(List.class, Relation.class));
-        } catch (IOException e) {
-            throw new RuntimeException("Can not parse patient relations", e);
+    private void mapRelationsAndAddToBundle(org.sharedhealth.mci.web.model.Patient mciPatient, Bundle bundle, String patientEntryUri) {
+        List<Relation> relations = mciPatient.getRelationList();
+        //patients not loaded through the repository only carry the json relations
+        if (relations == null && isNotBlank(mciPatient.getRelations())) {
+            relations = readRelations(mciPatient.getRelations());
         }
         if (CollectionUtils.isEmpty(relations)) return;
-        for (Relation relation : relations) {
+        for (int index = 0; index < relations.size(); index++) {
+            Relation relation = relations.get(index);
             RelatedPerson relatedPerson = new RelatedPerson().setPatient(new ResourceReferenceDt(createFullUrlFromUUID(patientEntryUri)));
 
             mapAsIdentifierForRelatedPerson(relatedPerson, relation.getNationalId(), MCI_IDENTIFIER_NID_CODE, relation.getHealthId());
@@ -174,36 +162,23 @@ public class MCIPatientMapper {
                     .setUrl(FHIRConstants.getFhirExtensionUrl(RELATION_ID_EXTENSION_NAME))
                     .setValue(new StringDt(relation.getId()));
             relatedPerson.addUndeclaredExtension(extensionDt);
-            String fullUrl = TimeUuidUtil.uuidForDate(new Date()).toString();
+            String fullUrl = nameBasedUUID(mciPatient, "relation:" + index);
             bundle.addEntry().setFullUrl(createFullUrlFromUUID(fullUrl)).setResource(relatedPerson);
         }
     }
 
     private void mapRelationshipType(String type, RelatedPerson relatedPerson) {
-        try {
-            PatientContactRelationship relationship = PatientContactRelationship.fromCode(type);
-            CodeableConceptDt codeableConceptDt = new CodeableConceptDt();
-            codeableConceptDt.addCoding()
-                    .setSystem(relationship.getSystem())
-                    .setCode(type)
-                    .setDisplay(relationship.getDisplay());
-            relatedPerson.setRelationship(codeableConceptDt);
-            return;
-        } catch (Exception e) {
-            logger.debug("Relationship type {} not found in Patient-Contact-Relationship valueset", type);
-        }
-        try {
-            V3RoleCode v3RoleCode = V3RoleCode.fromCode(type);
-            CodeableConceptDt codeableConceptDt = new CodeableConceptDt();
-            codeableConceptDt.addCoding()
-                    .setSystem(v3RoleCode.getSystem())
-                    .setCode(type)
-                    .setDisplay(v3RoleCode.getDisplay());
-            relatedPerson.setRelationship(codeableConceptDt);
-        } catch (Exception e) {
+        FhirTerminology.Coding relationship = FhirTerminology.findRelationshipCoding(type);
+        if (relationship == null) {
             String message = String.format("Relationship type %s in Patient-Contact-Relationship or V3RoleCode valuesets.", type);
             throw new RuntimeException(message);
         }
+        CodeableConceptDt codeableConceptDt = new CodeableConceptDt();
+        codeableConceptDt.addCoding()
+                .setSystem(relationship.getSystem())
+                .setCode(relationship.getCode())
+                .setDisplay(relationship.getDisplay());
+        relatedPerson.setRelationship(codeableConceptDt);
     }
 
     private DateDt mapDateOfBirth(org.sharedhealth.mci.web.model.Patient mciPatient) {
@@ -215,15 +190,13 @@ public class MCIPatientMapper {
     }
 
     private Patient.Link createSeeAlsoLink(String healthId) {
-        String patientLinkUri = ensureSuffix(mciProperties.getPatientLinkUri(), URL_SEPARATOR);
-        ResourceReferenceDt patientReference = new ResourceReferenceDt(String.format("%s%s", patientLinkUri, healthId));
+        ResourceReferenceDt patientReference = new ResourceReferenceDt(uris.getPatientLinkUri() + healthId);
         return new Patient.Link().setType(LinkTypeEnum.SEE_ALSO).setOther(patientReference);
     }
 
     private void mapMergedWith(Patient fhirPatient, String mergedWith) {
         if (StringUtils.isBlank(mergedWith)) return;
-        String mergedWithPatientUri = ensureSuffix(getMCIPatientURI(mciProperties.getMciBaseUrl()), URL_SEPARATOR);
-        ResourceReferenceDt mergedWithReference = new ResourceReferenceDt(String.format("%s%s", mergedWithPatientUri, mergedWith));
+        ResourceReferenceDt mergedWithReference = new ResourceReferenceDt(uris.getPatientUri() + mergedWith);
         fhirPatient.addLink().setType(LinkTypeEnum.REPLACE).setOther(mergedWithReference);
 
     }
@@ -241,8 +214,7 @@ public class MCIPatientMapper {
     private IdentifierDt createIdentifier(String value, String identifierTypeCode, String healthId) {
         IdentifierDt identifierDt = new IdentifierDt().setValue(value);
         if (StringUtils.isNotBlank(healthId)) {
-            String mciPatientURI = getMCIPatientURI(mciProperties.getMciBaseUrl());
-            identifierDt.setSystem(String.format("%s%s", mciPatientURI, healthId));
+            identifierDt.setSystem(uris.getPatientUri() + healthId);
         }
         setIdentifierType(identifierDt, identifierTypeCode);
         return identifierDt;
@@ -250,9 +222,8 @@ public class MCIPatientMapper {
 
     @SuppressWarnings("unchecked")
     private void setIdentifierType(IdentifierDt identifierDt, String identifierCode) {
-        BoundCodeableConceptDt identifierType = new BoundCodeableConceptDt<>(new MCIIdentifierEnumBinder());
-        String system = getMCIValuesetURI(mciProperties.getMciBaseUrl(), MCI_PATIENT_IDENTIFIERS_VALUESET);
-        identifierType.addCoding(new CodingDt(system, identifierCode));
+        BoundCodeableConceptDt identifierType = new BoundCodeableConceptDt<>(IDENTIFIER_ENUM_BINDER);
+        identifierType.addCoding(new CodingDt(uris.getValuesetUri(MCI_PATIENT_IDENTIFIERS_VALUESET), identifierCode));
         identifierDt.setType(identifierType);
     }
 
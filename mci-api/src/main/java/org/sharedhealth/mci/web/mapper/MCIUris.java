@@ -0,0 +1,48 @@
+package org.sharedhealth.mci.web.mapper;
+
+import com.google.common.collect.ImmutableMap;
+import org.sharedhealth.mci.web.config.MCIProperties;
+
+import static org.sharedhealth.mci.web.util.FHIRConstants.*;
+import static org.sharedhealth.mci.web.util.MCIConstants.URL_SEPARATOR;
+import static org.sharedhealth.mci.web.util.MCIConstants.getMCIPatientURI;
+import static org.sharedhealth.mci.web.util.StringUtils.ensureSuffix;
+
+/*
+    URIs the patient mappers derive from the configured urls, computed once instead of on every identifier and coding.
+    Built at startup and shared by both mappers, the urls it is derived from do not change while running.
+* */
+public class MCIUris {
+    private final ImmutableMap<String, String> valuesetUris;
+    private final String patientUri;
+    private final String patientLinkUri;
+
+    public MCIUris(MCIProperties mciProperties) {
+        String mciBaseUrl = mciProperties.getMciBaseUrl();
+        valuesetUris = ImmutableMap.of(
+                MCI_PATIENT_IDENTIFIERS_VALUESET, getMCIValuesetURI(mciBaseUrl, MCI_PATIENT_IDENTIFIERS_VALUESET),
+                MCI_PATIENT_EDUCATION_DETAILS_VALUESET, getMCIValuesetURI(mciBaseUrl, MCI_PATIENT_EDUCATION_DETAILS_VALUESET),
+                MCI_PATIENT_OCCUPATION_VALUESET, getMCIValuesetURI(mciBaseUrl, MCI_PATIENT_OCCUPATION_VALUESET),
+                MCI_PATIENT_DOB_TYPE_VALUESET, getMCIValuesetURI(mciBaseUrl, MCI_PATIENT_DOB_TYPE_VALUESET));
+        patientUri = ensureSuffix(getMCIPatientURI(mciBaseUrl), URL_SEPARATOR);
+        String configuredPatientLinkUri = mciProperties.getPatientLinkUri();
+        patientLinkUri = configuredPatientLinkUri != null ? ensureSuffix(configuredPatientLinkUri, URL_SEPARATOR) : null;
+    }
+
+    String getValuesetUri(String valuesetName) {
+        String valuesetUri = valuesetUris.get(valuesetName);
+        if (valuesetUri == null) {
+            throw new IllegalArgumentException("Unknown valueset " + valuesetName);
+        }
+        return valuesetUri;
+    }
+
+    //ends with a separator, a health id appended to it is the uri of that patient
+    String getPatientUri() {
+        return patientUri;
+    }
+
+    String getPatientLinkUri() {
+        return patientLinkUri;
+    }
+}
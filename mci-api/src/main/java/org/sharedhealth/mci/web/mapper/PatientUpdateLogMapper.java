@@ -6,6 +6,7 @@ import org.sharedhealth.mci.web.model.PatientUpdateLog;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.UUID;
 
 import static org.sharedhealth.mci.web.util.JsonMapper.writeValueAsString;
 import static org.sharedhealth.mci.web.util.RepositoryConstants.*;
@@ -13,10 +14,13 @@ import static org.sharedhealth.mci.web.util.RepositoryConstants.*;
 public class PatientUpdateLogMapper {
 
     public PatientUpdateLog map(Patient patient) {
-        String healthId = patient.getHealthId();
+        return map(patient.getHealthId(), patient.getCreatedAt());
+    }
+
+    public PatientUpdateLog map(String healthId, UUID createdAt) {
         PatientUpdateLog patientUpdateLog = new PatientUpdateLog();
         patientUpdateLog.setHealthId(healthId);
-        patientUpdateLog.setEventId(patient.getCreatedAt());
+        patientUpdateLog.setEventId(createdAt);
         patientUpdateLog.setEventType(EVENT_TYPE_CREATED);
 
         String changeSet = updateLogChangeSetForNewPatient(healthId);
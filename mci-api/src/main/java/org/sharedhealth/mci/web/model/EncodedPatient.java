@@ -0,0 +1,21 @@
+package org.sharedhealth.mci.web.model;
+
+import java.util.UUID;
+
+public class EncodedPatient {
+    private final byte[] content;
+    private final UUID updatedAt;
+
+    public EncodedPatient(byte[] content, UUID updatedAt) {
+        this.content = content;
+        this.updatedAt = updatedAt;
+    }
+
+    public byte[] getContent() {
+        return content;
+    }
+
+    public UUID getUpdatedAt() {
+        return updatedAt;
+    }
+}
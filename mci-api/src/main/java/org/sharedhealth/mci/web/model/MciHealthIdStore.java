@@ -2,15 +2,29 @@ package org.sharedhealth.mci.web.model;
 
 import org.sharedhealth.mci.web.exception.HealthIdExhaustedException;
 
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
 
+/*
+    Health ids are spread over a power-of-two number of lock-free sub-pools (stripes).
+    A request thread takes from its home stripe and only walks the other stripes when its
+    own one is empty, so concurrent creates rarely touch the same queue head and no caller
+    ever waits on a monitor - including while a replenish run is adding a new block.
+* */
 public class MciHealthIdStore {
     private static MciHealthIdStore mciHealthIdStore;
 
-    private Queue<String> mciHealthIds;
+    private final Queue<String>[] stripes;
+    private final int stripeMask;
+    private final LongAdder noOfHIDsLeft;
+    private final LongAdder noOfHIDsDispensed;
+    private volatile int lowWaterMark;
+    private volatile Runnable lowWaterListener;
 
     public static MciHealthIdStore getInstance() {
         if (mciHealthIdStore != null) return mciHealthIdStore;
@@ -19,34 +33,92 @@ public class MciHealthIdStore {
     }
 
     private MciHealthIdStore() {
-        this.mciHealthIds = new ConcurrentLinkedQueue<>();
+        this(Runtime.getRuntime().availableProcessors());
     }
 
-    private Queue<String> getMciHealthIds() {
-        return mciHealthIds;
+    MciHealthIdStore(int concurrencyLevel) {
+        int noOfStripes = concurrencyLevel <= 1 ? 1 : Integer.highestOneBit(concurrencyLevel - 1) << 1;
+        this.stripes = newStripes(noOfStripes);
+        for (int i = 0; i < noOfStripes; i++) {
+            stripes[i] = new ConcurrentLinkedQueue<>();
+        }
+        this.stripeMask = noOfStripes - 1;
+        this.noOfHIDsLeft = new LongAdder();
+        this.noOfHIDsDispensed = new LongAdder();
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Queue<String>[] newStripes(int noOfStripes) {
+        return new Queue[noOfStripes];
     }
 
-    public synchronized void addMciHealthIds(Collection<String> mciHealthIds) {
-        getInstance().getMciHealthIds().addAll(mciHealthIds);
+    //the listener runs on the dispensing thread whenever the pool is at or below the mark, so it must not block
+    public void setLowWaterListener(Runnable lowWaterListener) {
+        this.lowWaterListener = lowWaterListener;
     }
 
-    public synchronized Collection<String> getAll() {
-        return Collections.unmodifiableCollection(getInstance().getMciHealthIds());
+    public void setLowWaterMark(int lowWaterMark) {
+        this.lowWaterMark = lowWaterMark;
     }
 
-    public synchronized String getNextHealthId() {
-        try {
-            return getInstance().getMciHealthIds().remove();
-        } catch (Exception e) {
-            throw new HealthIdExhaustedException();
+    public void addMciHealthIds(Collection<String> mciHealthIds) {
+        //count first, so that a concurrent take can never drive the counter below zero
+        noOfHIDsLeft.add(mciHealthIds.size());
+        int next = homeStripe();
+        for (String mciHealthId : mciHealthIds) {
+            stripes[next].add(mciHealthId);
+            next = (next + 1) & stripeMask;
         }
     }
 
-    public synchronized void clear() {
-        getInstance().getMciHealthIds().clear();
+    public Collection<String> getAll() {
+        List<String> healthIds = new ArrayList<>(noOfHIDsLeft());
+        for (Queue<String> stripe : stripes) {
+            healthIds.addAll(stripe);
+        }
+        return Collections.unmodifiableCollection(healthIds);
+    }
+
+    public String getNextHealthId() {
+        int home = homeStripe();
+        for (int i = 0; i <= stripeMask; i++) {
+            String healthId = stripes[(home + i) & stripeMask].poll();
+            if (healthId != null) {
+                noOfHIDsLeft.decrement();
+                noOfHIDsDispensed.increment();
+                notifyIfBelowLowWaterMark();
+                return healthId;
+            }
+        }
+        notifyIfBelowLowWaterMark();
+        throw new HealthIdExhaustedException();
+    }
+
+    public void clear() {
+        for (Queue<String> stripe : stripes) {
+            while (stripe.poll() != null) {
+                noOfHIDsLeft.decrement();
+            }
+        }
     }
 
     public int noOfHIDsLeft() {
-        return getInstance().getMciHealthIds().size();
+        return (int) Math.max(0, noOfHIDsLeft.sum());
+    }
+
+    public long noOfHIDsDispensed() {
+        return noOfHIDsDispensed.sum();
+    }
+
+    private void notifyIfBelowLowWaterMark() {
+        Runnable listener = lowWaterListener;
+        if (listener != null && noOfHIDsLeft.sum() <= lowWaterMark) {
+            listener.run();
+        }
+    }
+
+    private int homeStripe() {
+        long threadId = Thread.currentThread().getId();
+        return (int) (threadId ^ (threadId >>> 16)) & stripeMask;
     }
 }
@@ -3,8 +3,10 @@ package org.sharedhealth.mci.web.model;
 import com.datastax.driver.mapping.annotations.Column;
 import com.datastax.driver.mapping.annotations.PartitionKey;
 import com.datastax.driver.mapping.annotations.Table;
+import com.datastax.driver.mapping.annotations.Transient;
 
 import java.util.Date;
+import java.util.List;
 import java.util.UUID;
 
 import static org.sharedhealth.mci.web.util.RepositoryConstants.*;
@@ -52,6 +54,9 @@ public class Patient {
     private String countryCode;
     @Column(name = RELATIONS)
     private String relations;
+    //decoded from the json relations when the patient is loaded, never stored
+    @Transient
+    private List<Relation> relationList;
     @Column(name = PHONE_NO)
     private String phoneNo;
 
@@ -224,6 +229,14 @@ public class Patient {
         this.relations = relations;
     }
 
+    public List<Relation> getRelationList() {
+        return relationList;
+    }
+
+    public void setRelationList(List<Relation> relationList) {
+        this.relationList = relationList;
+    }
+
     public String getPhoneNo() {
         return phoneNo;
     }
@@ -63,7 +63,7 @@ public class Relation {
     }
 
     public void setNameBangla(String nameBangla) {
-        this.nameBangla = nameBangla.trim();
+        this.nameBangla = StringUtils.trim(nameBangla);
     }
 
     public String getGivenName() {
@@ -71,7 +71,7 @@ public class Relation {
     }
 
     public void setGivenName(String givenName) {
-        this.givenName = givenName.trim();
+        this.givenName = StringUtils.trim(givenName);
     }
 
     public String getSurName() {
@@ -79,7 +79,7 @@ public class Relation {
     }
 
     public void setSurName(String surName) {
-        this.surName = surName.trim();
+        this.surName = StringUtils.trim(surName);
     }
 
     public String getUid() {
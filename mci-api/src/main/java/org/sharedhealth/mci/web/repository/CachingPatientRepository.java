@@ -0,0 +1,125 @@
+package org.sharedhealth.mci.web.repository;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.RatioGauge;
+import com.codahale.metrics.Timer;
+import com.datastax.driver.mapping.MappingManager;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.ehcache.Cache;
+import org.sharedhealth.mci.web.config.MCIMetrics;
+import org.sharedhealth.mci.web.model.MCIResponse;
+import org.sharedhealth.mci.web.model.Patient;
+
+import static com.codahale.metrics.MetricRegistry.name;
+
+/*
+    Read-through cache of patient rows by health id. Created patients are put into the cache
+    right after they are written. Confidential patients go to a separate cache, which is kept
+    on heap only when their data must not be written to the off-heap and disk tiers.
+    The update time read for conditional requests always comes from cassandra, the cache may hold
+    a patient the mci service has updated since.
+* */
+public class CachingPatientRepository extends PatientRepository {
+    private static final String METRICS_PREFIX = "patient.cache";
+
+    private Cache<String, Patient> patientCache;
+    private Cache<String, Patient> confidentialPatientCache;
+
+    private final Meter hits;
+    private final Meter misses;
+    private final Timer loads;
+
+    public CachingPatientRepository(MappingManager mappingManager, PreparedStatementRegistry statements,
+                                    PatientWriteStrategy writeStrategy,
+                                    Cache<String, Patient> patientCache, Cache<String, Patient> confidentialPatientCache) {
+        super(mappingManager, statements, writeStrategy);
+        this.patientCache = patientCache;
+        this.confidentialPatientCache = confidentialPatientCache;
+
+        MetricRegistry registry = MCIMetrics.getRegistry();
+        hits = registry.meter(name(METRICS_PREFIX, "hits"));
+        misses = registry.meter(name(METRICS_PREFIX, "misses"));
+        loads = registry.timer(name(METRICS_PREFIX, "loads"));
+        String hitRatio = name(METRICS_PREFIX, "hit-ratio");
+        if (!registry.getNames().contains(hitRatio)) {
+            registry.register(hitRatio, new RatioGauge() {
+                @Override
+                protected Ratio getRatio() {
+                    return Ratio.of(hits.getCount(), hits.getCount() + misses.getCount());
+                }
+            });
+        }
+    }
+
+    @Override
+    public Patient findByHealthId(String healthId) {
+        Patient patient = getCached(healthId);
+        if (patient != null) {
+            hits.mark();
+            return patient;
+        }
+        misses.mark();
+        Timer.Context load = loads.time();
+        try {
+            patient = super.findByHealthId(healthId);
+        } finally {
+            load.stop();
+        }
+        if (patient != null) {
+            cache(patient);
+        }
+        return patient;
+    }
+
+    @Override
+    public ListenableFuture<Patient> findByHealthIdAsync(String healthId) {
+        Patient patient = getCached(healthId);
+        if (patient != null) {
+            hits.mark();
+            return Futures.immediateFuture(patient);
+        }
+        misses.mark();
+        Timer.Context load = loads.time();
+        ListenableFuture<Patient> loadedPatient = super.findByHealthIdAsync(healthId);
+        Futures.addCallback(loadedPatient, new FutureCallback<Patient>() {
+            @Override
+            public void onSuccess(Patient patient) {
+                load.stop();
+                if (patient != null) {
+                    cache(patient);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                load.stop();
+            }
+        });
+        return loadedPatient;
+    }
+
+    @Override
+    public MCIResponse createPatient(Patient patient) {
+        MCIResponse mciResponse = super.createPatient(patient);
+        cache(patient);
+        return mciResponse;
+    }
+
+    private Patient getCached(String healthId) {
+        Patient patient = patientCache.get(healthId);
+        return patient != null ? patient : confidentialPatientCache.get(healthId);
+    }
+
+    private void cache(Patient patient) {
+        if (Boolean.TRUE.equals(patient.isConfidential())) {
+            patientCache.remove(patient.getHealthId());
+            confidentialPatientCache.put(patient.getHealthId(), patient);
+        } else {
+            confidentialPatientCache.remove(patient.getHealthId());
+            patientCache.put(patient.getHealthId(), patient);
+        }
+    }
+}
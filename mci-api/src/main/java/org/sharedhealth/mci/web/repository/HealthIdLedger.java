@@ -0,0 +1,369 @@
+package org.sharedhealth.mci.web.repository;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static java.nio.charset.StandardCharsets.US_ASCII;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.*;
+
+/*
+    Append-only record of the health ids held by this MCI instance.
+
+    Every line is a record: "+<hid>" when a health id is issued to the local pool and
+    "-<hid>" when it is handed out to a patient. Lines without a prefix are ids written
+    by the older whole-file format; they are kept as unverified until checked against
+    the patient table. Records are appended through a memory-mapped region, so replenish
+    costs O(block size) and a consumed id survives a process crash. The file is rewritten
+    with only the live ids once the consumed records outweigh them.
+
+    Appending takes no lock: a record reserves its bytes in the current region with a CAS
+    and writes them with absolute puts. A lock is only taken to map the next region once
+    one is full, and for the moment a compacted file is swapped in. Compaction writes and
+    forces the new file first, then appends the records written meanwhile and swaps it in.
+* */
+public class HealthIdLedger {
+    private static final Logger logger = LogManager.getLogger(HealthIdLedger.class);
+
+    private static final byte ISSUED = '+';
+    private static final byte CONSUMED = '-';
+    private static final byte END_OF_RECORD = '\n';
+    private static final byte UNWRITTEN = 0;
+    private static final int MAPPED_REGION_SIZE = 256 * 1024;
+    private static final int MIN_RECORDS_BEFORE_COMPACTION = 1024;
+
+    private final Path ledgerPath;
+    //live health ids with the order they became live in, which is the order they are listed and compacted in
+    private final ConcurrentMap<String, Long> available = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Long> unverified = new ConcurrentHashMap<>();
+    private final AtomicLong nextSequence = new AtomicLong();
+    private final AtomicInteger noOfRecords = new AtomicInteger();
+    //guards the channel and replacing the region, never held while a record is written
+    private final Object regionLock = new Object();
+    private final Object compactionLock = new Object();
+    private FileChannel channel;
+    //counts the files swapped in by compaction, a region of an earlier file is never forced
+    private int fileGeneration;
+    private volatile Region region;
+
+    public HealthIdLedger(String ledgerPath) {
+        this.ledgerPath = Paths.get(ledgerPath);
+    }
+
+    public List<String> getAvailable() throws IOException {
+        ensureOpen();
+        return inLedgerOrder(available);
+    }
+
+    public List<String> getUnverified() throws IOException {
+        ensureOpen();
+        return inLedgerOrder(unverified);
+    }
+
+    public void issued(Collection<String> healthIds) throws IOException {
+        ensureOpen();
+        Region lastRegion = null;
+        for (String healthId : healthIds) {
+            unverified.remove(healthId);
+            available.putIfAbsent(healthId, nextSequence.getAndIncrement());
+            Region appendedTo = append(ISSUED, healthId);
+            if (lastRegion != null && lastRegion != appendedTo) {
+                force(lastRegion);
+            }
+            lastRegion = appendedTo;
+        }
+        if (lastRegion != null) {
+            force(lastRegion);
+        }
+    }
+
+    /*
+        Taken under the region lock so it cannot run while a compacted file is swapped in. A region of a
+        replaced file needs no force, its records were copied into the compacted file and forced with it.
+    * */
+    private void force(Region appendedTo) {
+        synchronized (regionLock) {
+            if (appendedTo.fileGeneration == fileGeneration) {
+                appendedTo.force();
+            }
+        }
+    }
+
+    //called on every patient create, takes no lock unless the current region is full
+    public void consumed(String healthId) throws IOException {
+        ensureOpen();
+        available.remove(healthId);
+        unverified.remove(healthId);
+        append(CONSUMED, healthId);
+    }
+
+    public void compactIfNeeded() throws IOException {
+        ensureOpen();
+        int noOfLiveRecords = available.size() + unverified.size();
+        if (noOfRecords.get() < 2 * noOfLiveRecords + MIN_RECORDS_BEFORE_COMPACTION) return;
+        compact();
+    }
+
+    public void compact() throws IOException {
+        ensureOpen();
+        synchronized (compactionLock) {
+            Region firstRegion;
+            long copiedUpTo;
+            synchronized (regionLock) {
+                firstRegion = region;
+                copiedUpTo = firstRegion.getEnd();
+            }
+            //every record before copiedUpTo is reflected in the live ids, later ones are copied over below
+            int noOfRecordsBefore = noOfRecords.get();
+            List<String> unverifiedHIDs = inLedgerOrder(unverified);
+            List<String> availableHIDs = inLedgerOrder(available);
+            Path compactedPath = ledgerPath.resolveSibling(ledgerPath.getFileName() + ".compacting");
+            try (FileChannel compacted = FileChannel.open(compactedPath, CREATE, TRUNCATE_EXISTING, WRITE)) {
+                ByteBuffer buffer = ByteBuffer.allocate(MAPPED_REGION_SIZE);
+                for (String healthId : unverifiedHIDs) {
+                    buffer = writeRecord(compacted, buffer, null, healthId);
+                }
+                for (String healthId : availableHIDs) {
+                    buffer = writeRecord(compacted, buffer, ISSUED, healthId);
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) compacted.write(buffer);
+                compacted.force(true);
+            }
+            int noOfLiveRecords = unverifiedHIDs.size() + availableHIDs.size();
+            swapIn(compactedPath, firstRegion, copiedUpTo);
+            noOfRecords.set(noOfLiveRecords + noOfRecords.get() - noOfRecordsBefore);
+            logger.info("Compacted health id ledger from {} to {} records", noOfRecordsBefore, noOfLiveRecords);
+        }
+    }
+
+    private void swapIn(Path compactedPath, Region firstRegion, long copiedUpTo) throws IOException {
+        synchronized (regionLock) {
+            Region lastRegion = region;
+            long endOfLedger = lastRegion.seal();
+            for (Region sealed = firstRegion; ; sealed = sealed.next) {
+                sealed.awaitWrites();
+                if (sealed == lastRegion) break;
+            }
+            try (FileChannel compacted = FileChannel.open(compactedPath, WRITE, APPEND)) {
+                long position = copiedUpTo;
+                while (position < endOfLedger) {
+                    position += channel.transferTo(position, endOfLedger - position, compacted);
+                }
+                compacted.force(true);
+            }
+            Files.move(compactedPath, ledgerPath, ATOMIC_MOVE, REPLACE_EXISTING);
+            forceDirectory();
+            channel.close();
+            fileGeneration++;
+            openChannel();
+            region = mapRegion(channel.size(), MAPPED_REGION_SIZE);
+        }
+    }
+
+    //makes the rename durable, without it a crash can bring back the ledger from before compaction
+    private void forceDirectory() throws IOException {
+        try (FileChannel directory = FileChannel.open(ledgerPath.toAbsolutePath().getParent(), READ)) {
+            directory.force(true);
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (region != null) return;
+        synchronized (regionLock) {
+            if (region != null) return;
+            File ledgerFile = ledgerPath.toFile();
+            if (!ledgerFile.isFile() && !ledgerFile.createNewFile()) {
+                throw new IOException("Error creating new file: " + ledgerFile.getAbsolutePath());
+            }
+            openChannel();
+            long endOfLedger = replay();
+            region = mapRegion(endOfLedger, MAPPED_REGION_SIZE);
+        }
+    }
+
+    private void openChannel() throws IOException {
+        channel = FileChannel.open(ledgerPath, READ, WRITE);
+    }
+
+    private long replay() throws IOException {
+        ByteBuffer content = ByteBuffer.allocate((int) channel.size());
+        while (content.hasRemaining() && channel.read(content, content.position()) > 0) ;
+        byte[] bytes = content.array();
+        int recordStart = 0;
+        int endOfLedger = 0;
+        for (int position = 0; position < bytes.length; position++) {
+            if (bytes[position] == END_OF_RECORD) {
+                replayRecord(bytes, recordStart, position);
+                recordStart = position + 1;
+                endOfLedger = recordStart;
+            } else if (bytes[position] == UNWRITTEN) {
+                //space reserved by a record that was not written completely before a crash
+                if (position > recordStart) {
+                    logger.warn("Ignoring incomplete record in health id ledger");
+                }
+                recordStart = position + 1;
+            }
+        }
+        if (recordStart < bytes.length) {
+            logger.warn("Ignoring incomplete record at the end of health id ledger");
+        }
+        logger.info("Replayed {} records from health id ledger, {} health ids available, {} to be verified",
+                noOfRecords.get(), available.size(), unverified.size());
+        return endOfLedger;
+    }
+
+    private void replayRecord(byte[] bytes, int start, int end) {
+        if (start == end) return;
+        noOfRecords.incrementAndGet();
+        byte type = bytes[start];
+        if (type == ISSUED) {
+            String healthId = new String(bytes, start + 1, end - start - 1, US_ASCII);
+            unverified.remove(healthId);
+            available.putIfAbsent(healthId, nextSequence.getAndIncrement());
+        } else if (type == CONSUMED) {
+            String healthId = new String(bytes, start + 1, end - start - 1, US_ASCII);
+            available.remove(healthId);
+            unverified.remove(healthId);
+        } else {
+            String healthId = new String(bytes, start, end - start, US_ASCII).trim();
+            if (!available.containsKey(healthId)) {
+                unverified.putIfAbsent(healthId, nextSequence.getAndIncrement());
+            }
+        }
+    }
+
+    //the live ids are updated before the record is appended, compaction relies on that order
+    private Region append(byte type, String healthId) throws IOException {
+        int recordLength = healthId.length() + 2;
+        while (true) {
+            Region current = region;
+            int position = current.reserve(recordLength);
+            if (position >= 0) {
+                current.write(position, type, healthId);
+                noOfRecords.incrementAndGet();
+                return current;
+            }
+            mapNextRegion(current, recordLength);
+        }
+    }
+
+    private void mapNextRegion(Region full, int recordLength) throws IOException {
+        synchronized (regionLock) {
+            //mapped by another thread already, or sealed by compaction and swapped out
+            if (region != full) return;
+            Region next = mapRegion(full.seal(), Math.max(MAPPED_REGION_SIZE, recordLength));
+            full.next = next;
+            region = next;
+        }
+    }
+
+    private Region mapRegion(long start, int size) throws IOException {
+        return new Region(channel.map(FileChannel.MapMode.READ_WRITE, start, size), start, size, fileGeneration);
+    }
+
+    private static List<String> inLedgerOrder(Map<String, Long> healthIds) {
+        List<Map.Entry<String, Long>> entries = new ArrayList<>(healthIds.entrySet());
+        entries.sort(Map.Entry.comparingByValue());
+        List<String> ordered = new ArrayList<>(entries.size());
+        for (Map.Entry<String, Long> entry : entries) {
+            ordered.add(entry.getKey());
+        }
+        return ordered;
+    }
+
+    private ByteBuffer writeRecord(FileChannel target, ByteBuffer buffer, Byte type, String healthId) throws IOException {
+        if (buffer.remaining() < healthId.length() + 2) {
+            buffer.flip();
+            while (buffer.hasRemaining()) target.write(buffer);
+            buffer.clear();
+        }
+        if (type != null) {
+            buffer.put(type);
+        }
+        for (int i = 0; i < healthId.length(); i++) {
+            buffer.put((byte) healthId.charAt(i));
+        }
+        buffer.put(END_OF_RECORD);
+        return buffer;
+    }
+
+    /*
+        A mapped part of the ledger file. Writers reserve bytes by advancing reserved and count
+        them in written once they are put. Sealing stops further reservations, so a sealed region
+        is complete once written catches up with the bytes reserved before the seal.
+    * */
+    private static final class Region {
+        private static final int SEALED = Integer.MAX_VALUE;
+
+        private final MappedByteBuffer buffer;
+        private final long start;
+        private final int capacity;
+        private final int fileGeneration;
+        private final AtomicInteger reserved = new AtomicInteger();
+        private final AtomicInteger written = new AtomicInteger();
+        private volatile int sealedAt = -1;
+        private volatile Region next;
+
+        private Region(MappedByteBuffer buffer, long start, int capacity, int fileGeneration) {
+            this.buffer = buffer;
+            this.start = start;
+            this.capacity = capacity;
+            this.fileGeneration = fileGeneration;
+        }
+
+        //position of the reserved bytes in the region, -1 when the region is full or sealed
+        private int reserve(int length) {
+            while (true) {
+                int position = reserved.get();
+                if (position > capacity - length) return -1;
+                if (reserved.compareAndSet(position, position + length)) return position;
+            }
+        }
+
+        private void write(int position, byte type, String healthId) {
+            buffer.put(position, type);
+            for (int i = 0; i < healthId.length(); i++) {
+                buffer.put(position + 1 + i, (byte) healthId.charAt(i));
+            }
+            buffer.put(position + 1 + healthId.length(), END_OF_RECORD);
+            written.addAndGet(healthId.length() + 2);
+        }
+
+        //file offset after the last reserved record, only stable while the region cannot be sealed
+        private long getEnd() {
+            return start + reserved.get();
+        }
+
+        //returns the file offset the next region starts at
+        private long seal() {
+            sealedAt = reserved.getAndSet(SEALED);
+            return start + sealedAt;
+        }
+
+        private void awaitWrites() {
+            while (written.get() < sealedAt) {
+                Thread.yield();
+            }
+        }
+
+        private void force() {
+            buffer.force();
+        }
+    }
+}
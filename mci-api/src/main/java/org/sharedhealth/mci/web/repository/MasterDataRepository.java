@@ -1,18 +1,72 @@
 package org.sharedhealth.mci.web.repository;
 
 
+import com.datastax.driver.core.Session;
 import com.datastax.driver.mapping.Mapper;
 import com.datastax.driver.mapping.MappingManager;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.sharedhealth.mci.web.model.MasterData;
 
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.sharedhealth.mci.web.repository.PreparedStatementRegistry.FIND_ALL_MASTER_DATA;
+import static org.sharedhealth.mci.web.repository.PreparedStatementRegistry.FIND_MASTER_DATA;
+
+/*
+    Master data is read from a snapshot of the whole table held in memory, keyed by type and then by key.
+    The snapshot is built with a paged scan and swapped in whole on refresh, readers never see a partial one.
+    A key missing from the snapshot, such as one added since the last refresh, is read from cassandra.
+    Keys cassandra does not have either are remembered as missing until the next refresh.
+* */
 public class MasterDataRepository {
+    private static final Logger logger = LogManager.getLogger(MasterDataRepository.class);
+    //bounds the missing keys remembered between refreshes, lookups past it go to cassandra again
+    private static final int MAX_MISSING_KEYS = 10000;
+
+    private Session session;
+    private PreparedStatementRegistry statements;
     private Mapper<MasterData> masterDataMapper;
+    private volatile Map<String, Map<String, MasterData>> snapshot = Collections.emptyMap();
+    private volatile Set<String> missingKeys = ConcurrentHashMap.newKeySet();
 
-    public MasterDataRepository(MappingManager mappingManager) {
+    public MasterDataRepository(MappingManager mappingManager, PreparedStatementRegistry statements) {
+        this.session = mappingManager.getSession();
+        this.statements = statements;
         this.masterDataMapper = mappingManager.mapper(MasterData.class);
     }
 
     public MasterData findByTypeAndKey(String type, String key) {
-        return masterDataMapper.get(type, key);
+        Map<String, MasterData> masterDataOfType = snapshot.get(type);
+        MasterData masterData = masterDataOfType != null ? masterDataOfType.get(key) : null;
+        if (masterData != null) return masterData;
+        String missingKey = type + ":" + key;
+        Set<String> missing = missingKeys;
+        if (missing.contains(missingKey)) return null;
+        masterData = masterDataMapper.map(session.execute(statements.bind(FIND_MASTER_DATA, type, key))).one();
+        if (masterData == null && missing.size() < MAX_MISSING_KEYS) {
+            missing.add(missingKey);
+        }
+        return masterData;
+    }
+
+    public void refresh() {
+        try {
+            Map<String, Map<String, MasterData>> masterDataByType = new HashMap<>();
+            for (MasterData masterData : masterDataMapper.map(session.execute(statements.bind(FIND_ALL_MASTER_DATA)))) {
+                masterDataByType.computeIfAbsent(masterData.getType(), type -> new HashMap<>()).put(masterData.getKey(), masterData);
+            }
+            snapshot = masterDataByType;
+            //swapped after the snapshot, a key missed against the old one is looked up in the new one first
+            missingKeys = ConcurrentHashMap.newKeySet();
+            logger.info(String.format("Loaded master data of %s types", masterDataByType.size()));
+        } catch (Exception e) {
+            //lookups keep using the previous snapshot, or cassandra when there is none
+            logger.error("Unable to load master data", e);
+        }
     }
 }
@@ -1,13 +1,18 @@
 package org.sharedhealth.mci.web.repository;
 
-import com.datastax.driver.core.BatchStatement;
-import com.datastax.driver.core.Session;
-import com.datastax.driver.core.Statement;
+import com.codahale.metrics.Meter;
+import com.datastax.driver.core.*;
 import com.datastax.driver.mapping.Mapper;
 import com.datastax.driver.mapping.MappingManager;
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.http.HttpStatus;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.sharedhealth.mci.web.config.MCIMetrics;
 import org.sharedhealth.mci.web.mapper.PatientAuditLogMapper;
 import org.sharedhealth.mci.web.mapper.PatientUpdateLogMapper;
 import org.sharedhealth.mci.web.model.MCIResponse;
@@ -15,49 +20,297 @@ import org.sharedhealth.mci.web.model.Patient;
 import org.sharedhealth.mci.web.model.PatientAuditLog;
 import org.sharedhealth.mci.web.model.PatientUpdateLog;
 
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.datastax.driver.core.querybuilder.QueryBuilder.*;
+import static org.sharedhealth.mci.web.repository.PreparedStatementRegistry.*;
+import static org.sharedhealth.mci.web.util.JsonMapper.readRelations;
+import static org.sharedhealth.mci.web.util.RepositoryConstants.*;
+import static org.sharedhealth.mci.web.util.TimeUuidUtil.getTimeFromUUID;
+
 public class PatientRepository {
     private Session session;
+    private final PreparedStatementRegistry statements;
     private final Mapper<Patient> patientDBMapper;
     private PatientUpdateLogMapper patientUpdateLogMapper;
     private final Mapper<PatientUpdateLog> patientUpdateLogDBMapper;
     private PatientAuditLogMapper patientAuditLogMapper;
     private final Mapper<PatientAuditLog> patientAuditLogDBMapper;
     private static final Logger logger = LogManager.getLogger(PatientRepository.class);
+    private static final int MAX_LOG_WRITE_ATTEMPTS = 8;
+    private static final long BASE_LOG_WRITE_BACKOFF_MILLIS = 200;
+    private static final long MAX_LOG_WRITE_BACKOFF_MILLIS = 10 * 1000;
+    //longer than all log write attempts together, so a marker that old is no longer being retried
+    private static final long LOG_OUTBOX_REPLAY_DELAY_MILLIS = 60 * 1000;
+    private static final long LOG_OUTBOX_SWEEP_INTERVAL_MILLIS = 60 * 1000;
+    //markers read per sweep, the next sweep carries on after the last token read
+    private static final int LOG_OUTBOX_SWEEP_LIMIT = 500;
+
+    private final PatientWriteStrategy writeStrategy;
+    private final ScheduledExecutorService logWriter;
+    private final Meter logWriteRetries;
+    private final Meter logWriteFailures;
+    private final Meter logOutboxReplays;
+    private long logOutboxSweepToken = Long.MIN_VALUE;
+
+    public PatientRepository(MappingManager mappingManager, PreparedStatementRegistry statements) {
+        this(mappingManager, statements, PatientWriteStrategy.LOGGED_BATCH);
+    }
 
-    public PatientRepository(MappingManager mappingManager) {
+    public PatientRepository(MappingManager mappingManager, PreparedStatementRegistry statements,
+                             PatientWriteStrategy writeStrategy) {
+        this.statements = statements;
+        this.writeStrategy = writeStrategy;
         session = mappingManager.getSession();
         patientDBMapper = mappingManager.mapper(Patient.class);
         patientUpdateLogDBMapper = mappingManager.mapper(PatientUpdateLog.class);
         patientAuditLogDBMapper = mappingManager.mapper(PatientAuditLog.class);
         patientUpdateLogMapper = new PatientUpdateLogMapper();
         patientAuditLogMapper = new PatientAuditLogMapper();
+        if (writeStrategy == PatientWriteStrategy.PATIENT_FIRST) {
+            registerLogOutboxStatements();
+            logWriter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "patient-log-writer");
+                thread.setDaemon(true);
+                return thread;
+            });
+            logWriteRetries = MCIMetrics.getRegistry().meter("patient.log-writes.retries");
+            logWriteFailures = MCIMetrics.getRegistry().meter("patient.log-writes.failures");
+            logOutboxReplays = MCIMetrics.getRegistry().meter("patient.log-writes.replays");
+            logWriter.scheduleWithFixedDelay(this::sweepLogOutbox, LOG_OUTBOX_SWEEP_INTERVAL_MILLIS, LOG_OUTBOX_SWEEP_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        } else {
+            logWriter = null;
+            logWriteRetries = null;
+            logWriteFailures = null;
+            logOutboxReplays = null;
+        }
+    }
+
+    //the outbox table only has to exist once patients are written first, so its statements are prepared only then
+    private void registerLogOutboxStatements() {
+        ConsistencyLevel consistencyLevel = statements.getWriteConsistencyLevel();
+        statements.register(INSERT_LOG_OUTBOX_MARKER, insertInto(CF_PATIENT_LOG_OUTBOX)
+                        .value(HEALTH_ID, bindMarker()).value(CREATED_AT, bindMarker()).value(CHANGE_SET, bindMarker()),
+                new StatementOptions().consistencyLevel(consistencyLevel).idempotent());
+        statements.register(DELETE_LOG_OUTBOX_MARKER, delete().from(CF_PATIENT_LOG_OUTBOX).where(eq(HEALTH_ID, bindMarker())),
+                new StatementOptions().consistencyLevel(consistencyLevel).idempotent());
+        statements.register(FIND_LOG_OUTBOX_MARKERS, select().column(HEALTH_ID).column(CREATED_AT).column(CHANGE_SET)
+                        .fcall("token", column(HEALTH_ID)).from(CF_PATIENT_LOG_OUTBOX)
+                        .where(gt(token(HEALTH_ID), bindMarker())).limit(LOG_OUTBOX_SWEEP_LIMIT),
+                new StatementOptions().consistencyLevel(consistencyLevel).idempotent().fetchSize(LOG_OUTBOX_SWEEP_LIMIT));
     }
 
     public Patient findByHealthId(String healthId) {
         logger.info(String.format("Find patient by healthId: %s", healthId));
-        return patientDBMapper.get(healthId);
+        return loaded(patientDBMapper.map(session.execute(statements.bind(FIND_PATIENT, healthId))).one());
     }
 
-    public MCIResponse createPatient(Patient patient) {
-        String healthId = patient.getHealthId();
-        logger.info(String.format("Creating patient with healthId: %s", healthId));
+    //the bound health id is the routing key, so a token aware policy sends the read to a replica
+    public ListenableFuture<Patient> findByHealthIdAsync(String healthId) {
+        logger.debug(String.format("Find patient asynchronously by healthId: %s", healthId));
+        return Futures.transform(session.executeAsync(statements.bind(FIND_PATIENT, healthId)), new Function<ResultSet, Patient>() {
+            @Override
+            public Patient apply(ResultSet rows) {
+                return loaded(patientDBMapper.map(rows).one());
+            }
+        });
+    }
+
+    //reads only the update and creation times, enough to answer conditional requests
+    public UUID findUpdatedAt(String healthId) {
+        Row row = session.execute(statements.bind(FIND_PATIENT_UPDATED_AT, healthId)).one();
+        if (row == null) return null;
+        return row.isNull(UPDATED_AT) ? row.getUUID(CREATED_AT) : row.getUUID(UPDATED_AT);
+    }
 
-        Statement patientCreateStatement = patientDBMapper.saveQuery(patient);
+    /*
+        Splits health ids into batches whose partitions share the same replicas, so that a single
+        IN query per batch can be routed straight to a node owning all of them.
+    * */
+    public List<List<String>> groupByReplicas(Collection<String> healthIds, int batchSize) {
+        Metadata metadata = session.getCluster().getMetadata();
+        String keyspace = session.getLoggedKeyspace();
+        Map<Set<Host>, List<String>> healthIdsByReplicas = new LinkedHashMap<>();
+        for (String healthId : healthIds) {
+            Set<Host> replicas = metadata.getReplicas(keyspace, serialize(healthId));
+            List<String> group = healthIdsByReplicas.get(replicas);
+            if (group == null) {
+                group = new ArrayList<>();
+                healthIdsByReplicas.put(replicas, group);
+            }
+            group.add(healthId);
+        }
+        List<List<String>> batches = new ArrayList<>();
+        for (List<String> group : healthIdsByReplicas.values()) {
+            for (int from = 0; from < group.size(); from += batchSize) {
+                batches.add(group.subList(from, Math.min(from + batchSize, group.size())));
+            }
+        }
+        return batches;
+    }
 
-        PatientAuditLog patientAuditLog = patientAuditLogMapper.map(patient);
-        Statement patientAuditLogStatement = patientAuditLogDBMapper.saveQuery(patientAuditLog);
+    public ListenableFuture<Set<String>> findExistingHealthIds(List<String> healthIds) {
+        BoundStatement statement = statements.bind(FIND_EXISTING_HEALTH_IDS, healthIds);
+        statement.setRoutingKey(serialize(healthIds.get(0)));
+        return Futures.transform(session.executeAsync(statement), new Function<ResultSet, Set<String>>() {
+            @Override
+            public Set<String> apply(ResultSet rows) {
+                Set<String> existingHealthIds = new HashSet<>();
+                for (Row row : rows) {
+                    existingHealthIds.add(row.getString(HEALTH_ID));
+                }
+                return existingHealthIds;
+            }
+        });
+    }
 
-        PatientUpdateLog patientUpdateLog = patientUpdateLogMapper.map(patient);
-        Statement patientUpdateLogStatement = patientUpdateLogDBMapper.saveQuery(patientUpdateLog);
+    public MCIResponse createPatient(Patient patient) {
+        logger.info(String.format("Creating patient with healthId: %s", patient.getHealthId()));
+        if (writeStrategy == PatientWriteStrategy.PATIENT_FIRST) {
+            PatientAuditLog patientAuditLog = patientAuditLogMapper.map(patient);
+            session.execute(createPatientWithOutboxMarker(patient, patientAuditLog));
+            List<Statement> logStatements = createLogStatements(patientAuditLog, patientUpdateLogMapper.map(patient));
+            logWriter.execute(() -> writeLogs(patient.getHealthId(), logStatements));
+        } else {
+            session.execute(createPatientBatch(patient));
+        }
+        return createdResponse(patient);
+    }
 
+    private BatchStatement createPatientBatch(Patient patient) {
         BatchStatement batch = new BatchStatement();
-        batch.add(patientCreateStatement);
-        batch.add(patientAuditLogStatement);
-        batch.add(patientUpdateLogStatement);
-        session.execute(batch);
+        batch.setConsistencyLevel(statements.getWriteConsistencyLevel());
+        batch.add(patientDBMapper.saveQuery(patient));
+        batch.addAll(createLogStatements(patientAuditLogMapper.map(patient), patientUpdateLogMapper.map(patient)));
+        return batch;
+    }
+
+    /*
+        The marker shares the patient's partition key, so the unlogged batch is applied as one mutation:
+        a stored patient always has its marker until both its log rows are written. The marker keeps the
+        audit change set, the patient row may have been updated by the time the logs are replayed.
+    * */
+    private BatchStatement createPatientWithOutboxMarker(Patient patient, PatientAuditLog patientAuditLog) {
+        BatchStatement batch = new BatchStatement(BatchStatement.Type.UNLOGGED);
+        batch.setConsistencyLevel(statements.getWriteConsistencyLevel());
+        batch.add(patientDBMapper.saveQuery(patient));
+        batch.add(statements.bind(INSERT_LOG_OUTBOX_MARKER, patient.getHealthId(), patient.getCreatedAt(),
+                patientAuditLog.getChangeSet()));
+        return batch;
+    }
+
+    /*
+        The json relations are the only stored form, the mci service sharing the keyspace reads and writes them.
+        They are decoded once here, before the patient is handed out or cached, and never again on a read.
+        Rows written before updated_at existed have never been updated, so their creation time stands in for it.
+    * */
+    private Patient loaded(Patient patient) {
+        if (patient == null) return null;
+        if (StringUtils.isNotBlank(patient.getRelations())) {
+            patient.setRelationList(readRelations(patient.getRelations()));
+        }
+        if (patient.getUpdatedAt() == null) {
+            patient.setUpdatedAt(patient.getCreatedAt());
+        }
+        return patient;
+    }
+
+    //both log rows are keyed by the patient's creation time, so writing one again only overwrites it with the same values
+    private List<Statement> createLogStatements(PatientAuditLog patientAuditLog, PatientUpdateLog patientUpdateLog) {
+        Statement patientAuditLogStatement = patientAuditLogDBMapper.saveQuery(patientAuditLog).setIdempotent(true);
+        Statement patientUpdateLogStatement = patientUpdateLogDBMapper.saveQuery(patientUpdateLog).setIdempotent(true);
+
+        return Arrays.asList(patientAuditLogStatement, patientUpdateLogStatement);
+    }
+
+    private void writeLogs(String healthId, List<Statement> logStatements) {
+        AtomicInteger pendingLogs = new AtomicInteger(logStatements.size());
+        Runnable onLogWritten = () -> {
+            if (pendingLogs.decrementAndGet() == 0) {
+                session.executeAsync(statements.bind(DELETE_LOG_OUTBOX_MARKER, healthId));
+            }
+        };
+        for (Statement logStatement : logStatements) {
+            writeLog(logStatement, healthId, 1, onLogWritten);
+        }
+    }
+
+    private void writeLog(Statement logStatement, String healthId, int attempt, Runnable onLogWritten) {
+        Futures.addCallback(session.executeAsync(logStatement), new FutureCallback<ResultSet>() {
+            @Override
+            public void onSuccess(ResultSet rows) {
+                onLogWritten.run();
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                if (attempt >= MAX_LOG_WRITE_ATTEMPTS) {
+                    logWriteFailures.mark();
+                    logger.error(String.format("Unable to write log of patient %s after %s attempts, leaving it to the outbox sweep",
+                            healthId, attempt), t);
+                    return;
+                }
+                logWriteRetries.mark();
+                long backoff = Math.min(MAX_LOG_WRITE_BACKOFF_MILLIS, BASE_LOG_WRITE_BACKOFF_MILLIS << (attempt - 1));
+                logger.warn(String.format("Unable to write log of patient %s, retrying in %s ms", healthId, backoff), t);
+                logWriter.schedule(() -> writeLog(logStatement, healthId, attempt + 1, onLogWritten), backoff, TimeUnit.MILLISECONDS);
+            }
+        });
+    }
+
+    /*
+        Writes the logs of patients whose marker outlived its log writes, because they failed or the service
+        stopped before they were done. The logs are rebuilt from the marker alone, never from the patient row.
+        Each sweep reads a bounded slice of the outbox in token order and the next one carries on from there,
+        starting over once the whole ring has been read.
+    * */
+    void sweepLogOutbox() {
+        try {
+            long replayBefore = System.currentTimeMillis() - LOG_OUTBOX_REPLAY_DELAY_MILLIS;
+            int markersRead = 0;
+            for (Row marker : session.execute(statements.bind(FIND_LOG_OUTBOX_MARKERS, logOutboxSweepToken))) {
+                markersRead++;
+                logOutboxSweepToken = marker.getLong(3);
+                UUID createdAt = marker.getUUID(CREATED_AT);
+                if (createdAt != null && getTimeFromUUID(createdAt) > replayBefore) continue;
+                String healthId = marker.getString(HEALTH_ID);
+                String changeSet = marker.getString(CHANGE_SET);
+                if (createdAt == null || changeSet == null) {
+                    logWriteFailures.mark();
+                    logger.error(String.format("Outbox marker of patient %s has no log to replay, its logs must be written by hand", healthId));
+                } else {
+                    PatientAuditLog patientAuditLog = new PatientAuditLog();
+                    patientAuditLog.setHealthId(healthId);
+                    patientAuditLog.setEventId(createdAt);
+                    patientAuditLog.setChangeSet(changeSet);
+                    for (Statement logStatement : createLogStatements(patientAuditLog, patientUpdateLogMapper.map(healthId, createdAt))) {
+                        session.execute(logStatement);
+                    }
+                    logOutboxReplays.mark();
+                }
+                session.execute(statements.bind(DELETE_LOG_OUTBOX_MARKER, healthId));
+            }
+            if (markersRead < LOG_OUTBOX_SWEEP_LIMIT) {
+                logOutboxSweepToken = Long.MIN_VALUE;
+            }
+        } catch (Exception e) {
+            logger.error("Unable to replay the patient log outbox", e);
+        }
+    }
+
+    private MCIResponse createdResponse(Patient patient) {
         MCIResponse mciResponse = new MCIResponse(HttpStatus.SC_CREATED);
-        mciResponse.setId(healthId);
+        mciResponse.setId(patient.getHealthId());
         return mciResponse;
     }
 
+    private ByteBuffer serialize(String healthId) {
+        ProtocolVersion protocolVersion = session.getCluster().getConfiguration().getProtocolOptions().getProtocolVersion();
+        return TypeCodec.varchar().serialize(healthId, protocolVersion);
+    }
 }
@@ -0,0 +1,15 @@
+package org.sharedhealth.mci.web.repository;
+
+/*
+    How a created patient is written together with its audit and update logs.
+
+    LOGGED_BATCH writes the three rows in one logged batch, so they are applied all or nothing at the
+    cost of a batchlog write on the coordinator. PATIENT_FIRST writes the patient row together with a
+    marker in patient_log_outbox and answers once it is stored; the log rows follow in parallel and the
+    marker is deleted when both are written. Markers left behind are replayed by a periodic sweep.
+    The patient_log_outbox table has to exist before PATIENT_FIRST is turned on.
+* */
+public enum PatientWriteStrategy {
+    LOGGED_BATCH,
+    PATIENT_FIRST
+}
@@ -0,0 +1,160 @@
+package org.sharedhealth.mci.web.repository;
+
+import com.datastax.driver.core.*;
+import com.datastax.driver.core.policies.SpeculativeExecutionPolicy;
+import com.datastax.driver.mapping.Mapper;
+import com.datastax.driver.mapping.MappingManager;
+import org.sharedhealth.mci.web.config.MCIProperties;
+import org.sharedhealth.mci.web.config.SpeculativeReadPolicy;
+import org.sharedhealth.mci.web.model.Patient;
+import org.sharedhealth.mci.web.model.PatientAuditLog;
+import org.sharedhealth.mci.web.model.PatientUpdateLog;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.datastax.driver.core.querybuilder.QueryBuilder.*;
+import static org.sharedhealth.mci.web.util.RepositoryConstants.*;
+
+/*
+    Prepares every query the service runs once at startup, so no request pays for preparing a statement.
+    Statements bound on a partition key carry their routing key, which the token aware policy routes on.
+
+    Queries written out here are bound by name with their consistency level, idempotence and fetch size.
+    Reads registered as speculative may be sent to a second replica when the first one is slow.
+    The inserts built by the object mappers are prepared by building one save statement per mapper.
+* */
+public class PreparedStatementRegistry {
+    public static final String FIND_PATIENT = "patient.find";
+    public static final String FIND_PATIENT_UPDATED_AT = "patient.find-updated-at";
+    public static final String FIND_EXISTING_HEALTH_IDS = "patient.find-existing-health-ids";
+    public static final String FIND_MASTER_DATA = "master-data.find";
+    public static final String FIND_ALL_MASTER_DATA = "master-data.find-all";
+    public static final String INSERT_LOG_OUTBOX_MARKER = "patient-log-outbox.insert";
+    public static final String DELETE_LOG_OUTBOX_MARKER = "patient-log-outbox.delete";
+    public static final String FIND_LOG_OUTBOX_MARKERS = "patient-log-outbox.find-all";
+
+    private static final int EXISTING_HEALTH_IDS_FETCH_SIZE = 1000;
+    private static final int ALL_MASTER_DATA_FETCH_SIZE = 1000;
+    private static final String WARM_UP_HEALTH_ID = "warm-up";
+
+    private final Session session;
+    private final ConsistencyLevel writeConsistencyLevel;
+    private final Map<String, PreparedStatement> statements = new ConcurrentHashMap<>();
+    private final Map<String, Integer> fetchSizes = new ConcurrentHashMap<>();
+
+    public PreparedStatementRegistry(MappingManager mappingManager, MCIProperties mciProperties) {
+        this.session = mappingManager.getSession();
+        this.writeConsistencyLevel = mciProperties.getCassandraWriteConsistency();
+        ConsistencyLevel readConsistencyLevel = mciProperties.getCassandraReadConsistency();
+        register(FIND_PATIENT, select().all().from(CF_PATIENT).where(eq(HEALTH_ID, bindMarker())),
+                new StatementOptions().consistencyLevel(readConsistencyLevel).idempotent().speculative());
+        register(FIND_PATIENT_UPDATED_AT, select(UPDATED_AT, CREATED_AT).from(CF_PATIENT).where(eq(HEALTH_ID, bindMarker())),
+                new StatementOptions().consistencyLevel(readConsistencyLevel).idempotent());
+        register(FIND_EXISTING_HEALTH_IDS, select(HEALTH_ID).from(CF_PATIENT).where(in(HEALTH_ID, bindMarker())),
+                new StatementOptions().consistencyLevel(mciProperties.getCassandraReconciliationConsistency())
+                        .idempotent().fetchSize(EXISTING_HEALTH_IDS_FETCH_SIZE));
+        //master data rarely changes and is cached by its readers, one local replica is enough
+        register(FIND_MASTER_DATA, select().all().from(CF_MASTER_DATA).where(eq(TYPE, bindMarker())).and(eq(KEY, bindMarker())),
+                new StatementOptions().consistencyLevel(mciProperties.getCassandraMasterDataConsistency()).idempotent().speculative());
+        register(FIND_ALL_MASTER_DATA, select().all().from(CF_MASTER_DATA),
+                new StatementOptions().consistencyLevel(mciProperties.getCassandraMasterDataConsistency())
+                        .idempotent().fetchSize(ALL_MASTER_DATA_FETCH_SIZE));
+        prepareMapperInserts(mappingManager);
+    }
+
+    //consistency level of patient writes, batches take their level from the batch rather than its statements
+    public ConsistencyLevel getWriteConsistencyLevel() {
+        return writeConsistencyLevel;
+    }
+
+    public PreparedStatementRegistry register(String name, RegularStatement query, StatementOptions options) {
+        PreparedStatement preparedStatement = session.prepare(query);
+        if (options.consistencyLevel != null) {
+            preparedStatement.setConsistencyLevel(options.consistencyLevel);
+        }
+        preparedStatement.setIdempotent(options.idempotent);
+        if (options.speculative) {
+            allowSpeculativeExecution(preparedStatement);
+        }
+        statements.put(name, preparedStatement);
+        if (options.fetchSize > 0) {
+            fetchSizes.put(name, options.fetchSize);
+        }
+        return this;
+    }
+
+    public BoundStatement bind(String name, Object... values) {
+        BoundStatement boundStatement = get(name).bind(values);
+        Integer fetchSize = fetchSizes.get(name);
+        if (fetchSize != null) {
+            boundStatement.setFetchSize(fetchSize);
+        }
+        return boundStatement;
+    }
+
+    public PreparedStatement get(String name) {
+        PreparedStatement preparedStatement = statements.get(name);
+        if (preparedStatement == null) {
+            throw new IllegalArgumentException("No statement registered as " + name);
+        }
+        return preparedStatement;
+    }
+
+    private void allowSpeculativeExecution(PreparedStatement preparedStatement) {
+        SpeculativeExecutionPolicy policy = session.getCluster().getConfiguration().getPolicies().getSpeculativeExecutionPolicy();
+        if (policy instanceof SpeculativeReadPolicy) {
+            ((SpeculativeReadPolicy) policy).allow(preparedStatement);
+        }
+    }
+
+    /*
+        A mapper prepares its insert when it builds the first save statement, the statement itself is never run.
+        Mappers are shared per mapping manager, so the write consistency set here applies to every save.
+    * */
+    private void prepareMapperInserts(MappingManager mappingManager) {
+        Patient patient = new Patient();
+        patient.setHealthId(WARM_UP_HEALTH_ID);
+        prepareInsert(mappingManager.mapper(Patient.class), patient);
+
+        PatientAuditLog patientAuditLog = new PatientAuditLog();
+        patientAuditLog.setHealthId(WARM_UP_HEALTH_ID);
+        prepareInsert(mappingManager.mapper(PatientAuditLog.class), patientAuditLog);
+
+        prepareInsert(mappingManager.mapper(PatientUpdateLog.class), new PatientUpdateLog());
+    }
+
+    private <T> void prepareInsert(Mapper<T> mapper, T entity) {
+        mapper.setDefaultSaveOptions(Mapper.Option.consistencyLevel(writeConsistencyLevel));
+        mapper.saveQuery(entity);
+    }
+
+    public static class StatementOptions {
+        private ConsistencyLevel consistencyLevel;
+        private boolean idempotent;
+        private boolean speculative;
+        private int fetchSize;
+
+        public StatementOptions consistencyLevel(ConsistencyLevel consistencyLevel) {
+            this.consistencyLevel = consistencyLevel;
+            return this;
+        }
+
+        public StatementOptions idempotent() {
+            this.idempotent = true;
+            return this;
+        }
+
+        //speculating re-runs the statement, so only idempotent statements are speculated on
+        public StatementOptions speculative() {
+            this.idempotent = true;
+            this.speculative = true;
+            return this;
+        }
+
+        public StatementOptions fetchSize(int fetchSize) {
+            this.fetchSize = fetchSize;
+            return this;
+        }
+    }
+}
@@ -11,13 +11,21 @@ import java.util.List;
 public class AuthorizationFilter implements Filter {
     public final static String USER_DETAILS_KEY = "userDetails";
     private List<String> allowedUserList;
+    private String requestMethod;
 
     public AuthorizationFilter(List<String> allowedUserList) {
+        this(allowedUserList, null);
+    }
+
+    //spark filters match on the path only, so a path serving several methods is authorized per method
+    public AuthorizationFilter(List<String> allowedUserList, String requestMethod) {
         this.allowedUserList = allowedUserList;
+        this.requestMethod = requestMethod;
     }
 
     @Override
     public void handle(Request request, Response response) throws Exception {
+        if (requestMethod != null && !requestMethod.equalsIgnoreCase(request.requestMethod())) return;
         authorizeRequests(request.attribute(USER_DETAILS_KEY));
     }
 
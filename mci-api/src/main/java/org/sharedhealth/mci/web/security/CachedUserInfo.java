@@ -0,0 +1,24 @@
+package org.sharedhealth.mci.web.security;
+
+public class CachedUserInfo {
+    private final UserInfo userInfo;
+    private final long loadedAt;
+
+    //used by the cache serializer
+    private CachedUserInfo() {
+        this(null, 0);
+    }
+
+    public CachedUserInfo(UserInfo userInfo, long loadedAt) {
+        this.userInfo = userInfo;
+        this.loadedAt = loadedAt;
+    }
+
+    public UserInfo getUserInfo() {
+        return userInfo;
+    }
+
+    public long getLoadedAt() {
+        return loadedAt;
+    }
+}
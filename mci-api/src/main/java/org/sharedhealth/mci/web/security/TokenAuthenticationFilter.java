@@ -1,9 +1,6 @@
 package org.sharedhealth.mci.web.security;
 
-import org.ehcache.Cache;
-import org.sharedhealth.mci.web.config.MCIProperties;
 import org.sharedhealth.mci.web.exception.IdentityUnauthorizedException;
-import org.sharedhealth.mci.web.service.IdentityProviderService;
 import spark.Filter;
 import spark.Request;
 import spark.Response;
@@ -13,14 +10,10 @@ public class TokenAuthenticationFilter implements Filter {
     private static final String CLIENT_ID_KEY = "client_id";
     private static final String AUTH_TOKEN_KEY = "X-Auth-Token";
 
-    private IdentityProviderService identityProviderService;
-    private Cache<String, UserInfo> userInfoCache;
-    private MCIProperties mciProperties;
+    private UserInfoLoader userInfoLoader;
 
-    public TokenAuthenticationFilter(IdentityProviderService identityProviderService, Cache<String, UserInfo> userInfoCache) {
-        this.identityProviderService = identityProviderService;
-        this.userInfoCache = userInfoCache;
-        this.mciProperties = MCIProperties.getInstance();
+    public TokenAuthenticationFilter(UserInfoLoader userInfoLoader) {
+        this.userInfoLoader = userInfoLoader;
     }
 
     @Override
@@ -32,12 +25,7 @@ public class TokenAuthenticationFilter implements Filter {
             throw new IdentityUnauthorizedException(String.format("Invalid user credentials. %s, %s, %s headers cannot be null.", FROM_KEY, CLIENT_ID_KEY, AUTH_TOKEN_KEY));
         }
 
-        UserInfo userInfo;
-        if (!userInfoCache.containsKey(authToken)) {
-            userInfo = identityProviderService.getUserInfo(mciProperties, authToken);
-            userInfoCache.put(authToken, userInfo);
-        }
-        userInfo = userInfoCache.get(authToken);
+        UserInfo userInfo = userInfoLoader.get(authToken);
 
         if (!userInfo.getProperties().getEmail().equals(from)
                 || !userInfo.getProperties().getId().equals(clientId)) {
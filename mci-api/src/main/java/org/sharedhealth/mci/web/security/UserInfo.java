@@ -47,6 +47,7 @@ public class UserInfo {
     @JsonIgnore
     private List<String> userGroups;
 
+    @JsonIgnore
     private UserInfoProperties instance;
 
     public UserInfo(String id, String name, String email, int isActive, boolean activated, String accessToken, List<String> groups, List<UserProfile> userProfiles) {
@@ -238,6 +239,11 @@ public class UserInfo {
                     && !containsCaseInsensitive(groups, MCI_APPROVER);
         }
 
+        //patient users may only see their own record
+        public boolean canAccessPatient(String healthId) {
+            return !isPatientUserOnly() || patientHid.equals(healthId);
+        }
+
         private void addGroupsBasedOnProfiles(UserProfile userProfile) {
             if (userProfile.isFacility() && containsCaseInsensitive(groups, HRM_FACILITY_ADMIN_GROUP)
                     && !containsCaseInsensitive(groups, HRM_SHR_SYSTEM_ADMIN_GROUP)) {
@@ -0,0 +1,160 @@
+package org.sharedhealth.mci.web.security;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.ehcache.Cache;
+import org.sharedhealth.mci.web.config.MCIMetrics;
+import org.sharedhealth.mci.web.config.MCIProperties;
+import org.sharedhealth.mci.web.exception.IdentityUnauthorizedException;
+import org.sharedhealth.mci.web.service.IdentityProviderService;
+
+import java.io.IOException;
+import java.util.concurrent.*;
+
+/*
+    Looks up user info by token, going to the identity provider only on a cache miss.
+    Concurrent misses for the same token share a single lookup: the first request loads it
+    and the others wait for that result instead of calling the identity provider themselves.
+
+    Entries used within the refresh-ahead window before their ttl are reloaded in the background.
+    Past the ttl, the last known user info is still served for the stale window while a background
+    reload runs, so a slow identity provider does not hold up requests of known tokens.
+* */
+public class UserInfoLoader {
+    private static final Logger logger = LogManager.getLogger(UserInfoLoader.class);
+    private static final int REFRESH_THREADS = 2;
+
+    private IdentityProviderService identityProviderService;
+    private Cache<String, CachedUserInfo> userInfoCache;
+    private MCIProperties mciProperties;
+    private long ttl;
+    private long refreshAhead;
+    private long staleWindow;
+    private ExecutorService refreshExecutor;
+    private final ConcurrentMap<String, CompletableFuture<UserInfo>> inFlightLoads = new ConcurrentHashMap<>();
+
+    private final Meter hits;
+    private final Meter staleHits;
+    private final Meter misses;
+    private final Meter refreshes;
+    private final Meter refreshFailures;
+
+    public UserInfoLoader(IdentityProviderService identityProviderService, Cache<String, CachedUserInfo> userInfoCache,
+                          MCIProperties mciProperties) {
+        this.identityProviderService = identityProviderService;
+        this.userInfoCache = userInfoCache;
+        this.mciProperties = mciProperties;
+        this.ttl = mciProperties.getUserInfoCacheTtl();
+        this.refreshAhead = Math.min(mciProperties.getUserInfoCacheRefreshAhead(), ttl);
+        this.staleWindow = mciProperties.getUserInfoCacheStaleWindow();
+        this.refreshExecutor = Executors.newFixedThreadPool(REFRESH_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "user-info-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        MetricRegistry registry = MCIMetrics.getRegistry();
+        hits = registry.meter("identity.user-info.hits");
+        staleHits = registry.meter("identity.user-info.stale-hits");
+        misses = registry.meter("identity.user-info.misses");
+        refreshes = registry.meter("identity.user-info.refreshes");
+        refreshFailures = registry.meter("identity.user-info.refresh-failures");
+    }
+
+    public UserInfo get(String authToken) throws IOException {
+        return get(authToken, System.currentTimeMillis());
+    }
+
+    UserInfo get(String authToken, long now) throws IOException {
+        CachedUserInfo cachedUserInfo = userInfoCache.get(authToken);
+        if (cachedUserInfo == null || isExpired(cachedUserInfo, now)) {
+            misses.mark();
+            return load(authToken);
+        }
+        long age = now - cachedUserInfo.getLoadedAt();
+        if (age >= ttl) {
+            staleHits.mark();
+            refreshInBackground(authToken);
+        } else {
+            hits.mark();
+            if (age >= ttl - refreshAhead) {
+                refreshInBackground(authToken);
+            }
+        }
+        return cachedUserInfo.getUserInfo();
+    }
+
+    //entries are evicted by the cache itself at ttl + stale window, this only guards against a late eviction
+    private boolean isExpired(CachedUserInfo cachedUserInfo, long now) {
+        return now - cachedUserInfo.getLoadedAt() >= ttl + staleWindow;
+    }
+
+    private UserInfo load(String authToken) throws IOException {
+        CompletableFuture<UserInfo> load = new CompletableFuture<>();
+        CompletableFuture<UserInfo> inFlightLoad = inFlightLoads.putIfAbsent(authToken, load);
+        if (inFlightLoad != null) {
+            return await(inFlightLoad);
+        }
+        try {
+            //a load that finished between the cache miss and registering this one has already filled the cache
+            CachedUserInfo cachedUserInfo = userInfoCache.get(authToken);
+            UserInfo userInfo = cachedUserInfo != null && !isExpired(cachedUserInfo, System.currentTimeMillis())
+                    ? cachedUserInfo.getUserInfo() : fetch(authToken);
+            load.complete(userInfo);
+            return userInfo;
+        } catch (IOException | RuntimeException e) {
+            load.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlightLoads.remove(authToken, load);
+        }
+    }
+
+    private void refreshInBackground(String authToken) {
+        CompletableFuture<UserInfo> refresh = new CompletableFuture<>();
+        if (inFlightLoads.putIfAbsent(authToken, refresh) != null) return;
+        refreshes.mark();
+        try {
+            refreshExecutor.execute(() -> {
+                try {
+                    refresh.complete(fetch(authToken));
+                } catch (IdentityUnauthorizedException e) {
+                    logger.info("User info token is no longer valid, removing it from the cache.");
+                    userInfoCache.remove(authToken);
+                    refresh.completeExceptionally(e);
+                } catch (Exception e) {
+                    refreshFailures.mark();
+                    logger.warn("Unable to refresh user info, serving the cached entry until it expires.", e);
+                    refresh.completeExceptionally(e);
+                } finally {
+                    inFlightLoads.remove(authToken, refresh);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            inFlightLoads.remove(authToken, refresh);
+            refresh.completeExceptionally(e);
+        }
+    }
+
+    private UserInfo fetch(String authToken) throws IOException {
+        UserInfo userInfo = identityProviderService.getUserInfo(mciProperties, authToken);
+        userInfoCache.put(authToken, new CachedUserInfo(userInfo, System.currentTimeMillis()));
+        return userInfo;
+    }
+
+    private UserInfo await(CompletableFuture<UserInfo> inFlightLoad) throws IOException {
+        try {
+            return inFlightLoad.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for user info.", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IOException(cause);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package org.sharedhealth.mci.web.service;
+
+/*
+    Exponentially weighted moving averages of the health id consumption rate and of the
+    time the HID service takes to hand out a block. Samples are weighted by the time that
+    passed since the previous one, so an early wake-up counts for less than a full period.
+* */
+public class HealthIdDemandForecast {
+    private static final double RATE_TIME_CONSTANT_MILLIS = 60 * 1000;
+    private static final double FETCH_WEIGHT = 0.3;
+
+    private long lastSampleAt = -1;
+    private long lastNoOfHIDsDispensed;
+    private double ratePerSecond;
+    private double fetchSeconds;
+
+    public synchronized void sample(long noOfHIDsDispensed, long now) {
+        if (lastSampleAt < 0) {
+            lastSampleAt = now;
+            lastNoOfHIDsDispensed = noOfHIDsDispensed;
+            return;
+        }
+        long elapsed = now - lastSampleAt;
+        if (elapsed <= 0) return;
+        double currentRate = (noOfHIDsDispensed - lastNoOfHIDsDispensed) * 1000.0 / elapsed;
+        double weight = 1 - Math.exp(-elapsed / RATE_TIME_CONSTANT_MILLIS);
+        ratePerSecond += weight * (currentRate - ratePerSecond);
+        lastSampleAt = now;
+        lastNoOfHIDsDispensed = noOfHIDsDispensed;
+    }
+
+    public synchronized void recordFetch(long elapsedMillis) {
+        double seconds = elapsedMillis / 1000.0;
+        fetchSeconds = fetchSeconds == 0 ? seconds : fetchSeconds + FETCH_WEIGHT * (seconds - fetchSeconds);
+    }
+
+    public synchronized double getRatePerSecond() {
+        return ratePerSecond;
+    }
+
+    public synchronized double getFetchSeconds() {
+        return fetchSeconds;
+    }
+
+    //Double.POSITIVE_INFINITY when nothing is being consumed
+    public synchronized double secondsUntil(int noOfHIDsLeft, int mark) {
+        if (ratePerSecond <= 0) return Double.POSITIVE_INFINITY;
+        return Math.max(0, noOfHIDsLeft - mark) / ratePerSecond;
+    }
+}
@@ -0,0 +1,136 @@
+package org.sharedhealth.mci.web.service;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.sharedhealth.mci.web.model.MciHealthIdStore;
+import org.sharedhealth.mci.web.repository.HealthIdLedger;
+import org.sharedhealth.mci.web.repository.PatientRepository;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+    Checks health ids that the ledger could not vouch for against the patient table.
+    Ids are grouped into token-aware IN batches and at most a fixed number of batches are
+    in flight at a time. Every verified batch goes straight into the store, so callers can
+    start serving as soon as a minimum pool is available while the rest is checked.
+* */
+public class HealthIdReconciler {
+    private static final Logger logger = LogManager.getLogger(HealthIdReconciler.class);
+
+    private PatientRepository patientRepository;
+    private HealthIdLedger healthIdLedger;
+    private MciHealthIdStore mciHealthIdStore;
+    private int batchSize;
+    private int concurrency;
+    private int minPoolSize;
+    private final CompletableFuture<Void> minimumPoolVerified = new CompletableFuture<>();
+    private final CompletableFuture<Void> allVerified = new CompletableFuture<>();
+
+    public HealthIdReconciler(PatientRepository patientRepository, HealthIdLedger healthIdLedger, MciHealthIdStore mciHealthIdStore,
+                              int batchSize, int concurrency, int minPoolSize) {
+        this.patientRepository = patientRepository;
+        this.healthIdLedger = healthIdLedger;
+        this.mciHealthIdStore = mciHealthIdStore;
+        this.batchSize = batchSize;
+        this.concurrency = concurrency;
+        this.minPoolSize = minPoolSize;
+        allVerified.thenRun(() -> minimumPoolVerified.complete(null));
+    }
+
+    //completes once the store holds the minimum pool or every batch is checked, whichever is first
+    public CompletableFuture<Void> getMinimumPoolVerified() {
+        return minimumPoolVerified;
+    }
+
+    public CompletableFuture<Void> getAllVerified() {
+        return allVerified;
+    }
+
+    public HealthIdReconciler start(List<String> unverifiedHIDs) {
+        List<List<String>> batches = patientRepository.groupByReplicas(unverifiedHIDs, batchSize);
+        logger.info("Verifying {} health ids in {} batches", unverifiedHIDs.size(), batches.size());
+        if (batches.isEmpty() || mciHealthIdStore.noOfHIDsLeft() >= minPoolSize) {
+            minimumPoolVerified.complete(null);
+        }
+        if (batches.isEmpty()) {
+            allVerified.complete(null);
+            return this;
+        }
+
+        ExecutorService callbackExecutor = Executors.newSingleThreadExecutor();
+        Semaphore inFlight = new Semaphore(concurrency);
+        AtomicInteger noOfBatchesLeft = new AtomicInteger(batches.size());
+        AtomicInteger noOfHIDsVerified = new AtomicInteger();
+        int progressStep = Math.max(1, batches.size() / 10);
+
+        Thread submitter = new Thread(() -> {
+            for (List<String> batch : batches) {
+                inFlight.acquireUninterruptibly();
+                ListenableFuture<Set<String>> existingHIDsFuture;
+                try {
+                    existingHIDsFuture = patientRepository.findExistingHealthIds(batch);
+                } catch (RuntimeException e) {
+                    existingHIDsFuture = Futures.immediateFailedFuture(e);
+                }
+                Futures.addCallback(existingHIDsFuture, new FutureCallback<Set<String>>() {
+                    @Override
+                    public void onSuccess(Set<String> existingHIDs) {
+                        try {
+                            noOfHIDsVerified.addAndGet(addUnusedHIDs(batch, existingHIDs));
+                        } catch (IOException e) {
+                            logger.error("Unable to record verified health ids, they will be verified on next startup", e);
+                        }
+                        onBatchDone();
+                    }
+
+                    @Override
+                    public void onFailure(Throwable t) {
+                        logger.error("Unable to verify a batch of health ids, they will be verified on next startup", t);
+                        onBatchDone();
+                    }
+
+                    private void onBatchDone() {
+                        inFlight.release();
+                        if (mciHealthIdStore.noOfHIDsLeft() >= minPoolSize) {
+                            minimumPoolVerified.complete(null);
+                        }
+                        int left = noOfBatchesLeft.decrementAndGet();
+                        if ((batches.size() - left) % progressStep == 0 || left == 0) {
+                            logger.info("Verified {} of {} batches, {} health ids available",
+                                    batches.size() - left, batches.size(), noOfHIDsVerified.get());
+                        }
+                        if (left == 0) {
+                            callbackExecutor.shutdown();
+                            allVerified.complete(null);
+                        }
+                    }
+                }, callbackExecutor);
+            }
+        }, "health-id-reconciler");
+        submitter.setDaemon(true);
+        submitter.start();
+        return this;
+    }
+
+    private int addUnusedHIDs(List<String> batch, Set<String> existingHIDs) throws IOException {
+        List<String> unusedHIDs = new ArrayList<>(batch.size());
+        for (String healthId : batch) {
+            if (existingHIDs.contains(healthId)) {
+                healthIdLedger.consumed(healthId);
+            } else {
+                unusedHIDs.add(healthId);
+            }
+        }
+        healthIdLedger.issued(unusedHIDs);
+        mciHealthIdStore.addMciHealthIds(unusedHIDs);
+        return unusedHIDs.size();
+    }
+}
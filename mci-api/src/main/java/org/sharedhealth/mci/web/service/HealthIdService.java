@@ -1,36 +1,39 @@
 package org.sharedhealth.mci.web.service;
 
-import com.google.common.base.Charsets;
-import org.apache.commons.collections4.CollectionUtils;
-import org.apache.commons.io.IOUtils;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import org.codehaus.jackson.map.ObjectMapper;
-import org.sharedhealth.mci.web.WebClient;
 import org.sharedhealth.mci.web.config.MCIProperties;
 import org.sharedhealth.mci.web.launch.Application;
 import org.sharedhealth.mci.web.model.MciHealthId;
 import org.sharedhealth.mci.web.model.MciHealthIdStore;
+import org.sharedhealth.mci.web.repository.HealthIdLedger;
 import org.sharedhealth.mci.web.repository.PatientRepository;
 
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.util.*;
-import java.util.concurrent.ConcurrentLinkedQueue;
-
-import static org.sharedhealth.mci.web.util.HttpUtil.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class HealthIdService {
     private static final Logger logger = LogManager.getLogger(HealthIdService.class);
 
-    private static final String HEALTH_ID_LIST_KEY = "hids";
+    private static final int MIN_REPLENISH_DELAY_MILLIS = 1000;
+    private static final double REPLENISH_SAFETY_FACTOR = 2;
 
     private IdentityProviderService identityProviderService;
     private MciHealthIdStore mciHealthIdStore;
     private MCIProperties mciProperties;
     private PatientRepository patientRepository;
+    private HealthIdLedger healthIdLedger;
+    private HealthIdDemandForecast demandForecast;
+    private HealthIdServiceClient healthIdServiceClient;
+    //compaction rewrites and forces the ledger file, so it never runs on a request or replenish thread
+    private final ExecutorService ledgerCompactor;
+    private volatile CompletableFuture<Void> blockInFlight = CompletableFuture.completedFuture(null);
 
     public HealthIdService(IdentityProviderService identityProviderService,
                            MciHealthIdStore mciHealthIdStore, MCIProperties mciProperties) {
@@ -38,85 +41,130 @@ public class HealthIdService {
         this.mciHealthIdStore = mciHealthIdStore;
         this.mciProperties = mciProperties;
         this.patientRepository = Application.getPatientRepository();
+        this.healthIdLedger = new HealthIdLedger(mciProperties.getHidLocalStoragePath());
+        this.demandForecast = new HealthIdDemandForecast();
+        this.healthIdServiceClient = new HealthIdServiceClient(identityProviderService, mciProperties);
+        this.ledgerCompactor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "health-id-ledger-compaction");
+            thread.setDaemon(true);
+            return thread;
+        });
     }
 
     public MciHealthId getNextHealthId() {
         String nextHealthId = mciHealthIdStore.getNextHealthId();
+        try {
+            healthIdLedger.consumed(nextHealthId);
+        } catch (IOException e) {
+            //an id that is not recorded as consumed could be handed out again after a restart
+            mciHealthIdStore.addMciHealthIds(Collections.singletonList(nextHealthId));
+            throw new RuntimeException("Could not record health id as consumed", e);
+        }
         return new MciHealthId(nextHealthId);
     }
 
 
     public void putBack(MciHealthId healthId) {
-        mciHealthIdStore.addMciHealthIds(Arrays.asList(healthId.getHid()));
+        List<String> healthIds = Collections.singletonList(healthId.getHid());
+        try {
+            healthIdLedger.issued(healthIds);
+        } catch (IOException e) {
+            logger.error(String.format("Could not record health id %s as put back", healthId.getHid()), e);
+        }
+        mciHealthIdStore.addMciHealthIds(healthIds);
     }
 
+    /*
+        Serves the ids the ledger knows to be unused right away. Ids carried over from the older
+        file format are checked against the patient table in the background; this returns as soon
+        as a minimum pool is available.
+    * */
     public void loadFromFile() throws IOException {
         logger.info("Loading HealthIds from file.");
-        List<String> existingHIDs = getExistingHIDs();
-        ConcurrentLinkedQueue<String> hidBlock = new ConcurrentLinkedQueue<>();
-        for (String existingHID : existingHIDs) {
-            if (null == patientRepository.findByHealthId(existingHID)) {
-                hidBlock.add(existingHID);
-            }
+        List<String> availableHIDs = healthIdLedger.getAvailable();
+        mciHealthIdStore.addMciHealthIds(availableHIDs);
+        logger.info("Loaded {} healthIds from file", availableHIDs.size());
+
+        List<String> unverifiedHIDs = healthIdLedger.getUnverified();
+        if (unverifiedHIDs.isEmpty()) {
+            compactLedger();
+            return;
         }
-        addMciHealthIds(hidBlock);
+        HealthIdReconciler healthIdReconciler = new HealthIdReconciler(patientRepository, healthIdLedger, mciHealthIdStore,
+                mciProperties.getHidStartupBatchSize(), mciProperties.getHidStartupConcurrency(),
+                mciProperties.getHidStartupMinPoolSize()).start(unverifiedHIDs);
+        healthIdReconciler.getAllVerified().thenRun(this::compactLedger);
+        healthIdReconciler.getMinimumPoolVerified().join();
     }
 
-    public void replenishIfNeeded() throws IOException {
-        if (mciHealthIdStore.noOfHIDsLeft() > mciProperties.getHealthIdReplenishThreshold()) return;
-        List nextBlock = getNextBlockFromHidService();
-        if (nextBlock != null) {
-            addMciHealthIds(nextBlock);
-        }
-    }
-
-    private void addMciHealthIds(Collection nextBlock) throws IOException {
-        Collection hids = CollectionUtils.union(mciHealthIdStore.getAll(), nextBlock);
-        writeHIDsToFile(hids);
-        mciHealthIdStore.addMciHealthIds(nextBlock);
-        logger.info("Replenished {} healthIds from HID service", nextBlock.size());
-    }
-
-    private void writeHIDsToFile(Collection hids) throws IOException {
-        IOUtils.writeLines(hids, IOUtils.LINE_SEPARATOR_UNIX,
-                new FileOutputStream(mciProperties.getHidLocalStoragePath()), Charsets.UTF_8);
+    /*
+        Starts fetching a block once the pool is down to the threshold and returns without waiting
+        for it. Requests keep taking ids from the current pool meanwhile; as the threshold covers the
+        expected demand during a fetch, the new block lands before the pool runs dry. At most one
+        fetch is in flight, later calls get the pending one.
+    * */
+    public CompletableFuture<Void> replenishIfNeeded() {
+        demandForecast.sample(mciHealthIdStore.noOfHIDsDispensed(), System.currentTimeMillis());
+        int threshold = getReplenishThreshold();
+        mciHealthIdStore.setLowWaterMark(threshold);
+        if (!blockInFlight.isDone()) return blockInFlight;
+        if (mciHealthIdStore.noOfHIDsLeft() > threshold) return CompletableFuture.completedFuture(null);
+
+        long fetchStartedAt = System.currentTimeMillis();
+        blockInFlight = healthIdServiceClient.fetchNextBlock(getReplenishBlockSize()).thenAccept(nextBlock -> {
+            demandForecast.recordFetch(System.currentTimeMillis() - fetchStartedAt);
+            if (nextBlock == null) return;
+            try {
+                addMciHealthIds(nextBlock);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            }
+        }).whenComplete((result, e) -> {
+            if (e != null) logger.error("Unable to replenish health ids.", e);
+        });
+        return blockInFlight;
     }
 
-    private List getNextBlockFromHidService() throws IOException {
-        String hidServiceNextBlockPath = getHidServiceNextBlockPath();
-        String response = new WebClient().get(mciProperties.getHidServiceBaseUrl(), hidServiceNextBlockPath, getHIDServiceHeaders());
-        if (response != null) {
-            Map map = new ObjectMapper().readValue(response, Map.class);
-            return (List) map.get(HEALTH_ID_LIST_KEY);
-        }
-        return null;
+    /*
+        Replenish runs are brought forward when, at the current consumption rate, the pool would
+        reach the threshold before the configured delay is over.
+    * */
+    public long getNextReplenishDelay() {
+        long configuredDelay = mciProperties.getHealthIdReplenishDelay();
+        double secondsToThreshold = demandForecast.secondsUntil(mciHealthIdStore.noOfHIDsLeft(), getReplenishThreshold());
+        if (Double.isInfinite(secondsToThreshold)) return configuredDelay;
+        long delay = (long) (secondsToThreshold * 1000 / REPLENISH_SAFETY_FACTOR);
+        return Math.max(MIN_REPLENISH_DELAY_MILLIS, Math.min(configuredDelay, delay));
     }
 
-    private Map<String, String> getHIDServiceHeaders() throws IOException {
-        Map<String, String> healthIdServiceHeader = new HashMap<>();
-        String idpToken = identityProviderService.getOrCreateIdentityToken(mciProperties);
-        healthIdServiceHeader.put(X_AUTH_TOKEN_KEY, idpToken);
-        healthIdServiceHeader.put(CLIENT_ID_KEY, mciProperties.getIdpClientId());
-        healthIdServiceHeader.put(FROM_KEY, mciProperties.getIdpEmail());
-        return healthIdServiceHeader;
+    //enough ids to last while a block is fetched and the next run is due, never below the configured threshold
+    int getReplenishThreshold() {
+        double leadSeconds = demandForecast.getFetchSeconds() + MIN_REPLENISH_DELAY_MILLIS / 1000.0;
+        int demandDuringLead = (int) Math.ceil(demandForecast.getRatePerSecond() * leadSeconds * REPLENISH_SAFETY_FACTOR);
+        return Math.max(mciProperties.getHealthIdReplenishThreshold(), demandDuringLead);
     }
 
-    private List<String> getExistingHIDs() throws IOException {
-        File file = getHidFile();
-        return IOUtils.readLines(new FileInputStream(file), Charsets.UTF_8);
+    //enough ids to last one configured replenish delay, between the configured and the maximum block size
+    int getReplenishBlockSize() {
+        int demandDuringDelay = (int) Math.ceil(demandForecast.getRatePerSecond() * mciProperties.getHealthIdReplenishDelay() / 1000.0);
+        int blockSize = Math.max(mciProperties.getHealthIdReplenishBlockSize(), demandDuringDelay);
+        return Math.min(blockSize, mciProperties.getHealthIdReplenishMaxBlockSize());
     }
 
-    private File getHidFile() throws IOException {
-        String filePath = mciProperties.getHidLocalStoragePath();
-        File file = new File(filePath);
-        if (!file.isFile() && !file.createNewFile()) {
-            throw new IOException("Error creating new file: " + file.getAbsolutePath());
-        }
-        return file;
+    private void addMciHealthIds(List<String> nextBlock) throws IOException {
+        healthIdLedger.issued(nextBlock);
+        mciHealthIdStore.addMciHealthIds(nextBlock);
+        logger.info("Replenished {} healthIds from HID service", nextBlock.size());
+        compactLedger();
     }
 
-    private String getHidServiceNextBlockPath() {
-        return String.format(mciProperties.getHidServiceNextBlockUrlPattern(),
-                mciProperties.getMciOrgCode(), mciProperties.getHealthIdReplenishBlockSize());
+    private void compactLedger() {
+        ledgerCompactor.execute(() -> {
+            try {
+                healthIdLedger.compactIfNeeded();
+            } catch (IOException e) {
+                logger.error("Unable to compact health id file", e);
+            }
+        });
     }
 }
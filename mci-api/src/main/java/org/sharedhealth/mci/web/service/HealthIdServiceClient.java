@@ -0,0 +1,118 @@
+package org.sharedhealth.mci.web.service;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.sharedhealth.mci.web.WebClient;
+import org.sharedhealth.mci.web.config.MCIProperties;
+import org.sharedhealth.mci.web.exception.NotFoundException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+
+import static org.sharedhealth.mci.web.util.HttpUtil.*;
+
+/*
+    Fetches health id blocks from the HID service off the caller's thread. Failed fetches are
+    retried with exponential backoff and jitter, and the "hids" array is read token by token
+    from the response stream instead of being buffered as a string first.
+* */
+public class HealthIdServiceClient {
+    private static final Logger logger = LogManager.getLogger(HealthIdServiceClient.class);
+
+    private static final String HEALTH_ID_LIST_KEY = "hids";
+    private static final JsonFactory jsonFactory = new JsonFactory();
+    private static final int MAX_ATTEMPTS = 5;
+    private static final long BASE_BACKOFF_MILLIS = 500;
+    private static final long MAX_BACKOFF_MILLIS = 30 * 1000;
+
+    private IdentityProviderService identityProviderService;
+    private MCIProperties mciProperties;
+    private ScheduledExecutorService executor;
+    private WebClient webClient;
+
+    public HealthIdServiceClient(IdentityProviderService identityProviderService, MCIProperties mciProperties) {
+        this.identityProviderService = identityProviderService;
+        this.mciProperties = mciProperties;
+        this.webClient = new WebClient();
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "hid-service-client");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    //completes with null when the HID service answers without a body
+    public CompletableFuture<List<String>> fetchNextBlock(int blockSize) {
+        CompletableFuture<List<String>> nextBlock = new CompletableFuture<>();
+        executor.execute(() -> attempt(blockSize, 1, nextBlock));
+        return nextBlock;
+    }
+
+    private void attempt(int blockSize, int attempt, CompletableFuture<List<String>> nextBlock) {
+        try {
+            nextBlock.complete(getNextBlock(blockSize));
+        } catch (NotFoundException e) {
+            nextBlock.completeExceptionally(e);
+        } catch (Exception e) {
+            if (attempt >= MAX_ATTEMPTS) {
+                nextBlock.completeExceptionally(e);
+                return;
+            }
+            long backoff = getBackoffMillis(attempt);
+            logger.warn(String.format("Unable to fetch health ids (attempt %s of %s), retrying in %s ms",
+                    attempt, MAX_ATTEMPTS, backoff), e);
+            executor.schedule(() -> attempt(blockSize, attempt + 1, nextBlock), backoff, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    //half of the exponential delay is fixed and half is random, so retries of several instances spread out
+    static long getBackoffMillis(int attempt) {
+        long delay = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << Math.min(attempt - 1, 16));
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    private List<String> getNextBlock(int blockSize) throws IOException {
+        String hidServiceNextBlockPath = String.format(mciProperties.getHidServiceNextBlockUrlPattern(),
+                mciProperties.getMciOrgCode(), blockSize);
+        return webClient.get(mciProperties.getHidServiceBaseUrl(), hidServiceNextBlockPath, getHIDServiceHeaders(),
+                this::readHealthIds);
+    }
+
+    private List<String> readHealthIds(InputStream content) throws IOException {
+        List<String> healthIds = new ArrayList<>();
+        try (JsonParser parser = jsonFactory.createParser(content)) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Unexpected response from HID service.");
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String fieldName = parser.getCurrentName();
+                JsonToken value = parser.nextToken();
+                if (HEALTH_ID_LIST_KEY.equals(fieldName) && value == JsonToken.START_ARRAY) {
+                    while (parser.nextToken() != JsonToken.END_ARRAY) {
+                        healthIds.add(parser.getText());
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        return healthIds;
+    }
+
+    private Map<String, String> getHIDServiceHeaders() throws IOException {
+        Map<String, String> healthIdServiceHeader = new HashMap<>();
+        String idpToken = identityProviderService.getOrCreateIdentityToken(mciProperties);
+        healthIdServiceHeader.put(X_AUTH_TOKEN_KEY, idpToken);
+        healthIdServiceHeader.put(CLIENT_ID_KEY, mciProperties.getIdpClientId());
+        healthIdServiceHeader.put(FROM_KEY, mciProperties.getIdpEmail());
+        return healthIdServiceHeader;
+    }
+}
@@ -1,6 +1,5 @@
 package org.sharedhealth.mci.web.service;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.sharedhealth.mci.web.WebClient;
@@ -47,12 +46,8 @@ public class IdentityProviderService {
         Map<String, String> formEntities = new HashMap<>();
         formEntities.put(EMAIL_KEY, mciProperties.getIdpEmail());
         formEntities.put(PASSWORD_KEY, mciProperties.getIdpPassword());
-        String response = new WebClient().post(mciProperties.getIdpBaseUrl(), mciProperties.getIdpSignInUrl(), headers, formEntities);
-        if (response != null) {
-            Map map = new ObjectMapper().readValue(response, Map.class);
-            return (String) map.get(ACCESS_TOKEN_KEY);
-        }
-        return null;
+        Map response = new WebClient().post(mciProperties.getIdpBaseUrl(), mciProperties.getIdpSignInUrl(), headers, formEntities, Map.class);
+        return response != null ? (String) response.get(ACCESS_TOKEN_KEY) : null;
     }
 
     public UserInfo getUserInfo(MCIProperties mciProperties, String clientAuthToken) throws IOException {
@@ -60,13 +55,15 @@ public class IdentityProviderService {
         headers.put(X_AUTH_TOKEN_KEY, mciProperties.getIdpXAuthToken());
         headers.put(CLIENT_KEY, mciProperties.getIdpClientId());
         String userInfoUrl = String.format(mciProperties.getIdpUserInfoUrl(), clientAuthToken);
-        String response;
+        UserInfo userInfo;
         try {
-            response = new WebClient().get(mciProperties.getIdpBaseUrl(), userInfoUrl, headers);
+            userInfo = new WebClient().get(mciProperties.getIdpBaseUrl(), userInfoUrl, headers, UserInfo.class);
         } catch (NotFoundException e) {
             throw new IdentityUnauthorizedException("Identity not authorized.");
         }
-        UserInfo userInfo = new ObjectMapper().readValue(response, UserInfo.class);
+        if (userInfo == null) {
+            throw new IdentityUnauthorizedException("Identity not authorized.");
+        }
         return userInfo;
     }
 }
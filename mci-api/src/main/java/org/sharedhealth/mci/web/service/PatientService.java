@@ -1,53 +1,202 @@
 package org.sharedhealth.mci.web.service;
 
+import ca.uhn.fhir.model.api.IResource;
 import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import ca.uhn.fhir.model.dstu2.resource.OperationOutcome;
+import ca.uhn.fhir.model.dstu2.valueset.BundleTypeEnum;
+import ca.uhn.fhir.model.dstu2.valueset.IssueSeverityEnum;
+import ca.uhn.fhir.model.dstu2.valueset.IssueTypeEnum;
+import ca.uhn.fhir.model.dstu2.valueset.SearchEntryModeEnum;
+import com.codahale.metrics.Meter;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.Uninterruptibles;
 import org.apache.http.HttpStatus;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.ehcache.Cache;
+import org.sharedhealth.mci.web.config.MCIMetrics;
+import org.sharedhealth.mci.web.config.MCIProperties;
 import org.sharedhealth.mci.web.exception.PatientNotFoundException;
 import org.sharedhealth.mci.web.mapper.FHIRBundleMapper;
 import org.sharedhealth.mci.web.mapper.MCIPatientMapper;
+import org.sharedhealth.mci.web.model.EncodedPatient;
 import org.sharedhealth.mci.web.model.Error;
 import org.sharedhealth.mci.web.model.MCIResponse;
 import org.sharedhealth.mci.web.model.MciHealthId;
 import org.sharedhealth.mci.web.model.Requester;
 import org.sharedhealth.mci.web.repository.PatientRepository;
 import org.sharedhealth.mci.web.security.UserInfo;
+import org.sharedhealth.mci.web.util.FhirContextHelper;
 import org.sharedhealth.mci.web.util.TimeUuidUtil;
 import org.sharedhealth.mci.web.validations.FhirPatientValidator;
 import org.sharedhealth.mci.web.validations.MCIValidationResult;
 
 import java.nio.file.AccessDeniedException;
-import java.util.Date;
-import java.util.UUID;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
 
 import static org.sharedhealth.mci.web.util.JsonMapper.writeValueAsString;
 
 public class PatientService {
     private static final Logger logger = LogManager.getLogger(PatientService.class);
+    private static final String XML_FORMAT = "xml";
     private MCIPatientMapper mciPatientMapper;
     private FHIRBundleMapper fhirBundleMapper;
     private PatientRepository patientRepository;
     private HealthIdService healthIdService;
     private FhirPatientValidator fhirPatientValidator;
+    private Cache<String, byte[]> patientResponseCache;
+    private final Meter responseCacheHits;
+    private final Meter responseCacheMisses;
+    private final int batchReadConcurrency;
+    private final Meter createsShed;
+    private final Semaphore inFlightCreates;
 
     public PatientService(MCIPatientMapper mciPatientMapper, FHIRBundleMapper fhirBundleMapper, HealthIdService healthIdService,
-                          PatientRepository patientRepository, FhirPatientValidator fhirPatientValidator) {
+                          PatientRepository patientRepository, FhirPatientValidator fhirPatientValidator,
+                          Cache<String, byte[]> patientResponseCache) {
+        this(mciPatientMapper, fhirBundleMapper, healthIdService, patientRepository, fhirPatientValidator, patientResponseCache,
+                MCIProperties.getInstance().getPatientCreateMaxInFlight());
+    }
+
+    PatientService(MCIPatientMapper mciPatientMapper, FHIRBundleMapper fhirBundleMapper, HealthIdService healthIdService,
+                   PatientRepository patientRepository, FhirPatientValidator fhirPatientValidator,
+                   Cache<String, byte[]> patientResponseCache, int maxInFlightCreates) {
         this.mciPatientMapper = mciPatientMapper;
         this.fhirBundleMapper = fhirBundleMapper;
         this.healthIdService = healthIdService;
         this.patientRepository = patientRepository;
         this.fhirPatientValidator = fhirPatientValidator;
+        this.patientResponseCache = patientResponseCache;
+        this.responseCacheHits = MCIMetrics.getRegistry().meter("patient.response-cache.hits");
+        this.responseCacheMisses = MCIMetrics.getRegistry().meter("patient.response-cache.misses");
+        this.batchReadConcurrency = MCIProperties.getInstance().getPatientBatchConcurrency();
+        this.inFlightCreates = new Semaphore(maxInFlightCreates);
+        this.createsShed = MCIMetrics.getRegistry().meter("patient.create.shed");
     }
 
     public Bundle findPatientByHealthId(String healthId) {
+        return mciPatientMapper.mapPatientToBundle(findMCIPatient(healthId));
+    }
+
+    /*
+        Returns the patient bundle encoded as XML. Encoded bundles are cached by health id and last update,
+        so a changed patient is encoded again and the old entry simply ages out. Confidential patients,
+        and patients without any update time to key them by, are always encoded on request.
+    * */
+    public EncodedPatient findEncodedPatientByHealthId(String healthId) {
+        org.sharedhealth.mci.web.model.Patient mciPatient = findMCIPatient(healthId);
+        return new EncodedPatient(encode(mciPatient), mciPatient.getUpdatedAt());
+    }
+
+    /*
+        Reads several patients at once. The reads are sent asynchronously, at most batch concurrency of them
+        in flight, and collected into one searchset bundle in the requested order. Every health id is checked
+        against the user's access like a single read; ids that are denied, unknown or fail to load get an
+        OperationOutcome entry instead of failing the whole request.
+    * */
+    public Bundle findPatientsByHealthIds(Collection<String> healthIds, UserInfo userInfo) {
+        Semaphore inFlightReads = new Semaphore(batchReadConcurrency);
+        Map<String, ListenableFuture<org.sharedhealth.mci.web.model.Patient>> reads = new LinkedHashMap<>();
+        for (String healthId : new LinkedHashSet<>(healthIds)) {
+            if (!userInfo.getProperties().canAccessPatient(healthId)) {
+                reads.put(healthId, null);
+                continue;
+            }
+            inFlightReads.acquireUninterruptibly();
+            ListenableFuture<org.sharedhealth.mci.web.model.Patient> read;
+            try {
+                read = patientRepository.findByHealthIdAsync(healthId);
+            } catch (RuntimeException e) {
+                read = Futures.immediateFailedFuture(e);
+            }
+            read.addListener(inFlightReads::release, MoreExecutors.sameThreadExecutor());
+            reads.put(healthId, read);
+        }
+
+        Bundle bundle = new Bundle();
+        bundle.setType(BundleTypeEnum.SEARCH_RESULTS);
+        int total = 0;
+        for (Map.Entry<String, ListenableFuture<org.sharedhealth.mci.web.model.Patient>> read : reads.entrySet()) {
+            String healthId = read.getKey();
+            if (read.getValue() == null) {
+                addOutcome(bundle, IssueTypeEnum.FORBIDDEN, String.format("Access to patient with health id %s is denied", healthId));
+                continue;
+            }
+            try {
+                org.sharedhealth.mci.web.model.Patient mciPatient = Uninterruptibles.getUninterruptibly(read.getValue());
+                if (null == mciPatient) {
+                    addOutcome(bundle, IssueTypeEnum.NOT_FOUND, "No patient found with health id: " + healthId);
+                    continue;
+                }
+                addPatientEntries(bundle, mciPatientMapper.mapPatientToBundle(mciPatient));
+                total++;
+            } catch (ExecutionException e) {
+                logger.error(String.format("Error while finding patient with health id %s", healthId), e.getCause());
+                addOutcome(bundle, IssueTypeEnum.EXCEPTION, "Error while finding patient with health id: " + healthId);
+            }
+        }
+        bundle.setTotal(total);
+        return bundle;
+    }
+
+    //the patient is the match, its related persons are included along with it
+    private void addPatientEntries(Bundle bundle, Bundle patientBundle) {
+        for (Bundle.Entry patientEntry : patientBundle.getEntry()) {
+            IResource resource = patientEntry.getResource();
+            Bundle.Entry entry = bundle.addEntry().setFullUrl(patientEntry.getFullUrl()).setResource(resource);
+            entry.getSearch().setMode(resource instanceof ca.uhn.fhir.model.dstu2.resource.Patient
+                    ? SearchEntryModeEnum.MATCH : SearchEntryModeEnum.INCLUDE);
+        }
+    }
+
+    private void addOutcome(Bundle bundle, IssueTypeEnum issueType, String diagnostics) {
+        OperationOutcome outcome = new OperationOutcome();
+        outcome.addIssue().setSeverity(IssueSeverityEnum.ERROR).setCode(issueType).setDiagnostics(diagnostics);
+        bundle.addEntry().setResource(outcome).getSearch().setMode(SearchEntryModeEnum.OUTCOME);
+    }
+
+    public UUID findPatientUpdatedAt(String healthId) {
+        UUID updatedAt = patientRepository.findUpdatedAt(healthId);
+        if (null == updatedAt) {
+            throw new PatientNotFoundException("No patient found with health id: " + healthId);
+        }
+        return updatedAt;
+    }
+
+    private byte[] encode(org.sharedhealth.mci.web.model.Patient mciPatient) {
+        if (patientResponseCache == null || mciPatient.getUpdatedAt() == null || Boolean.TRUE.equals(mciPatient.isConfidential())) {
+            return FhirContextHelper.encodeResourceToBytes(mciPatientMapper.mapPatientToBundle(mciPatient));
+        }
+        String cacheKey = String.format("%s:%s:%s", mciPatient.getHealthId(), mciPatient.getUpdatedAt(), XML_FORMAT);
+        byte[] encodedPatient = patientResponseCache.get(cacheKey);
+        if (encodedPatient != null) {
+            responseCacheHits.mark();
+            return encodedPatient;
+        }
+        responseCacheMisses.mark();
+        encodedPatient = FhirContextHelper.encodeResourceToBytes(mciPatientMapper.mapPatientToBundle(mciPatient));
+        patientResponseCache.put(cacheKey, encodedPatient);
+        return encodedPatient;
+    }
+
+    private org.sharedhealth.mci.web.model.Patient findMCIPatient(String healthId) {
         org.sharedhealth.mci.web.model.Patient mciPatient = patientRepository.findByHealthId(healthId);
         if (null == mciPatient) {
             throw new PatientNotFoundException("No patient found with health id: " + healthId);
         }
-        return mciPatientMapper.mapPatientToBundle(mciPatient);
+        return mciPatient;
     }
 
+    /*
+        Admission limit only: only a bounded number of creates may be writing at once. Once they are all
+        taken, further creates are turned away with 503 before a health id is handed out, rather than queueing
+        up request threads behind a slow cluster. The write itself is synchronous, the request thread is held
+        until cassandra answers.
+    * */
     public MCIResponse createPatient(Bundle bundle, UserInfo userInfo) throws AccessDeniedException {
         MCIValidationResult validate = fhirPatientValidator.validate(bundle);
         if (!validate.isSuccessful()) {
@@ -55,28 +204,35 @@ public class PatientService {
         }
         org.sharedhealth.mci.web.model.Patient mciPatient = new org.sharedhealth.mci.web.model.Patient();
         mciPatient = fhirBundleMapper.mapToMCIPatient(bundle);
-        MciHealthId healthId;
-        healthId = healthIdService.getNextHealthId();
-        mciPatient.setHealthId(healthId.getHid());
-        UUID createdAt = TimeUuidUtil.uuidForDate(new Date());
-        mciPatient.setCreatedAt(createdAt);
-        mciPatient.setUpdatedAt(createdAt);
-        UserInfo.UserInfoProperties userInfoProperties = userInfo.getProperties();
-        String createdBy = writeValueAsString(new Requester(userInfoProperties.getFacilityId(),
-                userInfoProperties.getProviderId(), userInfoProperties.getAdminId(),
-                userInfoProperties.getName()));
-        mciPatient.setCreatedBy(createdBy);
-        mciPatient.setUpdatedBy(createdBy);
-        MCIResponse mciResponse = null;
+        if (!inFlightCreates.tryAcquire()) {
+            createsShed.mark();
+            logger.warn("Too many patient creations in flight, rejecting the request");
+            return getMciResponse("Too many patients are being created, please retry later",
+                    HttpStatus.SC_SERVICE_UNAVAILABLE);
+        }
         try {
-            mciResponse = patientRepository.createPatient(mciPatient);
-        } catch (Exception e) {
-            logger.error("Error while creating patient: " + e.getMessage(), e);
-            healthIdService.putBack(healthId);
-            return getMciResponse("Error while creating patient: " + e.getMessage(),
-                    HttpStatus.SC_INTERNAL_SERVER_ERROR);
+            MciHealthId healthId = healthIdService.getNextHealthId();
+            mciPatient.setHealthId(healthId.getHid());
+            UUID createdAt = TimeUuidUtil.uuidForDate(new Date());
+            mciPatient.setCreatedAt(createdAt);
+            mciPatient.setUpdatedAt(createdAt);
+            UserInfo.UserInfoProperties userInfoProperties = userInfo.getProperties();
+            String createdBy = writeValueAsString(new Requester(userInfoProperties.getFacilityId(),
+                    userInfoProperties.getProviderId(), userInfoProperties.getAdminId(),
+                    userInfoProperties.getName()));
+            mciPatient.setCreatedBy(createdBy);
+            mciPatient.setUpdatedBy(createdBy);
+            try {
+                return patientRepository.createPatient(mciPatient);
+            } catch (Exception e) {
+                logger.error("Error while creating patient: " + e.getMessage(), e);
+                healthIdService.putBack(healthId);
+                return getMciResponse("Error while creating patient: " + e.getMessage(),
+                        HttpStatus.SC_INTERNAL_SERVER_ERROR);
+            }
+        } finally {
+            inFlightCreates.release();
         }
-        return mciResponse;
     }
 
     private MCIResponse getMciResponse(String message, int status) {
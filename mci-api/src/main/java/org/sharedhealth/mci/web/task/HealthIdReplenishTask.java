@@ -5,22 +5,58 @@ import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.sharedhealth.mci.web.service.HealthIdService;
 
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/*
+    Reschedules itself after every run with the delay the health id service predicts from the
+    current demand. The store wakes it up straight away when the pool drops to the low-water mark.
+* */
 public class HealthIdReplenishTask implements Runnable {
     private final static Logger logger = LogManager.getLogger(HealthIdReplenishTask.class);
 
     HealthIdService healthIdService;
+    private final ScheduledExecutorService scheduler;
+    private final AtomicBoolean wakeUpPending = new AtomicBoolean();
+    private volatile boolean started;
+    private ScheduledFuture<?> nextRun;
 
-    public HealthIdReplenishTask(HealthIdService healthIdService) {
+    public HealthIdReplenishTask(HealthIdService healthIdService, ScheduledExecutorService scheduler) {
         this.healthIdService = healthIdService;
+        this.scheduler = scheduler;
+    }
+
+    public void start(long initialDelay) {
+        nextRun = scheduler.schedule(this, initialDelay, TimeUnit.MILLISECONDS);
     }
 
+    //called from request threads, so it only hands a run over to the scheduler
+    public void wakeUp() {
+        if (!started || !wakeUpPending.compareAndSet(false, true)) return;
+        scheduler.execute(this);
+    }
 
     @Override
     public void run() {
+        started = true;
+        wakeUpPending.set(false);
         try {
             healthIdService.replenishIfNeeded();
         } catch (Exception e) {
             logger.error("Unable to replenish health ids.", e);
+        } finally {
+            scheduleNextRun();
+        }
+    }
+
+    private void scheduleNextRun() {
+        if (nextRun != null) {
+            nextRun.cancel(false);
         }
+        long delay = healthIdService.getNextReplenishDelay();
+        logger.debug("Next health id replenish run in {} ms", delay);
+        nextRun = scheduler.schedule(this, delay, TimeUnit.MILLISECONDS);
     }
 }
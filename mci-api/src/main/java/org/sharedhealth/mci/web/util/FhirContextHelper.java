@@ -5,6 +5,8 @@ import ca.uhn.fhir.parser.IParser;
 import ca.uhn.fhir.parser.StrictErrorHandler;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 
+import java.nio.charset.StandardCharsets;
+
 public class FhirContextHelper {
     public static FhirContext fhirContext = getFhirContext();
     private static final IParser xmlParser = fhirContext.newXmlParser();
@@ -21,6 +23,10 @@ public class FhirContextHelper {
         return xmlParser.encodeResourceToString(resource);
     }
 
+    public static byte[] encodeResourceToBytes(IBaseResource resource) {
+        return encodeResource(resource).getBytes(StandardCharsets.UTF_8);
+    }
+
     public static IBaseResource parseResource(String content) {
         return xmlParser.parseResource(content);
     }
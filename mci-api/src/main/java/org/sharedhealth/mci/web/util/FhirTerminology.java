@@ -0,0 +1,75 @@
+package org.sharedhealth.mci.web.util;
+
+import ca.uhn.fhir.model.dstu2.valueset.AdministrativeGenderEnum;
+import com.google.common.collect.ImmutableBiMap;
+import com.google.common.collect.ImmutableMap;
+import org.hl7.fhir.instance.model.valuesets.PatientContactRelationship;
+import org.hl7.fhir.instance.model.valuesets.V3RoleCode;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+    Immutable lookup tables for the codings the patient mappers read and write, built once when the class loads.
+    Relationship codes come from the Patient-Contact-Relationship valueset, then from V3RoleCode for the rest.
+* */
+public final class FhirTerminology {
+    public static final ImmutableBiMap<String, AdministrativeGenderEnum> MCI_TO_FHIR_GENDER = ImmutableBiMap.of(
+            MCIConstants.MALE, AdministrativeGenderEnum.MALE,
+            MCIConstants.FEMALE, AdministrativeGenderEnum.FEMALE,
+            MCIConstants.OTHER, AdministrativeGenderEnum.OTHER);
+
+    public static final ImmutableMap<String, String> MCI_DOB_TYPE_DISPLAYS = ImmutableMap.of(
+            "1", "Declared",
+            "2", "Verified",
+            "3", "Estimated");
+
+    private static final ImmutableMap<String, Coding> RELATIONSHIP_CODINGS = buildRelationshipCodings();
+
+    private FhirTerminology() {
+    }
+
+    public static Coding findRelationshipCoding(String code) {
+        return code == null ? null : RELATIONSHIP_CODINGS.get(code);
+    }
+
+    private static ImmutableMap<String, Coding> buildRelationshipCodings() {
+        Map<String, Coding> codings = new HashMap<>();
+        for (V3RoleCode roleCode : V3RoleCode.values()) {
+            if (roleCode != V3RoleCode.NULL) {
+                codings.put(roleCode.toCode(), new Coding(roleCode.getSystem(), roleCode.toCode(), roleCode.getDisplay()));
+            }
+        }
+        //contact relationships take precedence over role codes with the same code
+        for (PatientContactRelationship relationship : PatientContactRelationship.values()) {
+            if (relationship != PatientContactRelationship.NULL) {
+                codings.put(relationship.toCode(), new Coding(relationship.getSystem(), relationship.toCode(), relationship.getDisplay()));
+            }
+        }
+        return ImmutableMap.copyOf(codings);
+    }
+
+    public static final class Coding {
+        private final String system;
+        private final String code;
+        private final String display;
+
+        private Coding(String system, String code, String display) {
+            this.system = system;
+            this.code = code;
+            this.display = display;
+        }
+
+        public String getSystem() {
+            return system;
+        }
+
+        public String getCode() {
+            return code;
+        }
+
+        public String getDisplay() {
+            return display;
+        }
+    }
+}
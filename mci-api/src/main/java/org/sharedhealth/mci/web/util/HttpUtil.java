@@ -4,4 +4,9 @@ public class HttpUtil {
     public static final String X_AUTH_TOKEN_KEY = "X-Auth-Token";
     public static final String CLIENT_ID_KEY = "client_id";
     public static final String FROM_KEY = "From";
+    public static final String ETAG_KEY = "ETag";
+    public static final String LAST_MODIFIED_KEY = "Last-Modified";
+    public static final String IF_NONE_MATCH_KEY = "If-None-Match";
+    public static final String IF_MODIFIED_SINCE_KEY = "If-Modified-Since";
+    public static final String RETRY_AFTER_KEY = "Retry-After";
 }
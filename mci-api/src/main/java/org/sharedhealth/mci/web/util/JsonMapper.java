@@ -1,19 +1,39 @@
 package org.sharedhealth.mci.web.util;
 
+import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import org.sharedhealth.mci.web.model.Relation;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import static java.lang.String.format;
 
+/*
+    One ObjectMapper for the whole service, with an ObjectReader and ObjectWriter kept per type.
+    Readers and writers are immutable and resolve their root (de)serializer when they are built,
+    so a call only parses or generates. Patient relations have their own pair, built when the class loads.
+* */
 public class JsonMapper {
 
     private static final ObjectMapper objectMapper = new ObjectMapper();
+    private static final ConcurrentMap<Class<?>, ObjectReader> readers = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<Class<?>, ObjectWriter> writers = new ConcurrentHashMap<>();
+
+    private static final TypeReference<List<Relation>> RELATION_LIST_TYPE = new TypeReference<List<Relation>>() {
+    };
+    private static final ObjectReader relationsReader = objectMapper.readerFor(RELATION_LIST_TYPE);
+    private static final ObjectWriter relationsWriter = objectMapper.writerFor(RELATION_LIST_TYPE);
 
     public static String writeValueAsString(Object o) {
         try {
-            return objectMapper.writeValueAsString(o);
+            return o == null ? objectMapper.writeValueAsString(null) : writerFor(o.getClass()).writeValueAsString(o);
         } catch (Exception e) {
             throw new RuntimeException(format("Error converting %s to string.", o), e);
         }
@@ -21,7 +41,7 @@ public class JsonMapper {
 
     public static <T> T readValue(String content, Class<T> valueType) {
         try {
-            return objectMapper.readValue(content, valueType);
+            return readerFor(valueType).readValue(content);
         } catch (IOException e) {
             throw new RuntimeException(format("Error converting content string to %s.", valueType), e);
         }
@@ -35,4 +55,36 @@ public class JsonMapper {
         }
     }
 
+    //an empty body reads as null, jackson would fail on the end of input before the caller could check it
+    public static <T> T readValue(InputStream content, Class<T> valueType) throws IOException {
+        ObjectReader reader = readerFor(valueType);
+        try (JsonParser parser = objectMapper.getFactory().createParser(content)) {
+            if (parser.nextToken() == null) return null;
+            return reader.readValue(parser);
+        }
+    }
+
+    public static String writeRelations(List<Relation> relations) {
+        try {
+            return relationsWriter.writeValueAsString(relations);
+        } catch (Exception e) {
+            throw new RuntimeException(format("Error converting %s to string.", relations), e);
+        }
+    }
+
+    public static List<Relation> readRelations(String content) {
+        try {
+            return relationsReader.readValue(content);
+        } catch (IOException e) {
+            throw new RuntimeException(format("Error converting content string to %s.", RELATION_LIST_TYPE.getType()), e);
+        }
+    }
+
+    private static ObjectReader readerFor(Class<?> valueType) {
+        return readers.computeIfAbsent(valueType, objectMapper::readerFor);
+    }
+
+    private static ObjectWriter writerFor(Class<?> valueType) {
+        return writers.computeIfAbsent(valueType, objectMapper::writerFor);
+    }
 }
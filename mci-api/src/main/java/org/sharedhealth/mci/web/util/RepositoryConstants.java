@@ -7,6 +7,7 @@ public class RepositoryConstants {
     public static final String CF_PATIENT_UPDATE_LOG = "patient_update_log";
     public static final String CF_PATIENT_AUDIT_LOG = "patient_audit_log";
     public static final String CF_MASTER_DATA = "master_data";
+    public static final String CF_PATIENT_LOG_OUTBOX = "patient_log_outbox";
 
 
     public static final String HID = "hid";
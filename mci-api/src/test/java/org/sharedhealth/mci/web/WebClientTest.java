@@ -0,0 +1,58 @@
+package org.sharedhealth.mci.web;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.MetricRegistry;
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import org.apache.http.HttpStatus;
+import org.junit.Rule;
+import org.junit.Test;
+import org.sharedhealth.mci.web.config.MCIMetrics;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class WebClientTest {
+    @Rule
+    public WireMockRule upstream = new WireMockRule(9996);
+
+    @Test
+    public void shouldReuseKeptAliveConnectionsAcrossRequests() throws Exception {
+        stubFor(get(urlEqualTo("/ping"))
+                .willReturn(aResponse().withStatus(HttpStatus.SC_OK).withBody("pong")));
+        WebClient webClient = new WebClient();
+        webClient.get("http://localhost:9996", "/ping", new HashMap<>());
+        MetricRegistry registry = MCIMetrics.getRegistry();
+        long noOfLeases = registry.timer("http.client.pool.lease-wait").getCount();
+        int noOfAvailableConnections = (Integer) registry.getGauges().get("http.client.pool.available").getValue();
+
+        assertEquals("pong", webClient.get("http://localhost:9996", "/ping", new HashMap<>()));
+        assertEquals("pong", new WebClient().get("http://localhost:9996", "/ping", new HashMap<>()));
+
+        assertEquals(noOfLeases + 2, registry.timer("http.client.pool.lease-wait").getCount());
+        assertEquals(0, getGaugeValue(registry, "http.client.pool.leased"));
+        assertEquals(noOfAvailableConnections, getGaugeValue(registry, "http.client.pool.available"));
+        assertTrue(noOfAvailableConnections >= 1);
+    }
+
+    @Test
+    public void shouldStripByteOrderMarkBeforeParsingTheResponse() throws Exception {
+        byte[] body = "\uFEFF{\"access_token\" : \"token\"}".getBytes(StandardCharsets.UTF_8);
+        stubFor(get(urlEqualTo("/token"))
+                .willReturn(aResponse().withStatus(HttpStatus.SC_OK).withBody(body)));
+        WebClient webClient = new WebClient();
+
+        assertEquals("{\"access_token\" : \"token\"}", webClient.get("http://localhost:9996", "/token", new HashMap<>()));
+        Map<?, ?> response = webClient.get("http://localhost:9996", "/token", new HashMap<>(), Map.class);
+        assertEquals("token", response.get("access_token"));
+    }
+
+    private int getGaugeValue(MetricRegistry registry, String name) {
+        Gauge<?> gauge = registry.getGauges().get(name);
+        return (Integer) gauge.getValue();
+    }
+}
@@ -0,0 +1,75 @@
+package org.sharedhealth.mci.web.config;
+
+import org.ehcache.Cache;
+import org.ehcache.CacheManager;
+import org.ehcache.config.builders.CacheConfigurationBuilder;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sharedhealth.mci.web.model.MasterData;
+import org.sharedhealth.mci.web.security.CachedUserInfo;
+import org.sharedhealth.mci.web.security.UserInfo;
+import org.sharedhealth.mci.web.security.UserProfile;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.sharedhealth.mci.web.security.UserInfo.HRM_MCI_USER_GROUP;
+
+public class MCICacheConfigTest {
+    @Rule
+    public TemporaryFolder cacheFolder = new TemporaryFolder();
+
+    private CacheManager cacheManager;
+
+    @After
+    public void tearDown() throws Exception {
+        if (cacheManager != null) cacheManager.close();
+    }
+
+    @Test
+    public void shouldOverflowEntriesFromHeapToOffHeapAndDisk() throws Exception {
+        MCIProperties mciProperties = mock(MCIProperties.class);
+        when(mciProperties.getCacheDiskPath()).thenReturn(cacheFolder.getRoot().getPath());
+        cacheManager = new MCICacheConfig(mciProperties)
+                .withCache("userInfo", CacheConfigurationBuilder
+                        .newCacheConfigurationBuilder(String.class, CachedUserInfo.class, MCICacheConfig.resourcePools(1, 1, 2))
+                        .withValueSerializer(new JsonCacheSerializer<>(CachedUserInfo.class))
+                        .build())
+                .build();
+        Cache<String, CachedUserInfo> cache = cacheManager.getCache("userInfo", String.class, CachedUserInfo.class);
+
+        for (int i = 0; i < 10; i++) {
+            cache.put("token" + i, new CachedUserInfo(createUserInfo("user" + i), i));
+        }
+
+        for (int i = 0; i < 10; i++) {
+            CachedUserInfo cachedUserInfo = cache.get("token" + i);
+            assertEquals(i, cachedUserInfo.getLoadedAt());
+            UserInfo.UserInfoProperties properties = cachedUserInfo.getUserInfo().getProperties();
+            assertEquals("user" + i, properties.getId());
+            assertEquals("user" + i + "@mci.org", properties.getEmail());
+            assertEquals("10019841", properties.getFacilityId());
+            assertEquals(asList("3026"), properties.getUserProfiles().get(0).getCatchments());
+        }
+    }
+
+    @Test
+    public void shouldSerializeMasterData() throws Exception {
+        JsonCacheSerializer<MasterData> serializer = new JsonCacheSerializer<>(MasterData.class);
+        MasterData masterData = new MasterData("gender", "M", "Male");
+
+        MasterData read = serializer.read(serializer.serialize(masterData));
+
+        assertEquals("gender", read.getType());
+        assertEquals("M", read.getKey());
+        assertEquals("Male", read.getValue());
+    }
+
+    private UserInfo createUserInfo(String id) {
+        UserProfile facilityProfile = new UserProfile("facility", "10019841", asList("3026"));
+        return new UserInfo(id, "name", id + "@mci.org", 1, true, "token", asList(HRM_MCI_USER_GROUP), asList(facilityProfile));
+    }
+}
@@ -0,0 +1,87 @@
+package org.sharedhealth.mci.web.config;
+
+import com.codahale.metrics.Meter;
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.Host;
+import com.datastax.driver.core.PreparedStatement;
+import com.datastax.driver.core.policies.SpeculativeExecutionPolicy.SpeculativeExecutionPlan;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class SpeculativeReadPolicyTest {
+    private SpeculativeReadPolicy policy;
+    private PreparedStatement preparedStatement;
+    private Host firstHost;
+    private Host secondHost;
+
+    @Before
+    public void setUp() throws Exception {
+        policy = new SpeculativeReadPolicy(1, 50, 99.0);
+        preparedStatement = mock(PreparedStatement.class);
+        firstHost = mock(Host.class);
+        secondHost = mock(Host.class);
+    }
+
+    @Test
+    public void shouldNotSpeculateOnStatementsThatAreNotAllowed() throws Exception {
+        SpeculativeExecutionPlan plan = policy.newPlan("mci", boundStatement());
+
+        assertEquals(-1, plan.nextExecution(firstHost));
+    }
+
+    @Test
+    public void shouldSpeculateOnceAfterTheFixedDelay() throws Exception {
+        policy.allow(preparedStatement);
+        Meter fired = MCIMetrics.getRegistry().meter("cassandra.speculative-reads.fired");
+        long firedBefore = fired.getCount();
+
+        SpeculativeExecutionPlan plan = policy.newPlan("mci", boundStatement());
+
+        assertEquals(50, plan.nextExecution(firstHost));
+        assertEquals(-1, plan.nextExecution(secondHost));
+        assertEquals(firedBefore + 1, fired.getCount());
+    }
+
+    @Test
+    public void shouldCountASpeculativeExecutionThatAnswersFirstAsAWin() throws Exception {
+        policy.allow(preparedStatement);
+        Meter won = MCIMetrics.getRegistry().meter("cassandra.speculative-reads.won");
+        long wonBefore = won.getCount();
+        BoundStatement statement = boundStatement();
+
+        SpeculativeExecutionPlan plan = policy.newPlan("mci", statement);
+        plan.nextExecution(firstHost);
+        plan.nextExecution(secondHost);
+        policy.update(secondHost, statement, null, TimeUnit.MILLISECONDS.toNanos(5));
+        policy.update(firstHost, statement, null, TimeUnit.MILLISECONDS.toNanos(80));
+
+        assertEquals(wonBefore + 1, won.getCount());
+    }
+
+    @Test
+    public void shouldNotCountAWinWhenTheFirstHostAnswersFirst() throws Exception {
+        policy.allow(preparedStatement);
+        Meter won = MCIMetrics.getRegistry().meter("cassandra.speculative-reads.won");
+        long wonBefore = won.getCount();
+        BoundStatement statement = boundStatement();
+
+        SpeculativeExecutionPlan plan = policy.newPlan("mci", statement);
+        plan.nextExecution(firstHost);
+        plan.nextExecution(secondHost);
+        policy.update(firstHost, statement, null, TimeUnit.MILLISECONDS.toNanos(60));
+
+        assertEquals(wonBefore, won.getCount());
+    }
+
+    private BoundStatement boundStatement() {
+        BoundStatement statement = mock(BoundStatement.class);
+        when(statement.preparedStatement()).thenReturn(preparedStatement);
+        return statement;
+    }
+}
@@ -1,6 +1,7 @@
 package org.sharedhealth.mci.web.controller;
 
 import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import ca.uhn.fhir.model.dstu2.resource.OperationOutcome;
 import com.datastax.driver.mapping.Mapper;
 import com.datastax.driver.mapping.MappingManager;
 import com.github.tomakehurst.wiremock.junit.WireMockRule;
@@ -25,7 +26,7 @@ import org.sharedhealth.mci.web.config.MCIProperties;
 import org.sharedhealth.mci.web.launch.Application;
 import org.sharedhealth.mci.web.model.Error;
 import org.sharedhealth.mci.web.model.*;
-import org.sharedhealth.mci.web.security.UserInfo;
+import org.sharedhealth.mci.web.security.CachedUserInfo;
 import org.sharedhealth.mci.web.util.DateUtil;
 import org.sharedhealth.mci.web.util.TestUtil;
 import org.sharedhealth.mci.web.util.TimeUuidUtil;
@@ -125,7 +126,10 @@ public class MCIRoutesIT extends BaseIntegrationTest {
         MciHealthIdStore.getInstance().clear();
         getIdentityStore().clearIdentityToken();
         TestUtil.truncateAllColumnFamilies();
-        getCacheManager().getCache(IDENTITY_PROVIDER_CACHE, String.class, UserInfo.class).clear();
+        getCacheManager().getCache(IDENTITY_PROVIDER_CACHE, String.class, CachedUserInfo.class).clear();
+        getCacheManager().getCache(PATIENT_CACHE, String.class, Patient.class).clear();
+        getCacheManager().getCache(CONFIDENTIAL_PATIENT_CACHE, String.class, Patient.class).clear();
+        getCacheManager().getCache(PATIENT_RESPONSE_CACHE, String.class, byte[].class).clear();
     }
 
     @Test
@@ -154,6 +158,66 @@ public class MCIRoutesIT extends BaseIntegrationTest {
         assertTrue(resource instanceof Bundle);
     }
 
+    @Test
+    public void shouldAnswerConditionalGetOfUnchangedPatientWithNotModified() throws Exception {
+        Patient mciPatient = createMCIPatientWithAllFields();
+        mciPatient.setHealthId(healthId);
+        UUID createdAt = TimeUuidUtil.uuidForDate(new Date());
+        mciPatient.setCreatedAt(createdAt);
+        mciPatient.setUpdatedAt(createdAt);
+        Requester requester = new Requester("100067", null, null, null);
+        mciPatient.setCreatedBy(writeValueAsString(requester));
+        mciPatient.setUpdatedBy(writeValueAsString(requester));
+        patientMapper.save(mciPatient);
+
+        String authToken = "d324fe7a-156b-449c-93b2-1c9871ee306c";
+        setUpValidClient(authToken, asString("idpClients/userWithFacilityGroup.json"));
+        Map<String, String> headers = getHeader(authToken, "facility@gmail.com", "18548");
+
+        UrlResponse urlResponse = doMethod(GET, PATIENT_URI_PATH + "/" + healthId, null, headers);
+        assertEquals(SC_OK, urlResponse.status);
+        String eTag = urlResponse.headers.get("ETag");
+        assertEquals("\"" + createdAt + "\"", eTag);
+        assertNotNull(urlResponse.headers.get("Last-Modified"));
+
+        headers.put("If-None-Match", eTag);
+        UrlResponse notModifiedResponse = doMethod(GET, PATIENT_URI_PATH + "/" + healthId, null, headers);
+        assertEquals(SC_NOT_MODIFIED, notModifiedResponse.status);
+        assertEquals("", notModifiedResponse.body);
+        assertEquals(eTag, notModifiedResponse.headers.get("ETag"));
+
+        headers.remove("If-None-Match");
+        headers.put("If-Modified-Since", urlResponse.headers.get("Last-Modified"));
+        assertEquals(SC_NOT_MODIFIED, doMethod(GET, PATIENT_URI_PATH + "/" + healthId, null, headers).status);
+    }
+
+    @Test
+    public void shouldFindSeveralPatientsInOneBundle() throws Exception {
+        Patient mciPatient = createMCIPatientWithAllFields();
+        mciPatient.setHealthId(healthId);
+        UUID createdAt = TimeUuidUtil.uuidForDate(new Date());
+        mciPatient.setCreatedAt(createdAt);
+        mciPatient.setUpdatedAt(createdAt);
+        Requester requester = new Requester("100067", null, null, null);
+        mciPatient.setCreatedBy(writeValueAsString(requester));
+        mciPatient.setUpdatedBy(writeValueAsString(requester));
+        patientMapper.save(mciPatient);
+
+        String authToken = "d324fe7a-156b-449c-93b2-1c9871ee306c";
+        setUpValidClient(authToken, asString("idpClients/userWithFacilityGroup.json"));
+        Map<String, String> headers = getHeader(authToken, "facility@gmail.com", "18548");
+
+        UrlResponse urlResponse = doMethod(GET, PATIENT_URI_PATH + "?_id=" + healthId + ",UNKNOWN", null, headers);
+
+        assertEquals(SC_OK, urlResponse.status);
+        Bundle bundle = (Bundle) parseResource(urlResponse.body);
+        assertEquals(1, bundle.getTotal().intValue());
+        assertTrue(bundle.getEntry().get(0).getResource() instanceof ca.uhn.fhir.model.dstu2.resource.Patient);
+        assertTrue(bundle.getEntry().get(bundle.getEntry().size() - 1).getResource() instanceof OperationOutcome);
+
+        assertEquals(SC_BAD_REQUEST, doMethod(GET, PATIENT_URI_PATH, null, headers).status);
+    }
+
     @Test
     public void shouldSendMessageIfPatientNotFound() throws Exception {
         MCIResponse mciResponse = new MCIResponse(404);
@@ -6,14 +6,20 @@ import org.apache.http.HttpStatus;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mock;
+import org.sharedhealth.mci.web.config.MCIProperties;
+import org.sharedhealth.mci.web.model.EncodedPatient;
 import org.sharedhealth.mci.web.model.MCIResponse;
 import org.sharedhealth.mci.web.security.UserInfo;
 import org.sharedhealth.mci.web.security.UserProfile;
 import org.sharedhealth.mci.web.service.PatientService;
 import org.sharedhealth.mci.web.util.FileUtil;
+import org.sharedhealth.mci.web.util.TimeUuidUtil;
 import spark.Request;
 import spark.Response;
 
+import java.util.Date;
+import java.util.UUID;
+
 import static java.util.Arrays.asList;
 import static org.apache.commons.lang3.StringUtils.isBlank;
 import static org.apache.http.HttpStatus.SC_UNPROCESSABLE_ENTITY;
@@ -33,11 +39,14 @@ public class PatientControllerTest {
     private Response response;
     @Mock
     private Request request;
+    @Mock
+    private MCIProperties mciProperties;
 
     @Before
     public void setUp() throws Exception {
         initMocks(this);
-        patientController = new PatientController(patientService);
+        when(mciProperties.getPatientBatchMaxSize()).thenReturn(2);
+        patientController = new PatientController(patientService, mciProperties);
     }
 
     @Test
@@ -60,6 +69,22 @@ public class PatientControllerTest {
         verify(response).status(HttpStatus.SC_CREATED);
     }
 
+    @Test
+    public void shouldAskToRetryLaterWhenCreateIsRejected() throws Exception {
+        MCIResponse mciResponse = new MCIResponse(HttpStatus.SC_SERVICE_UNAVAILABLE);
+        String content = FileUtil.asString("patients/valid_patient_with_mandatory_fields.xml");
+
+        when(request.body()).thenReturn(content);
+        UserInfo userInfo = getUserInfo();
+        when(patientService.createPatient(any(Bundle.class), eq(userInfo))).thenReturn(mciResponse);
+        when(request.attribute(USER_DETAILS_KEY)).thenReturn(userInfo);
+
+        patientController.createPatient(request, response);
+
+        verify(response).status(HttpStatus.SC_SERVICE_UNAVAILABLE);
+        verify(response).header("Retry-After", "1");
+    }
+
     @Test
     public void shouldFailToCreateWhenPatientDataContainsUnknownElement() throws Exception {
         String content = FileUtil.asString("patients/patient_with_unknown_elements.xml");
@@ -116,6 +141,49 @@ public class PatientControllerTest {
         verify(patientService, never()).createPatient(any(Bundle.class), eq(userInfo));
     }
 
+    @Test
+    public void shouldAnswerNotModifiedWhenETagMatches() throws Exception {
+        UUID updatedAt = TimeUuidUtil.uuidForDate(new Date());
+        when(request.params(":hid")).thenReturn("HID");
+        when(request.attribute(USER_DETAILS_KEY)).thenReturn(getUserInfo());
+        when(request.headers("If-None-Match")).thenReturn("\"other\", \"" + updatedAt + "\"");
+        when(patientService.findPatientUpdatedAt("HID")).thenReturn(updatedAt);
+
+        byte[] result = patientController.getPatient(":hid", request, response);
+
+        assertEquals(0, result.length);
+        verify(response).status(HttpStatus.SC_NOT_MODIFIED);
+        verify(response).header("ETag", "\"" + updatedAt + "\"");
+        verify(patientService, never()).findEncodedPatientByHealthId("HID");
+    }
+
+    @Test
+    public void shouldSendPatientWithValidatorsWhenETagDoesNotMatch() throws Exception {
+        UUID updatedAt = TimeUuidUtil.uuidForDate(new Date());
+        byte[] content = "<Bundle/>".getBytes();
+        when(request.params(":hid")).thenReturn("HID");
+        when(request.attribute(USER_DETAILS_KEY)).thenReturn(getUserInfo());
+        when(request.headers("If-None-Match")).thenReturn("\"" + TimeUuidUtil.uuidForDate(new Date(0)) + "\"");
+        when(patientService.findPatientUpdatedAt("HID")).thenReturn(updatedAt);
+        when(patientService.findEncodedPatientByHealthId("HID")).thenReturn(new EncodedPatient(content, updatedAt));
+
+        byte[] result = patientController.getPatient(":hid", request, response);
+
+        assertSame(content, result);
+        verify(response).status(HttpStatus.SC_OK);
+        verify(response).header("ETag", "\"" + updatedAt + "\"");
+    }
+
+    @Test
+    public void shouldRejectBatchOfMoreHealthIdsThanTheLimit() throws Exception {
+        when(request.queryParamsValues("_id")).thenReturn(new String[]{"HID1,HID2", "HID3"});
+
+        patientController.findPatients(request, response);
+
+        verify(response).status(HttpStatus.SC_BAD_REQUEST);
+        verify(patientService, never()).findPatientsByHealthIds(any(), any(UserInfo.class));
+    }
+
     private UserInfo getUserInfo() {
         UserProfile userProfile = new UserProfile("facility", "100067", null);
         return new UserInfo("102", "ABC", "abc@mail", 1, true, "111100", asList(HRM_MCI_USER_GROUP), asList(userProfile));
@@ -21,8 +21,8 @@ public class FHIRBundleMapperTest {
     @Before
     public void setUp() throws Exception {
         initMocks(this);
-        fhirBundleMapper = new FHIRBundleMapper(mciProperties);
         when(mciProperties.getMciBaseUrl()).thenReturn(mciBaseUrl);
+        fhirBundleMapper = new FHIRBundleMapper(new MCIUris(mciProperties));
     }
 
     @Test
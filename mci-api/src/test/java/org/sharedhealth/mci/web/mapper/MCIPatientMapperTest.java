@@ -21,6 +21,7 @@ import org.sharedhealth.mci.web.config.MCIProperties;
 import org.sharedhealth.mci.web.model.MasterData;
 import org.sharedhealth.mci.web.repository.MasterDataRepository;
 import org.sharedhealth.mci.web.util.FHIRConstants;
+import org.sharedhealth.mci.web.util.FhirContextHelper;
 import org.sharedhealth.mci.web.util.MCIConstants;
 import org.sharedhealth.mci.web.util.PatientTestFactory;
 import org.sharedhealth.mci.web.util.TimeUuidUtil;
@@ -32,6 +33,7 @@ import java.util.UUID;
 import java.util.stream.Collectors;
 
 import static org.junit.Assert.*;
+import static org.mockito.Matchers.anyString;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
 import static org.sharedhealth.mci.web.util.FHIRConstants.*;
@@ -50,15 +52,15 @@ public class MCIPatientMapperTest {
     @Before
     public void setUp() throws Exception {
         initMocks(this);
-        mciPatientMapper = new MCIPatientMapper(mciProperties, masterDataRepository);
+        when(mciProperties.getMciBaseUrl()).thenReturn(mciBaseUrl);
+        when(mciProperties.getPatientLinkUri()).thenReturn("https://mci.com/api/v1/patients/");
+        mciPatientMapper = new MCIPatientMapper(new MCIUris(mciProperties), masterDataRepository);
     }
 
     @Test
     public void shouldMapMCIPatientWithJustMandatoryFieldsToFHIRBundleWithPatient() throws Exception {
         String patientLinkUri = "https://mci.com/api/v1/patients/";
 
-        when(mciProperties.getMciBaseUrl()).thenReturn(mciBaseUrl);
-        when(mciProperties.getPatientLinkUri()).thenReturn(patientLinkUri);
 
         org.sharedhealth.mci.web.model.Patient mciPatient = createMCIPatientWithMandatoryFields();
         mciPatient.setActive(true);
@@ -118,8 +120,6 @@ public class MCIPatientMapperTest {
         MasterData educationMasterData = new MasterData(educationLevelKey, educationLevel, educationDisplay);
         MasterData occupationMasterData = new MasterData(occupationKey, occupation, occupationDisplay);
 
-        when(mciProperties.getMciBaseUrl()).thenReturn(mciBaseUrl);
-        when(mciProperties.getPatientLinkUri()).thenReturn(patientLinkUri);
         when(masterDataRepository.findByTypeAndKey(educationLevelKey, PatientTestFactory.educationLevel)).thenReturn(educationMasterData);
         when(masterDataRepository.findByTypeAndKey(occupationKey, PatientTestFactory.occupation)).thenReturn(occupationMasterData);
         when(masterDataRepository.findByTypeAndKey(relationsKey, "SPS")).thenReturn(new MasterData(relationsKey, "SPS", spouseDisplay));
@@ -201,12 +201,45 @@ public class MCIPatientMapperTest {
         containsRelation(relations, "SPS", spouseDisplay, spouseName, surName);
     }
 
+    @Test
+    public void shouldMapAnUnchangedPatientToTheSameBundle() throws Exception {
+        when(masterDataRepository.findByTypeAndKey(anyString(), anyString())).thenReturn(new MasterData("type", "key", "value"));
+
+        org.sharedhealth.mci.web.model.Patient mciPatient = PatientTestFactory.createMCIPatientWithAllFields();
+        mciPatient.setHealthId(healthId);
+        UUID updatedAt = TimeUuidUtil.uuidForDate(new Date());
+        mciPatient.setUpdatedAt(updatedAt);
+        mciPatient.setCreatedAt(updatedAt);
+
+        Bundle patientBundle = mciPatientMapper.mapPatientToBundle(mciPatient);
+        Bundle samePatientBundle = mciPatientMapper.mapPatientToBundle(mciPatient);
+
+        assertEquals(FhirContextHelper.encodeResource(patientBundle), FhirContextHelper.encodeResource(samePatientBundle));
+        List<String> fullUrls = patientBundle.getEntry().stream().map(entry -> entry.getFullUrl()).collect(Collectors.toList());
+        assertEquals(4, fullUrls.size());
+        assertEquals(4, fullUrls.stream().distinct().count());
+        assertTrue(fullUrls.stream().allMatch(fullUrl -> fullUrl.startsWith("urn:uuid:")));
+
+        mciPatient.setUpdatedAt(TimeUuidUtil.uuidForDate(new Date(System.currentTimeMillis() + 1000)));
+        Bundle updatedPatientBundle = mciPatientMapper.mapPatientToBundle(mciPatient);
+        assertFalse(patientBundle.getId().getValue().equals(updatedPatientBundle.getId().getValue()));
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void shouldNotMapARelationOfAnUnknownType() throws Exception {
+
+        org.sharedhealth.mci.web.model.Patient mciPatient = createMCIPatientWithMandatoryFields();
+        mciPatient.setHealthId(healthId);
+        mciPatient.setUpdatedAt(TimeUuidUtil.uuidForDate(new Date()));
+        mciPatient.setRelations("[{\"type\":\"UNKNOWN\",\"hid\":\"relationHID\"}]");
+
+        mciPatientMapper.mapPatientToBundle(mciPatient);
+    }
+
     @Test
     public void shouldMapADeadMCIPatient() throws Exception {
         String patientLinkUri = "https://mci.com/api/v1/patients/";
 
-        when(mciProperties.getMciBaseUrl()).thenReturn(mciBaseUrl);
-        when(mciProperties.getPatientLinkUri()).thenReturn(patientLinkUri);
 
         org.sharedhealth.mci.web.model.Patient mciPatient = createMCIPatientWithMandatoryFields();
         mciPatient.setActive(true);
@@ -231,8 +264,6 @@ public class MCIPatientMapperTest {
     public void shouldMapADeadPatientWhenDateOfDeathIsUnknown() throws Exception {
         String patientLinkUri = "https://mci.com/api/v1/patients/";
 
-        when(mciProperties.getMciBaseUrl()).thenReturn(mciBaseUrl);
-        when(mciProperties.getPatientLinkUri()).thenReturn(patientLinkUri);
 
         org.sharedhealth.mci.web.model.Patient mciPatient = createMCIPatientWithMandatoryFields();
         mciPatient.setActive(true);
@@ -254,8 +285,6 @@ public class MCIPatientMapperTest {
     public void shouldMapAPatientWithUnknownStatus() throws Exception {
         String patientLinkUri = "https://mci.com/api/v1/patients/";
 
-        when(mciProperties.getMciBaseUrl()).thenReturn(mciBaseUrl);
-        when(mciProperties.getPatientLinkUri()).thenReturn(patientLinkUri);
 
         org.sharedhealth.mci.web.model.Patient mciPatient = createMCIPatientWithMandatoryFields();
         mciPatient.setActive(true);
@@ -278,8 +307,6 @@ public class MCIPatientMapperTest {
         String patientLinkUri = "https://mci.com/api/v1/patients/";
         String mergedWith = "HID-2";
 
-        when(mciProperties.getMciBaseUrl()).thenReturn(mciBaseUrl);
-        when(mciProperties.getPatientLinkUri()).thenReturn(patientLinkUri);
 
         org.sharedhealth.mci.web.model.Patient mciPatient = createMCIPatientWithMandatoryFields();
         mciPatient.setActive(false);
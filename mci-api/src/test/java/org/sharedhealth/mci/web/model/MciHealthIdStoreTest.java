@@ -0,0 +1,105 @@
+package org.sharedhealth.mci.web.model;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.sharedhealth.mci.web.exception.HealthIdExhaustedException;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.*;
+
+public class MciHealthIdStoreTest {
+    private MciHealthIdStore mciHealthIdStore;
+
+    @Before
+    public void setUp() throws Exception {
+        mciHealthIdStore = new MciHealthIdStore(4);
+    }
+
+    @Test
+    public void shouldGiveAllAddedHealthIds() throws Exception {
+        mciHealthIdStore.addMciHealthIds(asList("healthId1", "healthId2", "healthId3"));
+
+        Set<String> healthIds = new HashSet<>();
+        healthIds.add(mciHealthIdStore.getNextHealthId());
+        healthIds.add(mciHealthIdStore.getNextHealthId());
+        healthIds.add(mciHealthIdStore.getNextHealthId());
+
+        assertEquals(new HashSet<>(asList("healthId1", "healthId2", "healthId3")), healthIds);
+        assertEquals(0, mciHealthIdStore.noOfHIDsLeft());
+    }
+
+    @Test(expected = HealthIdExhaustedException.class)
+    public void shouldThrowErrorWhenHealthIdsAreExhausted() throws Exception {
+        mciHealthIdStore.addMciHealthIds(asList("healthId1"));
+        mciHealthIdStore.getNextHealthId();
+
+        mciHealthIdStore.getNextHealthId();
+    }
+
+    @Test
+    public void shouldNotGiveTheSameHealthIdToConcurrentRequests() throws Exception {
+        int noOfHealthIds = 20000;
+        List<String> block = new ArrayList<>();
+        for (int i = 0; i < noOfHealthIds; i++) {
+            block.add("healthId" + i);
+        }
+        mciHealthIdStore.addMciHealthIds(block);
+
+        int noOfThreads = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(noOfThreads);
+        Set<String> dispensed = ConcurrentHashMap.newKeySet();
+        List<Future<Integer>> results = new ArrayList<>();
+        for (int i = 0; i < noOfThreads; i++) {
+            results.add(executor.submit(() -> {
+                int taken = 0;
+                try {
+                    while (true) {
+                        assertTrue(dispensed.add(mciHealthIdStore.getNextHealthId()));
+                        taken++;
+                    }
+                } catch (HealthIdExhaustedException e) {
+                    return taken;
+                }
+            }));
+        }
+        int total = 0;
+        for (Future<Integer> result : results) {
+            total += result.get(30, TimeUnit.SECONDS);
+        }
+        executor.shutdown();
+
+        assertEquals(noOfHealthIds, total);
+        assertEquals(noOfHealthIds, dispensed.size());
+        assertEquals(0, mciHealthIdStore.noOfHIDsLeft());
+    }
+
+    @Test
+    public void shouldGiveASnapshotOfAllHealthIdsLeft() throws Exception {
+        mciHealthIdStore.addMciHealthIds(asList("healthId1", "healthId2"));
+
+        Collection<String> all = mciHealthIdStore.getAll();
+        mciHealthIdStore.getNextHealthId();
+
+        assertEquals(2, all.size());
+        assertTrue(all.containsAll(asList("healthId1", "healthId2")));
+        assertEquals(1, mciHealthIdStore.noOfHIDsLeft());
+    }
+
+    @Test
+    public void shouldNotifyWhenThePoolDropsToTheLowWaterMark() throws Exception {
+        AtomicInteger noOfNotifications = new AtomicInteger();
+        mciHealthIdStore.setLowWaterListener(noOfNotifications::incrementAndGet);
+        mciHealthIdStore.setLowWaterMark(1);
+        mciHealthIdStore.addMciHealthIds(asList("healthId1", "healthId2", "healthId3"));
+
+        mciHealthIdStore.getNextHealthId();
+        assertEquals(0, noOfNotifications.get());
+        mciHealthIdStore.getNextHealthId();
+        assertEquals(1, noOfNotifications.get());
+        assertEquals(2, mciHealthIdStore.noOfHIDsDispensed());
+    }
+}
@@ -0,0 +1,136 @@
+package org.sharedhealth.mci.web.repository;
+
+import com.datastax.driver.mapping.Mapper;
+import com.datastax.driver.mapping.MappingManager;
+import org.ehcache.Cache;
+import org.ehcache.CacheManager;
+import org.ehcache.config.builders.CacheConfigurationBuilder;
+import org.ehcache.config.builders.CacheManagerBuilder;
+import org.ehcache.config.builders.ResourcePoolsBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sharedhealth.mci.web.BaseIntegrationTest;
+import org.sharedhealth.mci.web.config.JsonCacheSerializer;
+import org.sharedhealth.mci.web.config.MCICassandraConfig;
+import org.sharedhealth.mci.web.config.MCIProperties;
+import org.sharedhealth.mci.web.config.MCICacheConfig;
+import org.sharedhealth.mci.web.model.Patient;
+import org.sharedhealth.mci.web.model.Requester;
+import org.sharedhealth.mci.web.util.TestUtil;
+import org.sharedhealth.mci.web.util.TimeUuidUtil;
+
+import java.util.Date;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+import static org.sharedhealth.mci.web.util.JsonMapper.writeValueAsString;
+import static org.sharedhealth.mci.web.util.PatientTestFactory.createMCIPatientWithAllFields;
+
+public class CachingPatientRepositoryIT extends BaseIntegrationTest {
+    private CacheManager cacheManager;
+    private Cache<String, Patient> patientCache;
+    private Cache<String, Patient> confidentialPatientCache;
+    private Mapper<Patient> patientDBMapper;
+    private PatientRepository patientRepository;
+
+    @Before
+    public void setUp() throws Exception {
+        MappingManager mappingManager = MCICassandraConfig.getInstance().getMappingManager();
+        patientDBMapper = mappingManager.mapper(Patient.class);
+        cacheManager = CacheManagerBuilder.newCacheManagerBuilder()
+                .withCache("patients", CacheConfigurationBuilder
+                        .newCacheConfigurationBuilder(String.class, Patient.class, MCICacheConfig.resourcePools(1, 1, 0))
+                        .withValueSerializer(new JsonCacheSerializer<>(Patient.class)))
+                .withCache("confidentialPatients", CacheConfigurationBuilder
+                        .newCacheConfigurationBuilder(String.class, Patient.class, ResourcePoolsBuilder.heap(10)))
+                .build(true);
+        patientCache = cacheManager.getCache("patients", String.class, Patient.class);
+        confidentialPatientCache = cacheManager.getCache("confidentialPatients", String.class, Patient.class);
+        patientRepository = new CachingPatientRepository(mappingManager, new PreparedStatementRegistry(mappingManager, MCIProperties.getInstance()),
+                PatientWriteStrategy.LOGGED_BATCH, patientCache, confidentialPatientCache);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        cacheManager.close();
+        TestUtil.truncateAllColumnFamilies();
+    }
+
+    @Test
+    public void shouldReadPatientThroughCache() throws Exception {
+        Patient patient = createPatient("HID123");
+        patientDBMapper.save(patient);
+
+        assertEquals(patient, patientRepository.findByHealthId("HID123"));
+        patientDBMapper.delete(patient);
+
+        assertEquals(patient, patientRepository.findByHealthId("HID123"));
+    }
+
+    @Test
+    public void shouldNotCacheMissingPatients() throws Exception {
+        assertNull(patientRepository.findByHealthId("HID123"));
+        Patient patient = createPatient("HID123");
+        patientDBMapper.save(patient);
+
+        assertEquals(patient, patientRepository.findByHealthId("HID123"));
+    }
+
+    @Test
+    public void shouldCacheCreatedPatient() throws Exception {
+        Patient patient = createPatient("HID123");
+        patientRepository.createPatient(patient);
+        patientDBMapper.delete(patient);
+
+        assertEquals(patient, patientRepository.findByHealthId("HID123"));
+    }
+
+    @Test
+    public void shouldServePatientsMovedOutOfHeap() throws Exception {
+        Patient patient = createPatient("HID123");
+        Patient anotherPatient = createPatient("HID124");
+        patientRepository.createPatient(patient);
+        patientRepository.createPatient(anotherPatient);
+        patientDBMapper.delete(patient);
+        patientDBMapper.delete(anotherPatient);
+
+        assertEquals(patient, patientRepository.findByHealthId("HID123"));
+        assertEquals(anotherPatient, patientRepository.findByHealthId("HID124"));
+    }
+
+    @Test
+    public void shouldKeepConfidentialPatientsInTheirOwnCache() throws Exception {
+        Patient patient = createPatient("HID123");
+        patient.setConfidential(true);
+        patientDBMapper.save(patient);
+
+        assertEquals(patient, patientRepository.findByHealthId("HID123"));
+
+        assertNull(patientCache.get("HID123"));
+        assertEquals(patient, confidentialPatientCache.get("HID123"));
+    }
+
+    @Test
+    public void shouldReadUpdateTimeFromCassandraForCachedPatient() throws Exception {
+        Patient patient = createPatient("HID123");
+        patientRepository.createPatient(patient);
+        UUID updatedAt = TimeUuidUtil.uuidForDate(new Date());
+        patient.setUpdatedAt(updatedAt);
+        patientDBMapper.save(patient);
+
+        assertEquals(updatedAt, patientRepository.findUpdatedAt("HID123"));
+    }
+
+    private Patient createPatient(String healthId) throws Exception {
+        Patient patient = createMCIPatientWithAllFields();
+        patient.setHealthId(healthId);
+        UUID createdAt = TimeUuidUtil.uuidForDate(new Date());
+        patient.setCreatedAt(createdAt);
+        patient.setUpdatedAt(createdAt);
+        String requester = writeValueAsString(new Requester("100067", null, null, null));
+        patient.setCreatedBy(requester);
+        patient.setUpdatedBy(requester);
+        return patient;
+    }
+}
@@ -0,0 +1,176 @@
+package org.sharedhealth.mci.web.repository;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HealthIdLedgerTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File ledgerFile;
+
+    @Before
+    public void setUp() throws Exception {
+        ledgerFile = new File(temporaryFolder.getRoot(), "hids.txt");
+    }
+
+    @Test
+    public void shouldReplayIssuedAndConsumedHealthIds() throws Exception {
+        HealthIdLedger healthIdLedger = new HealthIdLedger(ledgerFile.getPath());
+        healthIdLedger.issued(asList("healthId1", "healthId2", "healthId3"));
+        healthIdLedger.consumed("healthId2");
+
+        HealthIdLedger replayedLedger = new HealthIdLedger(ledgerFile.getPath());
+
+        assertEquals(asList("healthId1", "healthId3"), replayedLedger.getAvailable());
+        assertTrue(replayedLedger.getUnverified().isEmpty());
+    }
+
+    @Test
+    public void shouldMakeAPutBackHealthIdAvailableAgain() throws Exception {
+        HealthIdLedger healthIdLedger = new HealthIdLedger(ledgerFile.getPath());
+        healthIdLedger.issued(asList("healthId1"));
+        healthIdLedger.consumed("healthId1");
+        healthIdLedger.issued(asList("healthId1"));
+
+        assertEquals(asList("healthId1"), new HealthIdLedger(ledgerFile.getPath()).getAvailable());
+    }
+
+    @Test
+    public void shouldTreatHealthIdsOfOlderFileFormatAsUnverified() throws Exception {
+        FileUtils.writeLines(ledgerFile, asList("healthId1", "healthId2"), "\n");
+
+        HealthIdLedger healthIdLedger = new HealthIdLedger(ledgerFile.getPath());
+        assertEquals(asList("healthId1", "healthId2"), healthIdLedger.getUnverified());
+        assertTrue(healthIdLedger.getAvailable().isEmpty());
+
+        healthIdLedger.issued(asList("healthId1"));
+        healthIdLedger.consumed("healthId2");
+
+        HealthIdLedger replayedLedger = new HealthIdLedger(ledgerFile.getPath());
+        assertEquals(asList("healthId1"), replayedLedger.getAvailable());
+        assertTrue(replayedLedger.getUnverified().isEmpty());
+    }
+
+    @Test
+    public void shouldKeepOnlyLiveHealthIdsAfterCompaction() throws Exception {
+        FileUtils.writeLines(ledgerFile, asList("legacyHealthId"), "\n");
+        HealthIdLedger healthIdLedger = new HealthIdLedger(ledgerFile.getPath());
+        List<String> healthIds = getHealthIds(10);
+        healthIdLedger.issued(healthIds);
+        for (String healthId : healthIds.subList(0, 8)) {
+            healthIdLedger.consumed(healthId);
+        }
+
+        healthIdLedger.compact();
+        healthIdLedger.consumed("healthId8");
+
+        assertEquals(asList("legacyHealthId", "+healthId8", "+healthId9", "-healthId8"), readRecords());
+        HealthIdLedger replayedLedger = new HealthIdLedger(ledgerFile.getPath());
+        assertEquals(asList("healthId9"), replayedLedger.getAvailable());
+        assertEquals(asList("legacyHealthId"), replayedLedger.getUnverified());
+    }
+
+    @Test
+    public void shouldGrowTheLedgerBeyondAMappedRegion() throws Exception {
+        HealthIdLedger healthIdLedger = new HealthIdLedger(ledgerFile.getPath());
+        List<String> healthIds = getHealthIds(50000);
+
+        healthIdLedger.issued(healthIds);
+
+        assertEquals(healthIds, new HealthIdLedger(ledgerFile.getPath()).getAvailable());
+    }
+
+    @Test
+    public void shouldSkipARecordLeftIncompleteByACrash() throws Exception {
+        FileUtils.writeStringToFile(ledgerFile, "+healthId1\n+healt\0\0\0\0\0+healthId2\n-healthId1\n\0\0", "US-ASCII");
+
+        HealthIdLedger healthIdLedger = new HealthIdLedger(ledgerFile.getPath());
+        healthIdLedger.issued(asList("healthId3"));
+
+        assertEquals(asList("healthId2", "healthId3"), new HealthIdLedger(ledgerFile.getPath()).getAvailable());
+    }
+
+    @Test
+    public void shouldKeepHealthIdsConsumedWhileCompacting() throws Exception {
+        HealthIdLedger healthIdLedger = new HealthIdLedger(ledgerFile.getPath());
+        List<String> healthIds = getHealthIds(40000);
+        healthIdLedger.issued(healthIds);
+        List<Thread> consumers = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            List<String> toConsume = healthIds.subList(i * 9000, (i + 1) * 9000);
+            Thread consumer = new Thread(() -> {
+                for (String healthId : toConsume) {
+                    try {
+                        healthIdLedger.consumed(healthId);
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+            consumers.add(consumer);
+            consumer.start();
+        }
+        for (Thread consumer : consumers) {
+            while (consumer.isAlive()) {
+                healthIdLedger.compact();
+            }
+            consumer.join();
+        }
+
+        assertEquals(healthIds.subList(36000, 40000), healthIdLedger.getAvailable());
+        assertEquals(healthIds.subList(36000, 40000), new HealthIdLedger(ledgerFile.getPath()).getAvailable());
+    }
+
+    @Test
+    public void shouldKeepHealthIdsIssuedWhileCompacting() throws Exception {
+        HealthIdLedger healthIdLedger = new HealthIdLedger(ledgerFile.getPath());
+        List<String> healthIds = getHealthIds(20000);
+        Thread issuer = new Thread(() -> {
+            for (int from = 0; from < healthIds.size(); from += 100) {
+                try {
+                    healthIdLedger.issued(healthIds.subList(from, from + 100));
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        });
+        issuer.start();
+        while (issuer.isAlive()) {
+            healthIdLedger.compact();
+        }
+        issuer.join();
+
+        assertEquals(healthIds, new HealthIdLedger(ledgerFile.getPath()).getAvailable());
+    }
+
+    private List<String> readRecords() throws Exception {
+        String content = FileUtils.readFileToString(ledgerFile, "US-ASCII");
+        int endOfLedger = content.indexOf('\0');
+        List<String> records = new ArrayList<>();
+        for (String record : content.substring(0, endOfLedger < 0 ? content.length() : endOfLedger).split("\n")) {
+            records.add(record);
+        }
+        return records;
+    }
+
+    private List<String> getHealthIds(int noOfHealthIds) {
+        List<String> healthIds = new ArrayList<>();
+        for (int i = 0; i < noOfHealthIds; i++) {
+            healthIds.add("healthId" + i);
+        }
+        return healthIds;
+    }
+}
@@ -0,0 +1,75 @@
+package org.sharedhealth.mci.web.repository;
+
+import com.datastax.driver.mapping.Mapper;
+import com.datastax.driver.mapping.MappingManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.sharedhealth.mci.web.BaseIntegrationTest;
+import org.sharedhealth.mci.web.config.MCICassandraConfig;
+import org.sharedhealth.mci.web.config.MCIProperties;
+import org.sharedhealth.mci.web.model.MasterData;
+
+import static org.junit.Assert.*;
+
+public class MasterDataRepositoryIT extends BaseIntegrationTest {
+    private MasterDataRepository masterDataRepository;
+    private Mapper<MasterData> masterDataMapper;
+
+    @Before
+    public void setUp() throws Exception {
+        MappingManager mappingManager = MCICassandraConfig.getInstance().getMappingManager();
+        masterDataRepository = new MasterDataRepository(mappingManager, new PreparedStatementRegistry(mappingManager, MCIProperties.getInstance()));
+        masterDataMapper = mappingManager.mapper(MasterData.class);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        masterDataMapper.delete("occupation", "99");
+        masterDataMapper.delete("occupation", "98");
+    }
+
+    @Test
+    public void shouldFindMasterDataFromTheLoadedSnapshot() throws Exception {
+        masterDataRepository.refresh();
+        masterDataMapper.delete("relations", "SPS");
+        try {
+            MasterData spouse = masterDataRepository.findByTypeAndKey("relations", "SPS");
+
+            assertNotNull(spouse);
+            assertEquals("spouse", spouse.getValue());
+        } finally {
+            masterDataMapper.save(new MasterData("relations", "SPS", "spouse"));
+        }
+    }
+
+    @Test
+    public void shouldFallBackToCassandraForAKeyMissingFromTheSnapshot() throws Exception {
+        masterDataRepository.refresh();
+        masterDataMapper.save(new MasterData("occupation", "99", "other"));
+
+        assertEquals("other", masterDataRepository.findByTypeAndKey("occupation", "99").getValue());
+        assertNull(masterDataRepository.findByTypeAndKey("occupation", "98"));
+    }
+
+    @Test
+    public void shouldRememberAKeyMissingFromCassandraUntilTheNextRefresh() throws Exception {
+        masterDataRepository.refresh();
+        assertNull(masterDataRepository.findByTypeAndKey("occupation", "98"));
+        masterDataMapper.save(new MasterData("occupation", "98", "retired"));
+
+        assertNull(masterDataRepository.findByTypeAndKey("occupation", "98"));
+        masterDataRepository.refresh();
+        assertEquals("retired", masterDataRepository.findByTypeAndKey("occupation", "98").getValue());
+    }
+
+    @Test
+    public void shouldSwapInChangedMasterDataOnRefresh() throws Exception {
+        masterDataRepository.refresh();
+        masterDataMapper.save(new MasterData("occupation", "99", "other"));
+        masterDataRepository.refresh();
+        masterDataMapper.delete("occupation", "99");
+
+        assertEquals("other", masterDataRepository.findByTypeAndKey("occupation", "99").getValue());
+    }
+}
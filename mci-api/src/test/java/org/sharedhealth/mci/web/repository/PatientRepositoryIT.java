@@ -1,5 +1,7 @@
 package org.sharedhealth.mci.web.repository;
 
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.utils.UUIDs;
 import com.datastax.driver.mapping.Mapper;
 import com.datastax.driver.mapping.MappingManager;
 import com.fasterxml.jackson.core.type.TypeReference;
@@ -9,16 +11,17 @@ import org.junit.Before;
 import org.junit.Test;
 import org.sharedhealth.mci.web.BaseIntegrationTest;
 import org.sharedhealth.mci.web.config.MCICassandraConfig;
+import org.sharedhealth.mci.web.config.MCIProperties;
+import org.sharedhealth.mci.web.mapper.PatientAuditLogMapper;
 import org.sharedhealth.mci.web.model.*;
 import org.sharedhealth.mci.web.util.TestUtil;
 import org.sharedhealth.mci.web.util.TimeUuidUtil;
 
 import java.nio.file.AccessDeniedException;
-import java.util.Date;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.UUID;
+import java.util.*;
 
+import static com.datastax.driver.core.querybuilder.QueryBuilder.*;
+import static java.util.Arrays.asList;
 import static org.junit.Assert.*;
 import static org.sharedhealth.mci.web.util.DateUtil.*;
 import static org.sharedhealth.mci.web.util.JsonMapper.readValue;
@@ -35,7 +38,7 @@ public class PatientRepositoryIT extends BaseIntegrationTest {
     @Before
     public void setUp() throws Exception {
         MappingManager mappingManager = MCICassandraConfig.getInstance().getMappingManager();
-        patientRepository = new PatientRepository(mappingManager);
+        patientRepository = new PatientRepository(mappingManager, new PreparedStatementRegistry(mappingManager, MCIProperties.getInstance()));
         patientDBMapper = mappingManager.mapper(Patient.class);
         patientUpdateLogDBMapper = mappingManager.mapper(PatientUpdateLog.class);
         patientAuditLogDBMapper = mappingManager.mapper(PatientAuditLog.class);
@@ -57,6 +60,55 @@ public class PatientRepositoryIT extends BaseIntegrationTest {
         assertEquals(expectedPatient, patient);
     }
 
+    @Test
+    public void shouldDecodeJsonRelationsOfPatientWhenItIsLoaded() throws Exception {
+        patientDBMapper.save(createPatient());
+
+        Patient patient = patientRepository.findByHealthId(healthId);
+
+        List<Relation> relations = patient.getRelationList();
+        assertEquals(3, relations.size());
+        assertEquals("FTH", relations.get(0).getType());
+        assertEquals("fatherHID", relations.get(0).getHealthId());
+    }
+
+    @Test
+    public void shouldFindUpdateTimeOfPatient() throws Exception {
+        Patient patient = createPatient();
+        patientDBMapper.save(patient);
+
+        assertEquals(patient.getUpdatedAt(), patientRepository.findUpdatedAt(healthId));
+        assertNull(patientRepository.findUpdatedAt("HID124"));
+    }
+
+    @Test
+    public void shouldTakeCreationTimeOfANeverUpdatedPatientAsItsUpdateTime() throws Exception {
+        Patient expectedPatient = createPatient();
+        UUID createdAt = TimeUuidUtil.uuidForDate(new Date());
+        expectedPatient.setCreatedAt(createdAt);
+        expectedPatient.setUpdatedAt(null);
+        patientDBMapper.save(expectedPatient);
+
+        assertEquals(createdAt, patientRepository.findUpdatedAt(healthId));
+        assertEquals(createdAt, patientRepository.findByHealthId(healthId).getUpdatedAt());
+    }
+
+    @Test
+    public void shouldFindExistingHealthIdsInReplicaBatches() throws Exception {
+        patientDBMapper.save(createPatient());
+        List<String> healthIds = asList("HID121", "HID122", healthId);
+
+        List<List<String>> batches = patientRepository.groupByReplicas(healthIds, 2);
+        Set<String> existingHealthIds = new HashSet<>();
+        for (List<String> batch : batches) {
+            assertTrue(batch.size() <= 2);
+            existingHealthIds.addAll(patientRepository.findExistingHealthIds(batch).get());
+        }
+
+        assertEquals(2, batches.size());
+        assertEquals(Collections.singleton(healthId), existingHealthIds);
+    }
+
     private static Requester getRequester() throws AccessDeniedException {
         return new Requester("100067", null, null, null);
     }
@@ -74,6 +126,110 @@ public class PatientRepositoryIT extends BaseIntegrationTest {
         assertPatientUpdateLog(patient);
     }
 
+    @Test
+    public void shouldWriteThePatientFirstAndItsLogsAfterwards() throws Exception {
+        MappingManager mappingManager = MCICassandraConfig.getInstance().getMappingManager();
+        PatientRepository patientFirstRepository = new PatientRepository(mappingManager,
+                new PreparedStatementRegistry(mappingManager, MCIProperties.getInstance()), PatientWriteStrategy.PATIENT_FIRST);
+        Patient patient = createPatient();
+
+        MCIResponse mciResponse = patientFirstRepository.createPatient(patient);
+
+        assertEquals(HttpStatus.SC_CREATED, mciResponse.getHttpStatus());
+        assertEquals(patient, patientDBMapper.get(patient.getHealthId()));
+        long deadline = System.currentTimeMillis() + 5000;
+        while ((patientAuditLogDBMapper.get(patient.getHealthId()) == null
+                || patientUpdateLogDBMapper.get(getYearOf(patient.getCreatedAt())) == null)
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertPatientAuditLog(patient);
+        assertPatientUpdateLog(patient);
+        while (findLogOutboxMarker(patient.getHealthId()) != null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertNull(findLogOutboxMarker(patient.getHealthId()));
+    }
+
+    @Test
+    public void shouldReplayTheLogsOfAPatientLeftInTheOutbox() throws Exception {
+        MappingManager mappingManager = MCICassandraConfig.getInstance().getMappingManager();
+        PatientRepository patientFirstRepository = new PatientRepository(mappingManager,
+                new PreparedStatementRegistry(mappingManager, MCIProperties.getInstance()), PatientWriteStrategy.PATIENT_FIRST);
+        Patient patient = createPatient();
+        UUID createdAt = UUIDs.startOf(System.currentTimeMillis() - 2 * 60 * 1000);
+        patient.setCreatedAt(createdAt);
+        patientDBMapper.save(patient);
+        insertLogOutboxMarker(patient.getHealthId(), createdAt, new PatientAuditLogMapper().map(patient).getChangeSet());
+        //the mci service updates the patient before the logs are replayed
+        mappingManager.getSession().execute(update(CF_PATIENT).with(set(GENDER, "F")).where(eq(HEALTH_ID, healthId)));
+
+        patientFirstRepository.sweepLogOutbox();
+
+        assertPatientAuditLog(patient);
+        assertPatientUpdateLog(patient);
+        assertNull(findLogOutboxMarker(patient.getHealthId()));
+    }
+
+    @Test
+    public void shouldDropAnOutboxMarkerWithoutALogToReplay() throws Exception {
+        MappingManager mappingManager = MCICassandraConfig.getInstance().getMappingManager();
+        PatientRepository patientFirstRepository = new PatientRepository(mappingManager,
+                new PreparedStatementRegistry(mappingManager, MCIProperties.getInstance()), PatientWriteStrategy.PATIENT_FIRST);
+        Patient patient = createPatient();
+        UUID createdAt = UUIDs.startOf(System.currentTimeMillis() - 2 * 60 * 1000);
+        patient.setCreatedAt(createdAt);
+        patientDBMapper.save(patient);
+        insertLogOutboxMarker(patient.getHealthId(), createdAt, null);
+
+        patientFirstRepository.sweepLogOutbox();
+
+        assertNull(patientAuditLogDBMapper.get(patient.getHealthId()));
+        assertNull(findLogOutboxMarker(patient.getHealthId()));
+    }
+
+    @Test
+    public void shouldSweepABoundedSliceOfTheOutboxAndCarryOnFromItNextTime() throws Exception {
+        MappingManager mappingManager = MCICassandraConfig.getInstance().getMappingManager();
+        PatientRepository patientFirstRepository = new PatientRepository(mappingManager,
+                new PreparedStatementRegistry(mappingManager, MCIProperties.getInstance()), PatientWriteStrategy.PATIENT_FIRST);
+        UUID createdAt = UUIDs.startOf(System.currentTimeMillis() - 2 * 60 * 1000);
+        for (int i = 0; i < 501; i++) {
+            insertLogOutboxMarker("HID" + i, createdAt, "{}");
+        }
+
+        patientFirstRepository.sweepLogOutbox();
+
+        assertEquals(1, mappingManager.getSession().execute(select().countAll().from(CF_PATIENT_LOG_OUTBOX)).one().getLong(0));
+        patientFirstRepository.sweepLogOutbox();
+        assertEquals(0, mappingManager.getSession().execute(select().countAll().from(CF_PATIENT_LOG_OUTBOX)).one().getLong(0));
+    }
+
+    @Test
+    public void shouldLeaveARecentOutboxMarkerToItsLogWrites() throws Exception {
+        MappingManager mappingManager = MCICassandraConfig.getInstance().getMappingManager();
+        PatientRepository patientFirstRepository = new PatientRepository(mappingManager,
+                new PreparedStatementRegistry(mappingManager, MCIProperties.getInstance()), PatientWriteStrategy.PATIENT_FIRST);
+        Patient patient = createPatient();
+        patientDBMapper.save(patient);
+        insertLogOutboxMarker(patient.getHealthId(), patient.getCreatedAt(), new PatientAuditLogMapper().map(patient).getChangeSet());
+
+        patientFirstRepository.sweepLogOutbox();
+
+        assertNotNull(findLogOutboxMarker(patient.getHealthId()));
+        assertNull(patientAuditLogDBMapper.get(patient.getHealthId()));
+    }
+
+    private void insertLogOutboxMarker(String healthId, UUID createdAt, String changeSet) {
+        MCICassandraConfig.getInstance().getMappingManager().getSession().execute(insertInto(CF_PATIENT_LOG_OUTBOX)
+                .value(HEALTH_ID, healthId).value(CREATED_AT, createdAt).value(CHANGE_SET, changeSet));
+    }
+
+    private Row findLogOutboxMarker(String healthId) {
+        return MCICassandraConfig.getInstance().getMappingManager().getSession().execute(select().from(CF_PATIENT_LOG_OUTBOX)
+                .where(eq(HEALTH_ID, healthId))).one();
+    }
+
     private Patient createPatient() throws AccessDeniedException {
         Patient expectedPatient = createMCIPatientWithAllFields();
         expectedPatient.setHealthId(healthId);
@@ -0,0 +1,54 @@
+package org.sharedhealth.mci.web.repository;
+
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.CodecRegistry;
+import com.datastax.driver.core.ConsistencyLevel;
+import com.datastax.driver.core.ProtocolVersion;
+import com.datastax.driver.mapping.MappingManager;
+import org.junit.Before;
+import org.junit.Test;
+import org.sharedhealth.mci.web.BaseIntegrationTest;
+import org.sharedhealth.mci.web.config.MCICassandraConfig;
+import org.sharedhealth.mci.web.config.MCIProperties;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.*;
+import static org.sharedhealth.mci.web.repository.PreparedStatementRegistry.*;
+
+public class PreparedStatementRegistryIT extends BaseIntegrationTest {
+    private PreparedStatementRegistry statements;
+
+    @Before
+    public void setUp() throws Exception {
+        MappingManager mappingManager = MCICassandraConfig.getInstance().getMappingManager();
+        statements = new PreparedStatementRegistry(mappingManager, MCIProperties.getInstance());
+    }
+
+    @Test
+    public void shouldBindARegisteredStatementWithItsRoutingKey() throws Exception {
+        BoundStatement statement = statements.bind(FIND_PATIENT, "HID");
+
+        assertNotNull(statement.getRoutingKey(ProtocolVersion.NEWEST_SUPPORTED, CodecRegistry.DEFAULT_INSTANCE));
+        assertTrue(statement.isIdempotent());
+    }
+
+    @Test
+    public void shouldApplyTheFetchSizeOfAStatement() throws Exception {
+        BoundStatement statement = statements.bind(FIND_EXISTING_HEALTH_IDS, asList("HID1", "HID2"));
+
+        assertEquals(1000, statement.getFetchSize());
+    }
+
+    @Test
+    public void shouldSetTheConsistencyLevelOfEachOperation() throws Exception {
+        assertEquals(ConsistencyLevel.LOCAL_QUORUM, statements.bind(FIND_PATIENT, "HID").getConsistencyLevel());
+        assertEquals(ConsistencyLevel.LOCAL_ONE, statements.bind(FIND_MASTER_DATA, "type", "key").getConsistencyLevel());
+        assertEquals(ConsistencyLevel.LOCAL_QUORUM, statements.bind(FIND_EXISTING_HEALTH_IDS, asList("HID1")).getConsistencyLevel());
+        assertEquals(ConsistencyLevel.LOCAL_QUORUM, statements.getWriteConsistencyLevel());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shouldNotBindAnUnknownStatement() throws Exception {
+        statements.bind("unknown");
+    }
+}
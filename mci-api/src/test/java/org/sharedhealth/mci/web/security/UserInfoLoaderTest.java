@@ -0,0 +1,187 @@
+package org.sharedhealth.mci.web.security;
+
+import org.ehcache.Cache;
+import org.ehcache.CacheManager;
+import org.ehcache.config.builders.CacheConfigurationBuilder;
+import org.ehcache.config.builders.CacheManagerBuilder;
+import org.ehcache.config.builders.ResourcePoolsBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.sharedhealth.mci.web.config.MCIProperties;
+import org.sharedhealth.mci.web.exception.IdentityUnauthorizedException;
+import org.sharedhealth.mci.web.service.IdentityProviderService;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+public class UserInfoLoaderTest {
+    private static final String AUTH_TOKEN = "token";
+    private static final int TTL = 60 * 1000;
+    private static final int REFRESH_AHEAD = 10 * 1000;
+    private static final int STALE_WINDOW = 30 * 1000;
+
+    @Mock
+    private IdentityProviderService identityProviderService;
+    @Mock
+    private MCIProperties mciProperties;
+
+    private CacheManager cacheManager;
+    private Cache<String, CachedUserInfo> userInfoCache;
+    private UserInfoLoader userInfoLoader;
+
+    @Before
+    public void setUp() throws Exception {
+        initMocks(this);
+        when(mciProperties.getUserInfoCacheTtl()).thenReturn(TTL);
+        when(mciProperties.getUserInfoCacheRefreshAhead()).thenReturn(REFRESH_AHEAD);
+        when(mciProperties.getUserInfoCacheStaleWindow()).thenReturn(STALE_WINDOW);
+        cacheManager = CacheManagerBuilder.newCacheManagerBuilder()
+                .withCache("userInfo", CacheConfigurationBuilder
+                        .newCacheConfigurationBuilder(String.class, CachedUserInfo.class, ResourcePoolsBuilder.heap(10)).build())
+                .build(true);
+        userInfoCache = cacheManager.getCache("userInfo", String.class, CachedUserInfo.class);
+        userInfoLoader = new UserInfoLoader(identityProviderService, userInfoCache, mciProperties);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        cacheManager.close();
+    }
+
+    @Test
+    public void shouldServeCachedUserInfoWithoutCallingIdentityProvider() throws Exception {
+        UserInfo userInfo = new UserInfo();
+        long now = System.currentTimeMillis();
+        userInfoCache.put(AUTH_TOKEN, new CachedUserInfo(userInfo, now));
+
+        assertSame(userInfo, userInfoLoader.get(AUTH_TOKEN, now + TTL - REFRESH_AHEAD - 1));
+        Thread.sleep(100);
+        verify(identityProviderService, never()).getUserInfo(mciProperties, AUTH_TOKEN);
+    }
+
+    @Test
+    public void shouldRefreshEntriesInBackgroundAheadOfExpiry() throws Exception {
+        UserInfo cachedUserInfo = new UserInfo();
+        UserInfo refreshedUserInfo = new UserInfo();
+        long now = System.currentTimeMillis();
+        userInfoCache.put(AUTH_TOKEN, new CachedUserInfo(cachedUserInfo, now - TTL + REFRESH_AHEAD / 2));
+        when(identityProviderService.getUserInfo(mciProperties, AUTH_TOKEN)).thenReturn(refreshedUserInfo);
+
+        assertSame(cachedUserInfo, userInfoLoader.get(AUTH_TOKEN, now));
+
+        awaitCachedUserInfo(refreshedUserInfo);
+        assertSame(refreshedUserInfo, userInfoLoader.get(AUTH_TOKEN));
+    }
+
+    @Test
+    public void shouldServeStaleEntryWhileIdentityProviderIsSlow() throws Exception {
+        UserInfo staleUserInfo = new UserInfo();
+        UserInfo refreshedUserInfo = new UserInfo();
+        long now = System.currentTimeMillis();
+        userInfoCache.put(AUTH_TOKEN, new CachedUserInfo(staleUserInfo, now - TTL - STALE_WINDOW / 2));
+        CountDownLatch release = new CountDownLatch(1);
+        when(identityProviderService.getUserInfo(mciProperties, AUTH_TOKEN)).thenAnswer(new Answer<UserInfo>() {
+            @Override
+            public UserInfo answer(InvocationOnMock invocation) throws Throwable {
+                release.await(5, TimeUnit.SECONDS);
+                return refreshedUserInfo;
+            }
+        });
+
+        assertSame(staleUserInfo, userInfoLoader.get(AUTH_TOKEN, now));
+        assertSame(staleUserInfo, userInfoLoader.get(AUTH_TOKEN, now));
+        release.countDown();
+
+        awaitCachedUserInfo(refreshedUserInfo);
+        verify(identityProviderService, times(1)).getUserInfo(mciProperties, AUTH_TOKEN);
+    }
+
+    @Test
+    public void shouldLoadEntriesPastTheStaleWindowSynchronously() throws Exception {
+        UserInfo expiredUserInfo = new UserInfo();
+        UserInfo userInfo = new UserInfo();
+        long now = System.currentTimeMillis();
+        userInfoCache.put(AUTH_TOKEN, new CachedUserInfo(expiredUserInfo, now - TTL - STALE_WINDOW));
+        when(identityProviderService.getUserInfo(mciProperties, AUTH_TOKEN)).thenReturn(userInfo);
+
+        assertSame(userInfo, userInfoLoader.get(AUTH_TOKEN, now));
+    }
+
+    @Test
+    public void shouldDropEntryWhenRefreshFindsTokenUnauthorized() throws Exception {
+        long now = System.currentTimeMillis();
+        userInfoCache.put(AUTH_TOKEN, new CachedUserInfo(new UserInfo(), now - TTL));
+        when(identityProviderService.getUserInfo(mciProperties, AUTH_TOKEN))
+                .thenThrow(new IdentityUnauthorizedException("Identity not authorized."));
+
+        userInfoLoader.get(AUTH_TOKEN, now);
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (userInfoCache.get(AUTH_TOKEN) != null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertNull(userInfoCache.get(AUTH_TOKEN));
+    }
+
+    @Test
+    public void shouldLoadUserInfoOnceForConcurrentMisses() throws Exception {
+        UserInfo userInfo = new UserInfo();
+        CountDownLatch release = new CountDownLatch(1);
+        when(identityProviderService.getUserInfo(mciProperties, AUTH_TOKEN)).thenAnswer(new Answer<UserInfo>() {
+            @Override
+            public UserInfo answer(InvocationOnMock invocation) throws Throwable {
+                release.await(5, TimeUnit.SECONDS);
+                return userInfo;
+            }
+        });
+
+        int noOfRequests = 8;
+        ExecutorService executor = Executors.newFixedThreadPool(noOfRequests);
+        List<Future<UserInfo>> results = new ArrayList<>();
+        for (int i = 0; i < noOfRequests; i++) {
+            results.add(executor.submit(() -> userInfoLoader.get(AUTH_TOKEN)));
+        }
+        Thread.sleep(200);
+        release.countDown();
+
+        for (Future<UserInfo> result : results) {
+            assertSame(userInfo, result.get(5, TimeUnit.SECONDS));
+        }
+        executor.shutdown();
+        verify(identityProviderService, times(1)).getUserInfo(mciProperties, AUTH_TOKEN);
+        assertSame(userInfo, userInfoCache.get(AUTH_TOKEN).getUserInfo());
+    }
+
+    @Test
+    public void shouldNotCacheFailedLoads() throws Exception {
+        UserInfo userInfo = new UserInfo();
+        when(identityProviderService.getUserInfo(mciProperties, AUTH_TOKEN))
+                .thenThrow(new IdentityUnauthorizedException("Identity not authorized."))
+                .thenReturn(userInfo);
+
+        try {
+            userInfoLoader.get(AUTH_TOKEN);
+            fail("Expected IdentityUnauthorizedException");
+        } catch (IdentityUnauthorizedException e) {
+            assertNull(userInfoCache.get(AUTH_TOKEN));
+        }
+        assertSame(userInfo, userInfoLoader.get(AUTH_TOKEN));
+    }
+
+    private void awaitCachedUserInfo(UserInfo expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (userInfoCache.get(AUTH_TOKEN).getUserInfo() != expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertSame(expected, userInfoCache.get(AUTH_TOKEN).getUserInfo());
+    }
+}
@@ -0,0 +1,61 @@
+package org.sharedhealth.mci.web.service;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class HealthIdDemandForecastTest {
+    private HealthIdDemandForecast demandForecast;
+
+    @Before
+    public void setUp() throws Exception {
+        demandForecast = new HealthIdDemandForecast();
+    }
+
+    @Test
+    public void shouldNotPredictDemandBeforeTwoSamples() throws Exception {
+        demandForecast.sample(100, 1000);
+
+        assertEquals(0, demandForecast.getRatePerSecond(), 0);
+        assertTrue(Double.isInfinite(demandForecast.secondsUntil(10, 3)));
+    }
+
+    @Test
+    public void shouldConvergeToASteadyConsumptionRate() throws Exception {
+        long now = 0;
+        long dispensed = 0;
+        demandForecast.sample(dispensed, now);
+        for (int i = 0; i < 30; i++) {
+            now += 60 * 1000;
+            dispensed += 600;
+            demandForecast.sample(dispensed, now);
+        }
+
+        assertEquals(10, demandForecast.getRatePerSecond(), 0.01);
+        assertEquals(9.7, demandForecast.secondsUntil(100, 3), 0.01);
+    }
+
+    @Test
+    public void shouldWeighShortSamplesLessThanLongOnes() throws Exception {
+        demandForecast.sample(0, 0);
+        demandForecast.sample(100, 1000);
+        double rateAfterShortSample = demandForecast.getRatePerSecond();
+
+        HealthIdDemandForecast otherForecast = new HealthIdDemandForecast();
+        otherForecast.sample(0, 0);
+        otherForecast.sample(6000, 60 * 1000);
+
+        assertTrue(rateAfterShortSample < otherForecast.getRatePerSecond());
+        assertEquals(100 * (1 - Math.exp(-1 / 60.0)), rateAfterShortSample, 0.001);
+    }
+
+    @Test
+    public void shouldAverageBlockFetchTimes() throws Exception {
+        demandForecast.recordFetch(1000);
+        demandForecast.recordFetch(2000);
+
+        assertEquals(1.3, demandForecast.getFetchSeconds(), 0.001);
+    }
+}
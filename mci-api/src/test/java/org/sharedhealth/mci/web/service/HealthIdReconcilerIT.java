@@ -0,0 +1,80 @@
+package org.sharedhealth.mci.web.service;
+
+import com.datastax.driver.mapping.MappingManager;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.sharedhealth.mci.web.BaseIntegrationTest;
+import org.sharedhealth.mci.web.config.MCICassandraConfig;
+import org.sharedhealth.mci.web.config.MCIProperties;
+import org.sharedhealth.mci.web.model.MciHealthIdStore;
+import org.sharedhealth.mci.web.model.Patient;
+import org.sharedhealth.mci.web.repository.HealthIdLedger;
+import org.sharedhealth.mci.web.repository.PatientRepository;
+import org.sharedhealth.mci.web.repository.PreparedStatementRegistry;
+import org.sharedhealth.mci.web.util.TestUtil;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.sharedhealth.mci.web.util.PatientTestFactory.createMCIPatientWithAllFields;
+
+public class HealthIdReconcilerIT extends BaseIntegrationTest {
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private MappingManager mappingManager;
+    private PatientRepository patientRepository;
+    private MciHealthIdStore mciHealthIdStore;
+    private HealthIdLedger healthIdLedger;
+    private File ledgerFile;
+
+    @Before
+    public void setUp() throws Exception {
+        mappingManager = MCICassandraConfig.getInstance().getMappingManager();
+        patientRepository = new PatientRepository(mappingManager, new PreparedStatementRegistry(mappingManager, MCIProperties.getInstance()));
+        mciHealthIdStore = MciHealthIdStore.getInstance();
+        mciHealthIdStore.clear();
+        ledgerFile = new File(temporaryFolder.getRoot(), "hids.txt");
+        healthIdLedger = new HealthIdLedger(ledgerFile.getPath());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mciHealthIdStore.clear();
+        TestUtil.truncateAllColumnFamilies();
+    }
+
+    @Test
+    public void shouldAddOnlyHealthIdsNotUsedByAnyPatient() throws Exception {
+        List<String> unverifiedHIDs = getHIDs("9800043044", 25);
+        Patient patient = createMCIPatientWithAllFields();
+        patient.setHealthId(unverifiedHIDs.get(7));
+        mappingManager.mapper(Patient.class).save(patient);
+
+        HealthIdReconciler healthIdReconciler = new HealthIdReconciler(patientRepository, healthIdLedger, mciHealthIdStore, 4, 2, 5)
+                .start(unverifiedHIDs);
+        healthIdReconciler.getMinimumPoolVerified().get(30, TimeUnit.SECONDS);
+        assertTrue(mciHealthIdStore.noOfHIDsLeft() >= 5);
+        healthIdReconciler.getAllVerified().get(30, TimeUnit.SECONDS);
+
+        assertEquals(24, mciHealthIdStore.noOfHIDsLeft());
+        assertFalse(mciHealthIdStore.getAll().contains(patient.getHealthId()));
+        HealthIdLedger replayedLedger = new HealthIdLedger(ledgerFile.getPath());
+        assertEquals(24, replayedLedger.getAvailable().size());
+        assertFalse(replayedLedger.getAvailable().contains(patient.getHealthId()));
+    }
+
+    private List<String> getHIDs(String prefix, int noOfHealthIds) {
+        List<String> hids = new ArrayList<>();
+        for (int i = 0; i < noOfHealthIds; i++) {
+            hids.add(prefix + i);
+        }
+        return hids;
+    }
+}
@@ -1,10 +1,10 @@
 package org.sharedhealth.mci.web.service;
 
 import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import com.github.tomakehurst.wiremock.stubbing.Scenario;
 import com.google.common.collect.Lists;
 import com.google.gson.Gson;
 import org.apache.commons.collections4.ListUtils;
-import org.apache.commons.io.IOUtils;
 import org.apache.http.HttpStatus;
 import org.junit.After;
 import org.junit.Before;
@@ -15,16 +15,17 @@ import org.sharedhealth.mci.web.config.MCIProperties;
 import org.sharedhealth.mci.web.model.IdentityStore;
 import org.sharedhealth.mci.web.model.MciHealthId;
 import org.sharedhealth.mci.web.model.MciHealthIdStore;
+import org.sharedhealth.mci.web.repository.HealthIdLedger;
 import org.sharedhealth.mci.web.util.TestUtil;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
 import static com.github.tomakehurst.wiremock.client.WireMock.*;
 import static org.hamcrest.Matchers.is;
@@ -57,13 +58,27 @@ public class HealthIdServiceIT extends BaseIntegrationTest {
     public void shouldGetNextHealthId() throws Exception {
         List<String> hidBlock = Lists.newArrayList("healthId1", "healthId2");
         mciHealthIdStore.addMciHealthIds(hidBlock);
-        File hidLocalStorageFile = new File(mciProperties.getHidLocalStoragePath());
-        IOUtils.write(new Gson().toJson(hidBlock), new FileOutputStream(hidLocalStorageFile));
+        new HealthIdLedger(mciProperties.getHidLocalStoragePath()).issued(hidBlock);
 
         MciHealthId nextHealthId = healthIdService.getNextHealthId();
 
         assertNotNull(nextHealthId);
         assertEquals(1, mciHealthIdStore.noOfHIDsLeft());
+        assertFalse(readHIDsFromFile().contains(nextHealthId.getHid()));
+    }
+
+    @Test
+    public void shouldNotLoadConsumedHIDsFromFileAfterRestart() throws Exception {
+        List<String> hidBlock = Lists.newArrayList("healthId1", "healthId2");
+        new HealthIdLedger(mciProperties.getHidLocalStoragePath()).issued(hidBlock);
+        healthIdService.loadFromFile();
+        MciHealthId consumedHealthId = healthIdService.getNextHealthId();
+
+        mciHealthIdStore.clear();
+        new HealthIdService(identityProviderService, mciHealthIdStore, mciProperties).loadFromFile();
+
+        assertEquals(1, mciHealthIdStore.noOfHIDsLeft());
+        assertFalse(mciHealthIdStore.getAll().contains(consumedHealthId.getHid()));
     }
 
     @Test
@@ -89,7 +104,7 @@ public class HealthIdServiceIT extends BaseIntegrationTest {
         setUpIdentityStub(uuid);
         setupNextHidStub(nextHIDBlockUrl, hidResponse, uuid);
 
-        healthIdService.replenishIfNeeded();
+        healthIdService.replenishIfNeeded().get(10, TimeUnit.SECONDS);
 
         assertThat(mciHealthIdStore.noOfHIDsLeft(), is(mciProperties.getHealthIdReplenishBlockSize()));
         verify(1, postRequestedFor(urlMatching("/signin")));
@@ -103,7 +118,11 @@ public class HealthIdServiceIT extends BaseIntegrationTest {
     @Test
     public void shouldReplenishFromHIDServiceHIDCountReachesToThreshold() throws Exception {
         List<String> initialHealthIdBlock = getHIDs("9800043044", 10);
-        IOUtils.write(new Gson().toJson(initialHealthIdBlock), new FileOutputStream(new File(mciProperties.getHidLocalStoragePath())));
+        HealthIdLedger healthIdLedger = new HealthIdLedger(mciProperties.getHidLocalStoragePath());
+        healthIdLedger.issued(initialHealthIdBlock);
+        for (String consumedHealthId : initialHealthIdBlock.subList(1, 10)) {
+            healthIdLedger.consumed(consumedHealthId);
+        }
 
         List<String> healthIdBlock = initialHealthIdBlock.subList(0, 1);
 
@@ -117,7 +136,7 @@ public class HealthIdServiceIT extends BaseIntegrationTest {
         setUpIdentityStub(uuid);
         setupNextHidStub(nextHIDBlockUrl, hidResponse, uuid);
 
-        healthIdService.replenishIfNeeded();
+        healthIdService.replenishIfNeeded().get(10, TimeUnit.SECONDS);
 
         verify(1, postRequestedFor(urlMatching("/signin")));
         verify(1, getRequestedFor(urlPathMatching("/healthIds")));
@@ -132,12 +151,61 @@ public class HealthIdServiceIT extends BaseIntegrationTest {
         assertEquals(mciHealthIdStore.noOfHIDsLeft(), hidsInFile.size());
     }
 
+    @Test
+    public void shouldKeepGivingHIDsWhileASlowBlockFetchIsInFlight() throws Exception {
+        mciHealthIdStore.addMciHealthIds(getHIDs("9800043044", mciProperties.getHealthIdReplenishThreshold()));
+        String nextHIDBlockUrl = String.format("/healthIds/nextBlock/mci/%s?blockSize=%s",
+                mciProperties.getMciOrgCode(), mciProperties.getHealthIdReplenishBlockSize());
+        List<String> newHealthIds = getHIDs("9800043063", 10);
+        UUID uuid = UUID.randomUUID();
+        setUpIdentityStub(uuid);
+        stubFor(get(urlPathEqualTo(nextHIDBlockUrl))
+                .willReturn(aResponse()
+                        .withStatus(HttpStatus.SC_OK)
+                        .withFixedDelay(1500)
+                        .withBody(getHidResponse(newHealthIds))
+                ));
+
+        CompletableFuture<Void> replenish = healthIdService.replenishIfNeeded();
+        assertFalse(replenish.isDone());
+        assertSame(replenish, healthIdService.replenishIfNeeded());
+        for (int i = 0; i < mciProperties.getHealthIdReplenishThreshold(); i++) {
+            assertNotNull(healthIdService.getNextHealthId());
+        }
+        assertFalse(replenish.isDone());
+
+        replenish.get(10, TimeUnit.SECONDS);
+        assertThat(mciHealthIdStore.noOfHIDsLeft(), is(newHealthIds.size()));
+        verify(1, getRequestedFor(urlPathMatching("/healthIds.*")));
+    }
+
+    @Test
+    public void shouldRetryWhenHIDServiceFails() throws Exception {
+        String nextHIDBlockUrl = String.format("/healthIds/nextBlock/mci/%s?blockSize=%s",
+                mciProperties.getMciOrgCode(), mciProperties.getHealthIdReplenishBlockSize());
+        List<String> newHealthIds = getHIDs("9800043063", 10);
+        UUID uuid = UUID.randomUUID();
+        setUpIdentityStub(uuid);
+        stubFor(get(urlPathEqualTo(nextHIDBlockUrl)).inScenario("HID service failure")
+                .whenScenarioStateIs(Scenario.STARTED)
+                .willReturn(aResponse().withStatus(HttpStatus.SC_SERVICE_UNAVAILABLE))
+                .willSetStateTo("recovered"));
+        stubFor(get(urlPathEqualTo(nextHIDBlockUrl)).inScenario("HID service failure")
+                .whenScenarioStateIs("recovered")
+                .willReturn(aResponse().withStatus(HttpStatus.SC_OK).withBody(getHidResponse(newHealthIds))));
+
+        healthIdService.replenishIfNeeded().get(10, TimeUnit.SECONDS);
+
+        assertThat(mciHealthIdStore.noOfHIDsLeft(), is(newHealthIds.size()));
+        verify(2, getRequestedFor(urlPathMatching("/healthIds.*")));
+    }
+
     @Test
     public void shouldNotReplenishIfTheThresholdIsNotReached() throws Exception {
         List<String> healthIdBlock = Lists.newArrayList("healthId1", "healthId2", "healthId3", "healthId4");
         mciHealthIdStore.addMciHealthIds(healthIdBlock);
 
-        healthIdService.replenishIfNeeded();
+        healthIdService.replenishIfNeeded().get(10, TimeUnit.SECONDS);
 
         assertThat(mciHealthIdStore.noOfHIDsLeft(), is(4));
         verify(0, postRequestedFor(urlMatching("/signin")));
@@ -147,7 +215,7 @@ public class HealthIdServiceIT extends BaseIntegrationTest {
     private List<String> readHIDsFromFile() throws IOException {
         File hidLocalStorageFile = new File(mciProperties.getHidLocalStoragePath());
         assertTrue(hidLocalStorageFile.exists());
-        return IOUtils.readLines(new FileInputStream(hidLocalStorageFile), "UTF-8");
+        return new HealthIdLedger(hidLocalStorageFile.getPath()).getAvailable();
     }
 
     private void setupMarkUsedStub(String hidServiceUrl, String hidServiceResponse, UUID token) {
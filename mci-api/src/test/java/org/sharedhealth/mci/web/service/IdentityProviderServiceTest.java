@@ -0,0 +1,61 @@
+package org.sharedhealth.mci.web.service;
+
+import com.github.tomakehurst.wiremock.junit.WireMockRule;
+import org.apache.http.HttpStatus;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.sharedhealth.mci.web.config.MCIProperties;
+import org.sharedhealth.mci.web.exception.IdentityUnauthorizedException;
+import org.sharedhealth.mci.web.model.IdentityStore;
+import org.sharedhealth.mci.web.security.UserInfo;
+
+import static com.github.tomakehurst.wiremock.client.WireMock.*;
+import static java.util.Collections.emptyList;
+import static java.util.Collections.singletonList;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+public class IdentityProviderServiceTest {
+    private static final String CLIENT_AUTH_TOKEN = "client-token";
+
+    @Rule
+    public WireMockRule idpService = new WireMockRule(9996);
+    @Mock
+    private MCIProperties mciProperties;
+
+    private IdentityProviderService identityProviderService;
+
+    @Before
+    public void setUp() throws Exception {
+        initMocks(this);
+        when(mciProperties.getIdpBaseUrl()).thenReturn("http://localhost:9996");
+        when(mciProperties.getIdpUserInfoUrl()).thenReturn("/token/%s");
+        when(mciProperties.getIdpXAuthToken()).thenReturn("x-auth-token");
+        when(mciProperties.getIdpClientId()).thenReturn("18548");
+        identityProviderService = new IdentityProviderService(new IdentityStore());
+    }
+
+    @Test
+    public void shouldReadUserInfoFromIdentityProvider() throws Exception {
+        stubFor(get(urlEqualTo("/token/" + CLIENT_AUTH_TOKEN))
+                .willReturn(aResponse().withStatus(HttpStatus.SC_OK).withBody("{\"id\":\"18548\",\"name\":\"Facility 1\"," +
+                        "\"email\":\"facility@gmail.com\",\"is_active\":1,\"activated\":true,\"access_token\":\"" + CLIENT_AUTH_TOKEN + "\"," +
+                        "\"groups\":[\"MCI User\"],\"profiles\":[]}")));
+
+        UserInfo userInfo = identityProviderService.getUserInfo(mciProperties, CLIENT_AUTH_TOKEN);
+
+        assertEquals(new UserInfo("18548", "Facility 1", "facility@gmail.com", 1, true, CLIENT_AUTH_TOKEN,
+                singletonList("MCI User"), emptyList()), userInfo);
+    }
+
+    @Test(expected = IdentityUnauthorizedException.class)
+    public void shouldNotAuthorizeAnEmptyUserInfoResponse() throws Exception {
+        stubFor(get(urlEqualTo("/token/" + CLIENT_AUTH_TOKEN))
+                .willReturn(aResponse().withStatus(HttpStatus.SC_OK).withBody("")));
+
+        identityProviderService.getUserInfo(mciProperties, CLIENT_AUTH_TOKEN);
+    }
+}
@@ -1,9 +1,14 @@
 package org.sharedhealth.mci.web.service;
 
 import ca.uhn.fhir.model.dstu2.resource.Bundle;
+import ca.uhn.fhir.model.dstu2.resource.OperationOutcome;
+import ca.uhn.fhir.model.dstu2.valueset.IssueTypeEnum;
+import ca.uhn.fhir.model.dstu2.valueset.SearchEntryModeEnum;
 import ca.uhn.fhir.validation.ResultSeverityEnum;
 import ca.uhn.fhir.validation.SingleValidationMessage;
+import com.google.common.util.concurrent.Futures;
 import org.apache.http.HttpStatus;
+import org.ehcache.Cache;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
@@ -12,6 +17,7 @@ import org.mockito.Mock;
 import org.sharedhealth.mci.web.exception.PatientNotFoundException;
 import org.sharedhealth.mci.web.mapper.FHIRBundleMapper;
 import org.sharedhealth.mci.web.mapper.MCIPatientMapper;
+import org.sharedhealth.mci.web.model.EncodedPatient;
 import org.sharedhealth.mci.web.model.Error;
 import org.sharedhealth.mci.web.model.MCIResponse;
 import org.sharedhealth.mci.web.model.MciHealthId;
@@ -20,6 +26,8 @@ import org.sharedhealth.mci.web.repository.PatientRepository;
 import org.sharedhealth.mci.web.security.UserInfo;
 import org.sharedhealth.mci.web.security.UserProfile;
 import org.sharedhealth.mci.web.util.DateUtil;
+import org.sharedhealth.mci.web.util.FhirContextHelper;
+import org.sharedhealth.mci.web.util.TimeUuidUtil;
 import org.sharedhealth.mci.web.validations.FhirPatientValidator;
 import org.sharedhealth.mci.web.validations.MCIValidationResult;
 
@@ -31,6 +39,7 @@ import static org.junit.Assert.*;
 import static org.mockito.Mockito.*;
 import static org.mockito.MockitoAnnotations.initMocks;
 import static org.sharedhealth.mci.web.security.UserInfo.HRM_MCI_USER_GROUP;
+import static org.sharedhealth.mci.web.security.UserInfo.HRM_PATIENT_GROUP;
 import static org.sharedhealth.mci.web.util.PatientTestFactory.createPatientBundleWithAllFields;
 
 public class PatientServiceTest {
@@ -58,11 +67,14 @@ public class PatientServiceTest {
     private HealthIdService healthIdService;
     @Mock
     private FhirPatientValidator fhirPatientValidator;
+    @Mock
+    private Cache<String, byte[]> patientResponseCache;
 
     @Before
     public void setUp() throws Exception {
         initMocks(this);
-        patientService = new PatientService(mciPatientMapper, fhirBundleMapper, healthIdService, patientRepository, fhirPatientValidator);
+        patientService = new PatientService(mciPatientMapper, fhirBundleMapper, healthIdService, patientRepository, fhirPatientValidator,
+                patientResponseCache);
     }
 
     @Test
@@ -81,6 +93,68 @@ public class PatientServiceTest {
         inOrder.verify(mciPatientMapper).mapPatientToBundle(mciPatient);
     }
 
+    @Test
+    public void shouldEncodePatientAndCacheItByLastUpdate() throws Exception {
+        Patient mciPatient = new Patient();
+        mciPatient.setHealthId(healthId);
+        mciPatient.setUpdatedAt(TimeUuidUtil.uuidForDate(new Date()));
+        Bundle bundle = new Bundle();
+        when(patientRepository.findByHealthId(healthId)).thenReturn(mciPatient);
+        when(mciPatientMapper.mapPatientToBundle(mciPatient)).thenReturn(bundle);
+
+        EncodedPatient encodedPatient = patientService.findEncodedPatientByHealthId(healthId);
+
+        assertArrayEquals(FhirContextHelper.encodeResourceToBytes(bundle), encodedPatient.getContent());
+        assertEquals(mciPatient.getUpdatedAt(), encodedPatient.getUpdatedAt());
+        verify(patientResponseCache).put(healthId + ":" + mciPatient.getUpdatedAt() + ":xml", encodedPatient.getContent());
+    }
+
+    @Test
+    public void shouldServeCachedEncodedPatient() throws Exception {
+        Patient mciPatient = new Patient();
+        mciPatient.setHealthId(healthId);
+        mciPatient.setUpdatedAt(TimeUuidUtil.uuidForDate(new Date()));
+        byte[] cachedPatient = new byte[]{1, 2, 3};
+        when(patientRepository.findByHealthId(healthId)).thenReturn(mciPatient);
+        when(patientResponseCache.get(healthId + ":" + mciPatient.getUpdatedAt() + ":xml")).thenReturn(cachedPatient);
+
+        assertSame(cachedPatient, patientService.findEncodedPatientByHealthId(healthId).getContent());
+        verify(mciPatientMapper, never()).mapPatientToBundle(mciPatient);
+    }
+
+    @Test
+    public void shouldNotCacheEncodedConfidentialPatients() throws Exception {
+        Patient mciPatient = new Patient();
+        mciPatient.setHealthId(healthId);
+        mciPatient.setConfidential(true);
+        mciPatient.setUpdatedAt(TimeUuidUtil.uuidForDate(new Date()));
+        when(patientRepository.findByHealthId(healthId)).thenReturn(mciPatient);
+        when(mciPatientMapper.mapPatientToBundle(mciPatient)).thenReturn(new Bundle());
+
+        assertNotNull(patientService.findEncodedPatientByHealthId(healthId));
+        verify(patientResponseCache, never()).get(anyString());
+        verify(patientResponseCache, never()).put(anyString(), any(byte[].class));
+    }
+
+    @Test
+    public void shouldNotCacheEncodedPatientsWithoutUpdateTime() throws Exception {
+        Patient mciPatient = new Patient();
+        mciPatient.setHealthId(healthId);
+        when(patientRepository.findByHealthId(healthId)).thenReturn(mciPatient);
+        when(mciPatientMapper.mapPatientToBundle(mciPatient)).thenReturn(new Bundle());
+
+        assertNotNull(patientService.findEncodedPatientByHealthId(healthId));
+        verify(patientResponseCache, never()).get(anyString());
+        verify(patientResponseCache, never()).put(anyString(), any(byte[].class));
+    }
+
+    @Test(expected = PatientNotFoundException.class)
+    public void shouldThrowErrorWhenUpdateTimeOfUnknownPatientIsAskedFor() throws Exception {
+        when(patientRepository.findUpdatedAt(healthId)).thenReturn(null);
+
+        patientService.findPatientUpdatedAt(healthId);
+    }
+
     @Test(expected = PatientNotFoundException.class)
     public void shouldThrowErrorWhenPatientNotFound() throws Exception {
         String message = "patient does not exist";
@@ -134,6 +208,46 @@ public class PatientServiceTest {
         inOrder.verify(patientRepository).createPatient(patientToBeCreated);
     }
 
+    @Test
+    public void shouldRejectCreateWithoutTakingAHealthIdWhenTooManyAreInFlight() throws Exception {
+        Bundle bundle = createPatientBundleWithAllFields();
+        MCIValidationResult mockValidationResult = mock(MCIValidationResult.class);
+        when(fhirPatientValidator.validate(bundle)).thenReturn(mockValidationResult);
+        when(mockValidationResult.isSuccessful()).thenReturn(true);
+        when(fhirBundleMapper.mapToMCIPatient(bundle)).thenReturn(new Patient());
+        patientService = new PatientService(mciPatientMapper, fhirBundleMapper, healthIdService, patientRepository, fhirPatientValidator,
+                patientResponseCache, 0);
+
+        MCIResponse mciResponse = patientService.createPatient(bundle, getUserInfo());
+
+        assertEquals(HttpStatus.SC_SERVICE_UNAVAILABLE, mciResponse.getHttpStatus());
+        verify(healthIdService, never()).getNextHealthId();
+        verify(patientRepository, never()).createPatient(any(Patient.class));
+    }
+
+    @Test
+    public void shouldPutBackTheHealthIdAndFreeTheSlotWhenTheWriteFails() throws Exception {
+        Bundle bundle = createPatientBundleWithAllFields();
+        MciHealthId mciHealthId = new MciHealthId(healthId);
+        Patient mciPatient = new Patient();
+        MCIValidationResult mockValidationResult = mock(MCIValidationResult.class);
+        when(fhirPatientValidator.validate(bundle)).thenReturn(mockValidationResult);
+        when(mockValidationResult.isSuccessful()).thenReturn(true);
+        when(fhirBundleMapper.mapToMCIPatient(bundle)).thenReturn(mciPatient);
+        when(healthIdService.getNextHealthId()).thenReturn(mciHealthId);
+        when(patientRepository.createPatient(mciPatient)).thenThrow(new RuntimeException("write timeout"));
+        patientService = new PatientService(mciPatientMapper, fhirBundleMapper, healthIdService, patientRepository, fhirPatientValidator,
+                patientResponseCache, 1);
+
+        MCIResponse mciResponse = patientService.createPatient(bundle, getUserInfo());
+        doReturn(new MCIResponse(HttpStatus.SC_CREATED)).when(patientRepository).createPatient(mciPatient);
+
+        assertEquals(HttpStatus.SC_INTERNAL_SERVER_ERROR, mciResponse.getHttpStatus());
+        assertEquals("Error while creating patient: write timeout", mciResponse.getMessage());
+        verify(healthIdService).putBack(mciHealthId);
+        assertEquals(HttpStatus.SC_CREATED, patientService.createPatient(bundle, getUserInfo()).getHttpStatus());
+    }
+
     @Test
     public void shouldThrowAnErrorIfPatientDataIsNotValid() throws Exception {
         ca.uhn.fhir.model.dstu2.resource.Patient fhirPatient = new ca.uhn.fhir.model.dstu2.resource.Patient();
@@ -158,6 +272,54 @@ public class PatientServiceTest {
         assertTrue(mciResponse.getErrors().contains(dobError));
     }
 
+    @Test
+    public void shouldFindSeveralPatientsWithAnOutcomeForEachUnknownOrFailedRead() throws Exception {
+        Patient mciPatient = new Patient();
+        mciPatient.setHealthId(healthId);
+        Bundle patientBundle = new Bundle();
+        ca.uhn.fhir.model.dstu2.resource.Patient fhirPatient = new ca.uhn.fhir.model.dstu2.resource.Patient();
+        patientBundle.addEntry().setFullUrl("urn:uuid:patient").setResource(fhirPatient);
+        when(patientRepository.findByHealthIdAsync(healthId)).thenReturn(Futures.immediateFuture(mciPatient));
+        when(patientRepository.findByHealthIdAsync("UNKNOWN")).thenReturn(Futures.<Patient>immediateFuture(null));
+        when(patientRepository.findByHealthIdAsync("BROKEN")).thenReturn(Futures.<Patient>immediateFailedFuture(new RuntimeException("timeout")));
+        when(mciPatientMapper.mapPatientToBundle(mciPatient)).thenReturn(patientBundle);
+
+        Bundle bundle = patientService.findPatientsByHealthIds(asList(healthId, "UNKNOWN", healthId, "BROKEN"), getUserInfo());
+
+        assertEquals(1, bundle.getTotal().intValue());
+        assertEquals(3, bundle.getEntry().size());
+        verify(patientRepository, times(1)).findByHealthIdAsync(healthId);
+        Bundle.Entry patientEntry = bundle.getEntry().get(0);
+        assertSame(fhirPatient, patientEntry.getResource());
+        assertEquals("urn:uuid:patient", patientEntry.getFullUrl());
+        assertEquals(SearchEntryModeEnum.MATCH.getCode(), patientEntry.getSearch().getMode());
+        assertOutcome(bundle.getEntry().get(1), IssueTypeEnum.NOT_FOUND);
+        assertOutcome(bundle.getEntry().get(2), IssueTypeEnum.EXCEPTION);
+    }
+
+    @Test
+    public void shouldNotReadPatientsAPatientUserHasNoAccessTo() throws Exception {
+        Patient mciPatient = new Patient();
+        Bundle patientBundle = new Bundle();
+        patientBundle.addEntry().setResource(new ca.uhn.fhir.model.dstu2.resource.Patient());
+        when(patientRepository.findByHealthIdAsync(healthId)).thenReturn(Futures.immediateFuture(mciPatient));
+        when(mciPatientMapper.mapPatientToBundle(mciPatient)).thenReturn(patientBundle);
+        UserProfile userProfile = new UserProfile("patient", healthId, null);
+        UserInfo patientUser = new UserInfo("102", "ABC", "abc@mail", 1, true, "111100", asList(HRM_MCI_USER_GROUP, HRM_PATIENT_GROUP), asList(userProfile));
+
+        Bundle bundle = patientService.findPatientsByHealthIds(asList(healthId, "OTHER"), patientUser);
+
+        assertEquals(1, bundle.getTotal().intValue());
+        assertOutcome(bundle.getEntry().get(1), IssueTypeEnum.FORBIDDEN);
+        verify(patientRepository, never()).findByHealthIdAsync("OTHER");
+    }
+
+    private void assertOutcome(Bundle.Entry entry, IssueTypeEnum issueType) {
+        assertEquals(SearchEntryModeEnum.OUTCOME.getCode(), entry.getSearch().getMode());
+        OperationOutcome outcome = (OperationOutcome) entry.getResource();
+        assertEquals(issueType.getCode(), outcome.getIssueFirstRep().getCode());
+    }
+
     private SingleValidationMessage createMessage(String theMessage, String locationString) {
         SingleValidationMessage singleValidationMessage = new SingleValidationMessage();
         singleValidationMessage.setMessage(theMessage);
@@ -24,7 +24,8 @@ public class TestUtil {
                 CF_MCI_HEALTH_ID,
                 CF_ORG_HEALTH_ID,
                 CF_PATIENT_UPDATE_LOG,
-                CF_PATIENT_AUDIT_LOG
+                CF_PATIENT_AUDIT_LOG,
+                CF_PATIENT_LOG_OUTBOX
         );
     }
 